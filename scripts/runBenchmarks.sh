@@ -0,0 +1,4 @@
+#!/bin/sh
+cd ../src/
+javac */*.java
+java test.BenchmarkRunner "$@"
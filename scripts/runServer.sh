@@ -1,4 +1,4 @@
 #!/bin/sh
 cd ../src/
 javac */*.java
-java server.SFTPServer
+java server.SFTPServer "$@"
@@ -0,0 +1,198 @@
+package client;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import utils.DeflateFrames;
+
+/**
+ * Reads '\0' terminated responses from the server's InputStream. Input is read
+ * into a buffer in bulk and scanned for the terminator there, rather than being
+ * read from the stream a byte at a time.
+ */
+public class ResponseReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_RESPONSE_CAPACITY = 256;
+
+    private InputStream in;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+
+    public ResponseReader(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Reads the next response and decodes it. The server encodes each char of a
+     * response as a single byte, so the response is decoded as ISO-8859-1 to map
+     * every byte back to exactly one char.
+     * 
+     * @return the response, without its terminating '\0'
+     * @throws IOException if the stream could not be read, or ended before the
+     *                     response was terminated
+     */
+    public String readResponse() throws IOException {
+        ByteBuffer response = readResponseBytes();
+        return new String(response.array(), 0, response.limit(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Reads the next response without decoding it.
+     * 
+     * @return a buffer holding the response, without its terminating '\0'
+     * @throws IOException if the stream could not be read, or ended before the
+     *                     response was terminated
+     */
+    public ByteBuffer readResponseBytes() throws IOException {
+        byte[] response = new byte[INITIAL_RESPONSE_CAPACITY];
+        int responseLength = 0;
+        while (true) {
+            fillBufferIfEmpty();
+            int terminatorIndex = indexOfTerminator();
+            int end = (terminatorIndex == -1) ? limit : terminatorIndex;
+            int chunkLength = end - position;
+            if (responseLength + chunkLength > response.length) {
+                response = Arrays.copyOf(response, Math.max(response.length * 2, responseLength + chunkLength));
+            }
+            System.arraycopy(buffer, position, response, responseLength, chunkLength);
+            responseLength += chunkLength;
+            position = end;
+            if (terminatorIndex != -1) {
+                position++; // skip the '\0'
+                return ByteBuffer.wrap(response, 0, responseLength);
+            }
+        }
+    }
+
+    /**
+     * Reads the next response and streams it to out as it arrives, so that the
+     * response never has to be held in memory as a whole.
+     * 
+     * @return the number of bytes written to out, not including the terminating
+     *         '\0'
+     * @throws IOException if the stream could not be read, or ended before the
+     *                     response was terminated, or out could not be written to
+     */
+    public long readResponse(OutputStream out) throws IOException {
+        long responseLength = 0;
+        while (true) {
+            fillBufferIfEmpty();
+            int terminatorIndex = indexOfTerminator();
+            int end = (terminatorIndex == -1) ? limit : terminatorIndex;
+            out.write(buffer, position, end - position);
+            responseLength += end - position;
+            position = end;
+            if (terminatorIndex != -1) {
+                position++; // skip the '\0'
+                return responseLength;
+            }
+        }
+    }
+
+    /**
+     * Reads exactly length bytes and streams them to out as they arrive. Used for
+     * files sent in binary mode, which aren't terminated by '\0' and so can't be
+     * read with readResponse().
+     * 
+     * @throws IOException if the stream could not be read, or ended before length
+     *                     bytes were read, or out could not be written to
+     */
+    public void readBytes(long length, OutputStream out) throws IOException {
+        while (length > 0) {
+            fillBufferIfEmpty();
+            int chunkLength = (int) Math.min(length, limit - position);
+            out.write(buffer, position, chunkLength);
+            position += chunkLength;
+            length -= chunkLength;
+        }
+    }
+
+    /**
+     * Reads a file sent in compressed mode, inflating its frames and writing the
+     * result to out until the end frame. This is a blocking method.
+     * 
+     * @param inflatedLength the number of bytes the file should inflate to
+     * @return the number of compressed bytes read, including frame headers
+     * @throws IOException if the stream could not be read, or the file isn't
+     *                     valid compressed data of inflatedLength bytes
+     */
+    public long readDeflatedFrames(long inflatedLength, OutputStream out) throws IOException {
+        Inflater inflater = new Inflater();
+        byte[] inflated = new byte[BUFFER_SIZE];
+        byte[] header = new byte[DeflateFrames.HEADER_LENGTH];
+        long numBytesRead = 0;
+        long numBytesInflated = 0;
+        try {
+            while (true) {
+                for (int i = 0; i < header.length; i++) {
+                    fillBufferIfEmpty();
+                    header[i] = buffer[position++];
+                }
+                int frameLength = DeflateFrames.readHeader(header, 0);
+                numBytesRead += header.length + frameLength;
+                if (frameLength == 0) {
+                    break;
+                }
+                while (frameLength > 0) {
+                    fillBufferIfEmpty();
+                    int chunkLength = Math.min(frameLength, limit - position);
+                    inflater.setInput(buffer, position, chunkLength);
+                    position += chunkLength;
+                    frameLength -= chunkLength;
+                    while (!inflater.needsInput() && !inflater.finished()) {
+                        int length = inflater.inflate(inflated);
+                        if (length == 0 && inflater.needsDictionary()) {
+                            throw new IOException("Compressed file needs a preset dictionary");
+                        }
+                        out.write(inflated, 0, length);
+                        numBytesInflated += length;
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed file is not valid", e);
+        } finally {
+            inflater.end();
+        }
+        if (numBytesInflated != inflatedLength) {
+            throw new IOException("Compressed file inflated to " + numBytesInflated + " bytes, expected "
+                    + inflatedLength);
+        }
+        return numBytesRead;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void fillBufferIfEmpty() throws IOException {
+        if (position < limit) {
+            return;
+        }
+        int bytesRead = in.read(buffer, 0, buffer.length);
+        if (bytesRead == -1) {
+            throw new EOFException("Server closed the connection before the response was terminated");
+        }
+        position = 0;
+        limit = bytesRead;
+    }
+
+    /**
+     * @return the index of the first '\0' in the unread part of the buffer, or -1
+     *         if it doesn't contain one
+     */
+    private int indexOfTerminator() {
+        for (int i = position; i < limit; i++) {
+            if (buffer[i] == '\0') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -2,28 +2,83 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
+import utils.DeflateFrames;
 import utils.Utils;
 
 public class SFTPClient {
-    private static final String HOSTNAME = "localhost";
-    private static final int PORT = 6789;
+    private static final String DEFAULT_HOSTNAME = "localhost";
+    private static final int DEFAULT_PORT = 6789;
+    private static final int FILE_BUFFER_SIZE = 8 * 1024;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 32;
 
+    private String hostname;
+    private int port;
     private Socket clientSocket;
     private BufferedReader inFromUser;
-    private DataInputStream inFromServer;
+    private ResponseReader inFromServer;
     private DataOutputStream outToServer;
     private List<String> logHistory;
+    // files are only sent and received raw once TYPE B has been selected
+    private boolean binaryMode;
+    // or deflated, once TYPE Z has been selected
+    private boolean compressedMode;
+    private int compressionLevel;
+    // whether the file the next SEND returns is compressed
+    private boolean pendingRetrieveCompressed;
+    // the number of raw bytes the next SEND will return in binary mode, or -1
+    private long pendingRetrieveSize;
+    // the number of raw bytes the server is waiting for in binary mode, or -1
+    private long pendingStoreSize;
+    // the most command calls evalCommands() sends ahead of their responses
+    private int maxInFlight;
+    // the successful calls that logged in and changed directory, in order, which
+    // bring another connection to the same state when replayed
+    private List<String> sessionSetupCmds;
 
     public SFTPClient() {
-        logHistory = new ArrayList<String>();
+        this(DEFAULT_HOSTNAME, DEFAULT_PORT);
+    }
+
+    public SFTPClient(String hostname, int port) {
+        initialize(hostname, port);
         // Attempt to connect to user keyboard stream/server
         connectToKeyboardStream();
         connectToServer();
     }
 
+    /**
+     * Opens another connection to the same server as parent, sharing its
+     * keyboard stream. Unlike the public constructors, this never quits the
+     * program, so a parallel transfer can deal with a connection that fails.
+     * 
+     * @throws IOException if the server could not be connected to
+     */
+    private SFTPClient(SFTPClient parent) throws IOException {
+        initialize(parent.hostname, parent.port);
+        inFromUser = parent.inFromUser;
+        try {
+            openConnection();
+        } catch (Exception e) {
+            closeConnection();
+            throw new IOException("Could not connect to " + hostname + ":" + port, e);
+        }
+    }
+
     public static void main(String argv[]) {
         SFTPClient sftpClient = new SFTPClient();
         sftpClient.run();
@@ -37,6 +92,48 @@ public class SFTPClient {
         return logHistory;
     }
 
+    public boolean isBinaryMode() {
+        return binaryMode;
+    }
+
+    public boolean isCompressedMode() {
+        return compressedMode;
+    }
+
+    /**
+     * Sets how hard files are deflated when stored in compressed mode, from 0 (no
+     * compression) to 9 (best compression), or -1 for zlib's default.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        DeflateFrames.checkLevel(compressionLevel);
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Sets the most command calls evalCommands() will send before waiting for a
+     * response. The server stops reading from a client that isn't reading its
+     * responses, so this should be kept low enough for the responses of that many
+     * calls to fit in the connection's socket buffers.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one command call must be allowed in flight");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @return true if SIZE has been accepted in binary mode, and the server is
+     *         waiting for the raw contents of the file
+     */
+    public boolean isAwaitingFileBytes() {
+        return pendingStoreSize >= 0;
+    }
+
     /**
      * Runs the client, continuously accepting input, sending it to the server and
      * awaiting responses until an exception is thrown.
@@ -60,13 +157,493 @@ public class SFTPClient {
      * @throws Exception if the server could not be written to or read from
      */
     public void evalCommand(String cmd) throws Exception {
+        if (isAwaitingFileBytes()) {
+            evalFileContents(cmd);
+            return;
+        }
         writeToServer(cmd);
-        String commandRes = readFromServer();
-        logMessage(commandRes);
+        flushToServer();
+        readCommandResponse(cmd);
+    }
 
-        if (cmd.equals("done")) {
-            closeConnection();
+    /**
+     * Sends command calls to the server without waiting for the response to each
+     * before sending the next, keeping up to getMaxInFlight() calls ahead of the
+     * responses. The responses are logged and returned in the order the calls
+     * were made, so this behaves like calling evalCommand() for each in turn but
+     * takes one round trip per batch rather than one per call.
+     * 
+     * As the contents of a file in binary mode aren't a command call, a SIZE
+     * accepted in binary mode can only be the last call of a batch. Nothing is
+     * sent after a SIZE in binary mode until its response has been read, so a
+     * batch that breaks this is rejected before the calls after the SIZE reach
+     * the server, where they would be stored as the file's contents.
+     * 
+     * @param cmds the string forms of the desired command calls
+     * @return the response to each command call
+     * @throws Exception if the server could not be written to or read from
+     */
+    public List<String> evalCommands(List<String> cmds) throws Exception {
+        if (isAwaitingFileBytes()) {
+            throw new IllegalStateException("The server is waiting for a file in binary mode");
+        }
+        List<String> responses = new ArrayList<String>(cmds.size());
+        int numSent = 0;
+        // whether binary mode will be selected once the calls sent so far succeed
+        boolean binaryModeSent = binaryMode;
+        boolean binarySizeSent = false;
+        while (responses.size() < cmds.size()) {
+            while (numSent < cmds.size() && numSent - responses.size() < maxInFlight && !binarySizeSent) {
+                String cmd = cmds.get(numSent++);
+                writeToServer(cmd);
+                List<String> commandArgs = Utils.splitString(cmd, "\\s+");
+                if (commandArgs.get(0).equals("type") && commandArgs.size() == 2) {
+                    binaryModeSent = commandArgs.get(1).equals("b") || commandArgs.get(1).equals("z");
+                }
+                binarySizeSent = binaryModeSent && commandArgs.get(0).equals("size");
+            }
+            flushToServer();
+            responses.add(readCommandResponse(cmds.get(responses.size())));
+            if (responses.size() == numSent) {
+                binarySizeSent = false; // the SIZE's response has been read, if one was sent
+            }
+            if (isAwaitingFileBytes() && responses.size() < cmds.size()) {
+                throw new IllegalStateException("SIZE in binary mode must be followed by the file's contents,"
+                        + " not another command call");
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Sends a command call to the server, and streams the response to out as it
+     * arrives instead of logging it. Intended for calls with large responses such
+     * as SEND, which would otherwise be held in memory as a whole.
+     * 
+     * @param cmd the string form of the desired command call
+     * @return the number of bytes in the response
+     * @throws Exception if the server could not be written to or read from
+     */
+    public long evalCommand(String cmd, OutputStream out) throws Exception {
+        writeToServer(cmd);
+        flushToServer();
+        long responseLength;
+        if (isBinarySend(cmd)) {
+            responseLength = pendingRetrieveSize;
+            readFileFromServer(out);
+        } else {
+            responseLength = readFromServer(out);
+        }
+        logMessage("Received " + responseLength + " bytes");
+        return responseLength;
+    }
+
+    /**
+     * Lists a directory on the server a page at a time with LIST format
+     * directory-path [after-name] page-size, writing the entries of each page to
+     * out a line at a time. Each page starts after the last name of the one
+     * before, so only a page of the listing is ever held in memory however large
+     * the directory is, and entries created or deleted while it is being listed
+     * never cause others to be skipped or listed twice.
+     * 
+     * @param format  f to list names or v to describe each entry, as LIST does
+     * @param dirPath the directory on the server, relative to the current
+     *                directory
+     * @return the number of entries listed
+     * @throws Exception if a LIST was refused, or the server could not be written
+     *                   to or read from
+     */
+    public long listDirPaged(String format, String dirPath, int pageSize, OutputStream out) throws Exception {
+        long numEntries = 0;
+        int numPages = 0;
+        String afterName = null;
+        while (true) {
+            String cmd = "list " + format + " " + dirPath + ((afterName == null) ? "" : " " + afterName) + " "
+                    + pageSize;
+            writeToServer(cmd);
+            flushToServer();
+            String page = readFromServer();
+            if (responseIsError(page)) {
+                throw new IOException("Call failed, " + cmd + ": " + page);
+            }
+            numPages++;
+            List<String> lines = Utils.splitString(page, "\n");
+            for (int i = 1; i < lines.size(); i++) {
+                out.write((lines.get(i) + "\n").getBytes(StandardCharsets.ISO_8859_1));
+            }
+            int numPageEntries = lines.size() - 1;
+            numEntries += numPageEntries;
+            if (numPageEntries < pageSize) {
+                break;
+            }
+            String lastEntry = lines.get(lines.size() - 1);
+            // in verbose listings the name is followed by the entry's other details
+            afterName = format.equalsIgnoreCase("v")
+                    ? lastEntry.substring("Name: ".length(), lastEntry.indexOf("    Path: "))
+                    : lastEntry;
+        }
+        logMessage("Listed " + numEntries + " entries of " + dirPath + " in " + numPages + " pages");
+        return numEntries;
+    }
+
+    /**
+     * Retrieves a file from the server into localFile. If localFile already holds
+     * the start of what the server sends, e.g. from an earlier transfer that was
+     * interrupted, only the rest is requested by giving RETR an offset, and it is
+     * appended to what is already there.
+     * 
+     * @param fileSpec the file on the server, relative to the current directory
+     * @return the number of bytes received
+     * @throws Exception if RETR was refused, or the server could not be written to
+     *                   or read from
+     */
+    public long retrieveFile(String fileSpec, Path localFile) throws Exception {
+        long bytesKept = Files.exists(localFile) ? Files.size(localFile) : 0;
+        long offset = bytesKept;
+        // in Base64 every 3 bytes of the file are sent as 4, so resume from the last whole group
+        if (isSentInBase64(fileSpec)) {
+            offset = bytesKept / 4 * 3;
+            bytesKept = bytesKept / 4 * 4;
+        }
+        try (FileChannel fileChannel = FileChannel.open(localFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            fileChannel.truncate(bytesKept);
+        }
+        evalCommand((offset > 0) ? "retr " + fileSpec + " " + offset : "retr " + fileSpec);
+        String retrRes = logHistory.get(logHistory.size() - 1);
+        if (responseIsError(retrRes)) {
+            throw new IOException("Could not retrieve " + fileSpec + ": " + retrRes);
+        }
+        try (OutputStream out = new BufferedOutputStream(
+                Files.newOutputStream(localFile, StandardOpenOption.APPEND), FILE_BUFFER_SIZE)) {
+            return evalCommand("send", out);
+        }
+    }
+
+    /**
+     * Retrieves a file from the server into localFile over numSegments extra
+     * connections at once, each logged in the same way as this one and
+     * retrieving its own range of the file with RETR file-spec offset length in
+     * binary mode. localFile is set to the file's size up front and each range is
+     * written straight to its place in it, so the ranges can arrive in any order.
+     * On a link with high latency a single connection spends most of its time
+     * waiting for acknowledgements, so several in parallel can fill more of it.
+     * 
+     * @param fileSpec the file on the server, relative to the current directory
+     * @return the number of bytes received
+     * @throws Exception if a RETR was refused, or the server could not be written
+     *                   to or read from on any of the connections
+     */
+    public long retrieveFileSegmented(String fileSpec, Path localFile, int numSegments) throws Exception {
+        if (numSegments < 1) {
+            throw new IllegalArgumentException("At least one segment must be retrieved");
+        }
+        List<SFTPClient> segmentClients = new ArrayList<SFTPClient>(numSegments);
+        ExecutorService executor = Executors.newFixedThreadPool(numSegments);
+        try (FileChannel fileChannel = FileChannel.open(localFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // the first connection also finds out how large the file is, to split it up
+            segmentClients.add(openParallelClient());
+            String retrRes = segmentClients.get(0).evalCheckedCommand("retr " + fileSpec);
+            long fileSize = Long.parseLong(Utils.splitString(retrRes.substring(1), " ").get(0));
+            numSegments = (int) Math.max(1, Math.min(numSegments, fileSize));
+            long segmentSize = (fileSize + numSegments - 1) / numSegments;
+            if (fileSize > 0) {
+                fileChannel.write(ByteBuffer.wrap(new byte[1]), fileSize - 1);
+            }
+            List<Future<Long>> segments = new ArrayList<Future<Long>>(numSegments);
+            for (int i = 0; i < numSegments; i++) {
+                SFTPClient segmentClient = (i == 0) ? segmentClients.get(0) : openParallelClient();
+                if (i > 0) {
+                    segmentClients.add(segmentClient);
+                }
+                long offset = i * segmentSize;
+                long length = Math.min(segmentSize, fileSize - offset);
+                segments.add(executor.submit(
+                        () -> segmentClient.retrieveSegment(fileSpec, offset, length, fileChannel)));
+            }
+            long bytesReceived = 0;
+            for (Future<Long> segment : segments) {
+                bytesReceived += segment.get();
+            }
+            logMessage("Received " + bytesReceived + " bytes over " + numSegments + " connections");
+            return bytesReceived;
+        } finally {
+            executor.shutdownNow();
+            for (SFTPClient segmentClient : segmentClients) {
+                segmentClient.closeConnection();
+            }
+        }
+    }
+
+    /**
+     * Stores localFile on the server as numParts parts sent over as many extra
+     * connections at once, each logged in the same way as this one. Each part is
+     * sent with PART along with its CRC-32, which the server checks it against.
+     * Once every part has been saved the server is told to JOIN them into
+     * fileSpec according to mode, as STOR would.
+     * 
+     * @param mode     one of the modes accepted by JOIN: new, old or app
+     * @param fileSpec the file on the server, relative to the current directory
+     * @return the number of bytes sent
+     * @throws Exception if a part or the JOIN was refused, or the server could
+     *                   not be written to or read from on any of the connections
+     */
+    public long storeFileMultipart(String mode, String fileSpec, Path localFile, int numParts) throws Exception {
+        if (numParts < 1) {
+            throw new IllegalArgumentException("At least one part must be sent");
+        }
+        long fileSize = Files.size(localFile);
+        numParts = (int) Math.max(1, Math.min(numParts, fileSize));
+        long partSize = (fileSize + numParts - 1) / numParts;
+        List<SFTPClient> partClients = new ArrayList<SFTPClient>(numParts);
+        ExecutorService executor = Executors.newFixedThreadPool(numParts);
+        try {
+            List<Future<Long>> parts = new ArrayList<Future<Long>>(numParts);
+            for (int i = 0; i < numParts; i++) {
+                SFTPClient partClient = openParallelClient();
+                partClients.add(partClient);
+                long offset = i * partSize;
+                long length = Math.min(partSize, fileSize - offset);
+                parts.add(executor.submit(() -> partClient.storePart(fileSpec, localFile, offset, length)));
+            }
+            long bytesSent = 0;
+            for (Future<Long> part : parts) {
+                bytesSent += part.get();
+            }
+            evalCommand("join " + mode + " " + fileSpec + " " + fileSize);
+            String joinRes = logHistory.get(logHistory.size() - 1);
+            if (responseIsError(joinRes)) {
+                throw new IOException("Could not store " + fileSpec + ": " + joinRes);
+            }
+            return bytesSent;
+        } finally {
+            executor.shutdownNow();
+            for (SFTPClient partClient : partClients) {
+                partClient.closeConnection();
+            }
+        }
+    }
+
+    /**
+     * Stores localFile on the server in binary mode, streaming it from disk. With
+     * the mode "res", carries on with an upload to fileSpec that was interrupted,
+     * sending only the part of localFile the server hasn't already received.
+     * 
+     * @param mode     one of the modes accepted by STOR: new, old, app or res
+     * @param fileSpec the file on the server, relative to the current directory
+     * @throws Exception if binary mode isn't selected, STOR or SIZE were refused,
+     *                   or the server could not be written to or read from
+     */
+    public void storeFile(String mode, String fileSpec, Path localFile) throws Exception {
+        if (!binaryMode) {
+            throw new IllegalStateException("Files can only be stored from disk in binary mode");
+        }
+        evalCommand("stor " + mode + " " + fileSpec);
+        String storRes = logHistory.get(logHistory.size() - 1);
+        if (responseIsError(storRes)) {
+            throw new IOException("Could not store " + fileSpec + ": " + storRes);
+        }
+        // "+<bytes> bytes already received, send the rest"
+        long offset = mode.equals("res") ? Long.parseLong(Utils.splitString(storRes.substring(1), " ").get(0)) : 0;
+        evalCommand("size " + (Files.size(localFile) - offset));
+        String sizeRes = logHistory.get(logHistory.size() - 1);
+        if (responseIsError(sizeRes)) {
+            throw new IOException("Could not store " + fileSpec + ": " + sizeRes);
+        }
+        try (InputStream in = Files.newInputStream(localFile)) {
+            in.skipNBytes(offset);
+            evalFileContents(in);
+        }
+    }
+
+    /**
+     * Sends the raw contents of a file following a successful SIZE call in binary
+     * mode, streaming exactly as many bytes as were given to SIZE from in. In
+     * compressed mode they are deflated as they are sent. Then awaits the
+     * server's response and logs it.
+     * 
+     * @throws Exception if in ended early, or the server could not be written to
+     *                   or read from
+     */
+    public void evalFileContents(InputStream in) throws Exception {
+        if (!isAwaitingFileBytes()) {
+            throw new IllegalStateException("The server is not waiting for a file in binary mode");
+        }
+        long bytesRemaining = pendingStoreSize;
+        pendingStoreSize = -1;
+        if (compressedMode) {
+            writeDeflatedFrames(in, bytesRemaining);
+            logMessage(readFromServer());
+            return;
+        }
+        try {
+            byte[] buffer = new byte[FILE_BUFFER_SIZE];
+            while (bytesRemaining > 0) {
+                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, bytesRemaining));
+                if (bytesRead == -1) {
+                    throw new EOFException("File ended before the number of bytes given to SIZE were sent");
+                }
+                outToServer.write(buffer, 0, bytesRead);
+                bytesRemaining -= bytesRead;
+            }
+            outToServer.flush();
+        } catch (Exception e) {
+            logMessage("Could not write to server " + hostname + ":" + port);
+            throw e;
+        }
+        logMessage(readFromServer());
+    }
+
+    /**
+     * Deflates length bytes from in and sends them as frames, followed by the end
+     * frame.
+     * 
+     * @throws Exception if in ended early, or the server could not be written to
+     */
+    private void writeDeflatedFrames(InputStream in, long length) throws Exception {
+        Deflater deflater = new Deflater(compressionLevel);
+        byte[] buffer = new byte[FILE_BUFFER_SIZE];
+        byte[] frame = new byte[FILE_BUFFER_SIZE];
+        long bytesRemaining = length;
+        long numBytesSent = 0;
+        try {
+            while (!deflater.finished()) {
+                if (deflater.needsInput() && bytesRemaining > 0) {
+                    int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, bytesRemaining));
+                    if (bytesRead == -1) {
+                        throw new EOFException("File ended before the number of bytes given to SIZE were sent");
+                    }
+                    deflater.setInput(buffer, 0, bytesRead);
+                    bytesRemaining -= bytesRead;
+                }
+                if (bytesRemaining == 0) {
+                    deflater.finish();
+                }
+                int frameLength = DeflateFrames.deflateFrame(deflater, frame);
+                outToServer.write(frame, 0, frameLength);
+                numBytesSent += frameLength;
+            }
+            outToServer.write(DeflateFrames.endFrame());
+            outToServer.flush();
+        } catch (Exception e) {
+            logMessage("Could not write to server " + hostname + ":" + port);
+            throw e;
+        } finally {
+            deflater.end();
+        }
+        Utils.logMessage("Sent " + length + " bytes compressed to " + (numBytesSent + DeflateFrames.HEADER_LENGTH));
+    }
+
+    /**
+     * Sends a command call to the server, and returns the response without
+     * decoding or logging it.
+     * 
+     * @param cmd the string form of the desired command call
+     * @return a buffer holding the response
+     * @throws Exception if the server could not be written to or read from
+     */
+    public ByteBuffer evalCommandForBytes(String cmd) throws Exception {
+        writeToServer(cmd);
+        flushToServer();
+        try {
+            return inFromServer.readResponseBytes();
+        } catch (Exception e) {
+            logMessage("Could not read server response from " + hostname + ":" + port);
+            throw e;
+        }
+    }
+
+    /**
+     * Opens another connection to the same server, logged in and in the same
+     * directory as this one, with binary mode selected.
+     * 
+     * @throws Exception if any of the calls to set up the connection failed
+     */
+    private SFTPClient openParallelClient() throws Exception {
+        SFTPClient segmentClient = new SFTPClient(this);
+        if (segmentClient.isClosed()) {
+            throw new IOException("Could not open another connection to " + hostname + ":" + port);
+        }
+        List<String> setupCmds = new ArrayList<String>(sessionSetupCmds);
+        setupCmds.add("type b");
+        List<String> responses = segmentClient.evalCommands(setupCmds);
+        for (int i = 0; i < responses.size(); i++) {
+            if (responseIsError(responses.get(i))) {
+                segmentClient.closeConnection();
+                throw new IOException("Could not set up another connection, " + setupCmds.get(i) + ": "
+                        + responses.get(i));
+            }
+        }
+        return segmentClient;
+    }
+
+    /**
+     * Retrieves length bytes of fileSpec starting from offset, writing them to the
+     * same place in fileChannel.
+     * 
+     * @return the number of bytes received
+     */
+    private long retrieveSegment(String fileSpec, long offset, long length, FileChannel fileChannel)
+            throws Exception {
+        evalCheckedCommand("retr " + fileSpec + " " + offset + " " + length);
+        long bytesReceived = evalCommand("send", new FileRangeOutputStream(fileChannel, offset));
+        evalCommand("done");
+        return bytesReceived;
+    }
+
+    /**
+     * Sends one part of localFile, following it with its contents.
+     * 
+     * @return the number of bytes sent
+     */
+    private long storePart(String fileSpec, Path localFile, long offset, long length) throws Exception {
+        try (FileChannel fileChannel = FileChannel.open(localFile, StandardOpenOption.READ)) {
+            CRC32 checksum = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(FILE_BUFFER_SIZE);
+            for (long position = offset; position < offset + length;) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), offset + length - position));
+                int bytesRead = fileChannel.read(buffer, position);
+                if (bytesRead == -1) {
+                    throw new EOFException(localFile + " is shorter than the part");
+                }
+                checksum.update(buffer.flip());
+                position += bytesRead;
+            }
+            evalCheckedCommand("part " + fileSpec + " " + offset + " " + Long.toHexString(checksum.getValue()));
+            evalCheckedCommand("size " + length);
+            evalFileContents(Channels.newInputStream(fileChannel.position(offset)));
+            String partRes = logHistory.get(logHistory.size() - 1);
+            if (responseIsError(partRes)) {
+                throw new IOException("Could not store part at " + offset + ": " + partRes);
+            }
+        }
+        evalCommand("done");
+        return length;
+    }
+
+    /**
+     * @return the response to cmd
+     * @throws IOException if the response is an error
+     */
+    private String evalCheckedCommand(String cmd) throws Exception {
+        evalCommand(cmd);
+        String res = logHistory.get(logHistory.size() - 1);
+        if (responseIsError(res)) {
+            throw new IOException("Call failed, " + cmd + ": " + res);
         }
+        return res;
+    }
+
+    private void initialize(String hostname, int port) {
+        this.hostname = hostname;
+        this.port = port;
+        logHistory = new ArrayList<String>();
+        sessionSetupCmds = new ArrayList<String>();
+        pendingRetrieveSize = -1;
+        pendingStoreSize = -1;
+        maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        compressionLevel = DeflateFrames.DEFAULT_LEVEL;
     }
 
     /**
@@ -76,28 +653,156 @@ public class SFTPClient {
      */
     private void connectToServer() {
         try {
-            // Attempt to connect to server
-            clientSocket = new Socket(HOSTNAME, PORT);
-            logMessage("Successfully connected to " + HOSTNAME + " on port " + PORT);
-            // Open the stream that the server is sending to the client
-            inFromServer = new DataInputStream(clientSocket.getInputStream());
-            // Create stream to send input to server
-            outToServer = new DataOutputStream(clientSocket.getOutputStream());
-            // Get and print server welcome message
-            String welcomeMessage = readFromServer();
-            logMessage(welcomeMessage);
-            // If welcome message indicates service unavailable, close connection
-            if (responseIsError(welcomeMessage)) {
-                closeConnection();
-            }
+            openConnection();
         } catch (Exception e) {
-            logMessage("Could not connect to " + HOSTNAME + ":" + PORT);
+            logMessage("Could not connect to " + hostname + ":" + port);
             e.printStackTrace();
             closeConnection();
             System.exit(0);
         }
     }
 
+    /**
+     * Connects to the prescribed server, including opening input and output
+     * streams to it, and reads its welcome message. If the message indicates
+     * the service is unavailable, the connection is closed.
+     * 
+     * @throws Exception if the server could not be connected to or read from
+     */
+    private void openConnection() throws Exception {
+        // Attempt to connect to server
+        clientSocket = new Socket(hostname, port);
+        logMessage("Successfully connected to " + hostname + " on port " + port);
+        // Open the stream that the server is sending to the client
+        inFromServer = new ResponseReader(clientSocket.getInputStream());
+        // Create stream to send input to server, buffered so that pipelined
+        // command calls can go out together
+        outToServer = new DataOutputStream(
+                new BufferedOutputStream(clientSocket.getOutputStream(), FILE_BUFFER_SIZE));
+        // Get and print server welcome message
+        String welcomeMessage = readFromServer();
+        logMessage(welcomeMessage);
+        // If welcome message indicates service unavailable, close connection
+        if (responseIsError(welcomeMessage)) {
+            closeConnection();
+        }
+    }
+
+    /**
+     * Sends file contents typed as a command in binary mode. Each char is sent as
+     * a single byte, and any beyond the number given to SIZE are dropped, as the
+     * server would do with a line of text.
+     */
+    private void evalFileContents(String contents) throws Exception {
+        byte[] fileBytes = contents.getBytes(StandardCharsets.ISO_8859_1);
+        if (fileBytes.length < pendingStoreSize) {
+            logMessage("Expected " + pendingStoreSize + " bytes of file contents in binary mode, got "
+                    + fileBytes.length);
+            return;
+        }
+        evalFileContents(new ByteArrayInputStream(fileBytes));
+    }
+
+    /**
+     * Awaits the response to a command call that has been sent, then logs it and
+     * updates the transfer state to match.
+     * 
+     * @return the response
+     * @throws Exception if the server could not be read from
+     */
+    private String readCommandResponse(String cmd) throws Exception {
+        String commandRes;
+        if (isBinarySend(cmd)) {
+            ByteArrayOutputStream fileBytes = new ByteArrayOutputStream();
+            readFileFromServer(fileBytes);
+            commandRes = new String(fileBytes.toByteArray(), StandardCharsets.ISO_8859_1);
+        } else {
+            commandRes = readFromServer();
+        }
+        logMessage(commandRes);
+        updateTransferState(cmd, commandRes);
+        updateSessionSetup(cmd, commandRes);
+
+        if (cmd.equals("done")) {
+            closeConnection();
+        }
+        return commandRes;
+    }
+
+    /**
+     * @return true if the server sends fileSpec in Base64, which it does for any
+     *         file that isn't text unless binary mode is selected. Matches the
+     *         server's FileSystem.getFileType().
+     */
+    private boolean isSentInBase64(String fileSpec) {
+        return !binaryMode && !(fileSpec.endsWith(".txt") || fileSpec.endsWith(".csv"));
+    }
+
+    /**
+     * @return true if cmd is a SEND that the server will answer with a raw file,
+     *         as its RETR was accepted in binary mode
+     */
+    private boolean isBinarySend(String cmd) {
+        return pendingRetrieveSize >= 0 && Utils.splitString(cmd, "\\s+").equals(List.of("send"));
+    }
+
+    /**
+     * Keeps track of the server's transfer state for binary mode, in which files
+     * are sent without a terminating '\0', based on the command that was just
+     * called and its response.
+     */
+    private void updateTransferState(String cmd, String res) {
+        List<String> commandArgs = Utils.splitString(cmd, "\\s+");
+        boolean callSucceeded = !responseIsError(res);
+        switch (commandArgs.get(0)) {
+            case "type":
+                if (callSucceeded && commandArgs.size() == 2) {
+                    binaryMode = commandArgs.get(1).equals("b") || commandArgs.get(1).equals("z");
+                    compressedMode = commandArgs.get(1).equals("z");
+                }
+                break;
+            case "retr":
+                // "+<size> bytes will be sent", or "... sent compressed" in compressed mode
+                pendingRetrieveSize = (binaryMode && callSucceeded && commandArgs.size() >= 2)
+                        ? Long.parseLong(Utils.splitString(res.substring(1), " ").get(0))
+                        : -1;
+                pendingRetrieveCompressed = compressedMode;
+                break;
+            case "size":
+                pendingStoreSize = (binaryMode && callSucceeded && commandArgs.size() == 2)
+                        ? Long.parseLong(commandArgs.get(1))
+                        : -1;
+                break;
+            case "send":
+            case "stop":
+            case "user":
+                pendingRetrieveSize = -1;
+                break;
+        }
+    }
+
+    /**
+     * Keeps track of the calls that logged in and changed directory, so that
+     * another connection can be brought to the same state.
+     */
+    private void updateSessionSetup(String cmd, String res) {
+        if (responseIsError(res)) {
+            return;
+        }
+        switch (Utils.splitString(cmd, "\\s+").get(0)) {
+            case "user":
+                // starts a new login, which replaces the old one
+                sessionSetupCmds.clear();
+                sessionSetupCmds.add(cmd);
+                break;
+            case "acct":
+            case "pass":
+            case "cdir":
+                sessionSetupCmds.add(cmd);
+                break;
+        }
+    }
+
     private void connectToKeyboardStream() {
         inFromUser = new BufferedReader(new InputStreamReader(System.in));
     }
@@ -112,7 +817,7 @@ public class SFTPClient {
             inFromServer.close();
             outToServer.close();
         } catch (Exception e) {
-            logMessage("Could not close connection to " + HOSTNAME + ":" + PORT + " gracefully");
+            logMessage("Could not close connection to " + hostname + ":" + port + " gracefully");
         }
     }
 
@@ -133,7 +838,7 @@ public class SFTPClient {
     }
 
     /**
-     * Polls the DataInputStream from the connectected server for characters, until
+     * Polls the InputStream from the connectected server for characters, until
      * a terminating '\0' is reached. This is a blocking method.
      * 
      * @return the message received from the server
@@ -141,22 +846,56 @@ public class SFTPClient {
      */
     private String readFromServer() throws Exception {
         try {
-            StringBuilder serverRes = new StringBuilder();
-            char c = (char) inFromServer.read();
-            while (c != '\0') {
-                serverRes.append(c);
-                c = (char) inFromServer.read();
+            return inFromServer.readResponse();
+        } catch (Exception e) {
+            logMessage("Could not read server response from " + hostname + ":" + port);
+            throw e;
+        }
+    }
+
+    /**
+     * Polls the InputStream from the connected server, writing everything received
+     * to out until a terminating '\0' is reached. This is a blocking method.
+     * 
+     * @return the number of bytes written to out
+     * @throws Exception if input from the server could not be read
+     */
+    private long readFromServer(OutputStream out) throws Exception {
+        try {
+            return inFromServer.readResponse(out);
+        } catch (Exception e) {
+            logMessage("Could not read server response from " + hostname + ":" + port);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a file sent in binary mode, which is exactly the number of bytes given
+     * in response to RETR, and writes it to out. In compressed mode it is
+     * inflated to that many bytes as it is read. This is a blocking method.
+     * 
+     * @throws Exception if input from the server could not be read
+     */
+    private void readFileFromServer(OutputStream out) throws Exception {
+        long fileSize = pendingRetrieveSize;
+        pendingRetrieveSize = -1;
+        try {
+            if (pendingRetrieveCompressed) {
+                long numBytesRead = inFromServer.readDeflatedFrames(fileSize, out);
+                Utils.logMessage("Received " + fileSize + " bytes compressed to " + numBytesRead);
+                return;
             }
-            return serverRes.toString();
+            inFromServer.readBytes(fileSize, out);
         } catch (Exception e) {
-            logMessage("Could not read server response from " + HOSTNAME + ":" + PORT);
+            logMessage("Could not read file from " + hostname + ":" + port);
             throw e;
         }
     }
 
     /**
      * Sends a message to the currently connected server. A terminating newline is
-     * appended to the message if it is missing.
+     * appended to the message if it is missing. The message is buffered until
+     * flushToServer() is called.
      * 
      * @throws Exception if the server could not be written to
      */
@@ -165,7 +904,16 @@ public class SFTPClient {
             msg = Utils.appendIfMissing(msg, "\n");
             outToServer.writeBytes(msg);
         } catch (Exception e) {
-            logMessage("Could not write to server " + HOSTNAME + ":" + PORT);
+            logMessage("Could not write to server " + hostname + ":" + port);
+            throw e;
+        }
+    }
+
+    private void flushToServer() throws Exception {
+        try {
+            outToServer.flush();
+        } catch (Exception e) {
+            logMessage("Could not write to server " + hostname + ":" + port);
             throw e;
         }
     }
@@ -178,4 +926,29 @@ public class SFTPClient {
         logHistory.add(msg);
         Utils.logMessage(msg);
     }
+
+    /**
+     * Writes to a range of a file with positional writes, so that several
+     * segments of a file can be written to the same channel at once.
+     */
+    private static class FileRangeOutputStream extends OutputStream {
+        private FileChannel fileChannel;
+        private long position;
+
+        FileRangeOutputStream(FileChannel fileChannel, long position) {
+            this.fileChannel = fileChannel;
+            this.position = position;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                position += fileChannel.write(buffer, position);
+            }
+        }
+    }
 }
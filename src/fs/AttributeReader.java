@@ -0,0 +1,109 @@
+package fs;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reads the attributes of many paths at once, such as a batch of the entries
+ * of a directory being listed in full. Each path is read with a single stat
+ * via Files.readAttributes(). A large batch is split into ranges that are read
+ * in parallel on a ForkJoinPool, each writing its results to its own slots, so
+ * the results are always in the order of the paths however the work was
+ * split. Safe to share between threads.
+ */
+public class AttributeReader {
+    public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    // fewer paths than this are read on one thread, as splitting them costs more than it saves
+    private static final int MIN_PATHS_PER_TASK = 128;
+
+    private int parallelism;
+    private ForkJoinPool pool;
+
+    /**
+     * @param parallelism the number of threads paths are read on at once, or 1 to
+     *                    read them all on the calling thread
+     */
+    public AttributeReader(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("At least one thread must read attributes");
+        }
+        this.parallelism = parallelism;
+        if (parallelism > 1) {
+            this.pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                thread.setName("attribute-reader-" + thread.getPoolIndex());
+                return thread;
+            }, null, false);
+        }
+    }
+
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    /**
+     * Reads the size of each of the first count paths into the same index of
+     * sizes, or 0 for a path that couldn't be read, e.g. because it was deleted
+     * after it was listed.
+     */
+    public void readSizes(Path[] paths, int count, long[] sizes) {
+        if (pool == null || count < 2 * MIN_PATHS_PER_TASK) {
+            readSizes(paths, 0, count, sizes);
+            return;
+        }
+        pool.invoke(new ReadSizesTask(paths, 0, count, sizes));
+    }
+
+    /**
+     * Stops the threads once they have read the paths they were given.
+     */
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private static void readSizes(Path[] paths, int from, int to, long[] sizes) {
+        for (int i = from; i < to; i++) {
+            try {
+                sizes[i] = Files.readAttributes(paths[i], BasicFileAttributes.class).size();
+            } catch (IOException e) {
+                sizes[i] = 0; // the same as File.length() gives
+            }
+        }
+    }
+
+    /**
+     * Reads a range of the paths, splitting it in half until the halves are too
+     * small to be worth splitting.
+     */
+    private static class ReadSizesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private Path[] paths;
+        private int from;
+        private int to;
+        private long[] sizes;
+
+        ReadSizesTask(Path[] paths, int from, int to, long[] sizes) {
+            this.paths = paths;
+            this.from = from;
+            this.to = to;
+            this.sizes = sizes;
+        }
+
+        protected void compute() {
+            if (to - from < 2 * MIN_PATHS_PER_TASK) {
+                readSizes(paths, from, to, sizes);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ReadSizesTask(paths, from, middle, sizes), new ReadSizesTask(paths, middle, to, sizes));
+        }
+    }
+}
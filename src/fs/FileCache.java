@@ -0,0 +1,129 @@
+package fs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of small, frequently retrieved files, holding their contents already
+ * encoded the way they are sent to clients. The cache is bounded by the total
+ * number of bytes it holds, and the least recently used entries are evicted to
+ * make room for new ones. Each entry records the size and modification time of
+ * the file it was read from, so a file changed outside of the server is never
+ * served stale. Safe to share between threads.
+ */
+public class FileCache {
+    private long maxBytes;
+    private long maxEntryBytes;
+    private long numBytes;
+    private LinkedHashMap<String, CachedFile> entries;
+    private long numHits;
+    private long numMisses;
+    private long numEvictions;
+
+    /**
+     * @param maxBytes      the total number of bytes the cache may hold, or 0 to
+     *                      disable it
+     * @param maxEntryBytes the size of the largest file that may be cached
+     */
+    public FileCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.entries = new LinkedHashMap<String, CachedFile>(16, 0.75f, true);
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    public long getMaxEntryBytes() {
+        return this.maxEntryBytes;
+    }
+
+    /**
+     * @return the cached contents for key, or null if there are none or they were
+     *         read from a file with a different size or modification time
+     */
+    public synchronized byte[] get(String key, long fileSize, long lastModified) {
+        CachedFile cachedFile = entries.get(key);
+        if (cachedFile == null) {
+            numMisses++;
+            return null;
+        }
+        if (cachedFile.fileSize != fileSize || cachedFile.lastModified != lastModified) {
+            removeEntry(key);
+            numMisses++;
+            return null;
+        }
+        numHits++;
+        return cachedFile.contents;
+    }
+
+    /**
+     * Adds the contents read from a file to the cache, evicting the least recently
+     * used entries if there isn't room for them. Contents larger than the cache
+     * allows are not added.
+     */
+    public synchronized void put(String key, long fileSize, long lastModified, byte[] contents) {
+        if (contents.length > maxBytes || fileSize > maxEntryBytes) {
+            return;
+        }
+        removeEntry(key);
+        entries.put(key, new CachedFile(fileSize, lastModified, contents));
+        numBytes += contents.length;
+        Iterator<Map.Entry<String, CachedFile>> leastRecentlyUsed = entries.entrySet().iterator();
+        while (numBytes > maxBytes) {
+            numBytes -= leastRecentlyUsed.next().getValue().contents.length;
+            leastRecentlyUsed.remove();
+            numEvictions++;
+        }
+    }
+
+    public synchronized void invalidate(String key) {
+        removeEntry(key);
+    }
+
+    public synchronized int getNumEntries() {
+        return entries.size();
+    }
+
+    public synchronized long getNumBytes() {
+        return numBytes;
+    }
+
+    public synchronized long getNumHits() {
+        return numHits;
+    }
+
+    public synchronized long getNumMisses() {
+        return numMisses;
+    }
+
+    public synchronized long getNumEvictions() {
+        return numEvictions;
+    }
+
+    public synchronized String toString() {
+        return "{ Entries: " + entries.size() + ", Bytes: " + numBytes + ", Hits: " + numHits + ", Misses: "
+                + numMisses + ", Evictions: " + numEvictions + " }";
+    }
+
+    private void removeEntry(String key) {
+        CachedFile removed = entries.remove(key);
+        if (removed != null) {
+            numBytes -= removed.contents.length;
+        }
+    }
+
+    private static class CachedFile {
+        private long fileSize;
+        private long lastModified;
+        private byte[] contents;
+
+        CachedFile(long fileSize, long lastModified, byte[] contents) {
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+            this.contents = contents;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package fs;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * What a single stat of a path found: whether it exists, whether it is a
+ * directory, and its size and modification time.
+ */
+public class FileMetadata {
+    private static final FileMetadata MISSING = new FileMetadata(false, false, 0, 0);
+
+    private boolean exists;
+    private boolean directory;
+    private long size;
+    private long lastModified;
+
+    private FileMetadata(boolean exists, boolean directory, long size, long lastModified) {
+        this.exists = exists;
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Stats path, following symbolic links.
+     *
+     * @return the metadata of path, which doesn't exist if path couldn't be
+     *         read
+     */
+    public static FileMetadata read(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new FileMetadata(true, attributes.isDirectory(), attributes.size(),
+                    attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return MISSING; // treated as missing, the same as Files.exists() does
+        }
+    }
+
+    public boolean exists() {
+        return this.exists;
+    }
+
+    public boolean isDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * @return the size of the file in bytes, or 0 if it doesn't exist
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * @return the time the file was last modified, in milliseconds since the
+     *         epoch, or 0 if it doesn't exist
+     */
+    public long getLastModified() {
+        return this.lastModified;
+    }
+}
@@ -5,20 +5,46 @@ import java.util.ArrayList;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.io.File;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
-import java.util.Base64;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.channels.FileChannel;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.UUID;
 
 import server.PendingStorFile;
+import server.TransferEncoding;
+import utils.Base64ChunkEncoder;
 import utils.Utils;
 
 public final class FileSystem {
     private static final String HOME_DIR = "resources/home/";
     private static final String USER_DB = "resources/users.txt";
-    private static final int USER_ID_COL = 0;
-    private static final int ACCOUNT_COL = 1;
-    private static final int PASSWORD_COL = 2;
-    private static List<User> users = readUsers();
+    private static final String STAGING_DIR = "resources/partial/";
+    private static final long DEFAULT_FILE_CACHE_BYTES = 64 * 1024 * 1024;
+    private static final long MAX_CACHED_FILE_BYTES = 1024 * 1024;
+    private static final long DEFAULT_PARTIAL_UPLOAD_TTL_MILLIS = 60 * 60 * 1000;
+    private static UserDatabase userDatabase = new UserDatabase(Paths.get(USER_DB));
+    private static FileCache fileCache = new FileCache(DEFAULT_FILE_CACHE_BYTES, MAX_CACHED_FILE_BYTES);
+    private static PartialUploads partialUploads = new PartialUploads(Paths.get(STAGING_DIR),
+            DEFAULT_PARTIAL_UPLOAD_TTL_MILLIS);
+    private static SharedFileChannels sharedFileChannels = new SharedFileChannels();
+    private static PathLocks pathLocks = new PathLocks(PathLocks.DEFAULT_NUM_STRIPES);
+    private static FsyncPolicy fsyncPolicy = FsyncPolicy.None;
+    private static GroupCommit groupCommit;
+    private static MetadataCache metadataCache = new MetadataCache(Paths.get(HOME_DIR),
+            MetadataCache.DEFAULT_MAX_ENTRIES, MetadataCache.DEFAULT_TTL_MILLIS);
+    private static AttributeReader attributeReader = new AttributeReader(AttributeReader.DEFAULT_PARALLELISM);
+    private static NameIndex nameIndex = new NameIndex(NameIndex.DEFAULT_MAX_DIRS);
 
     private FileSystem() {
         throw new IllegalAccessError("server.FileSystem cannot be instantiated");
@@ -28,27 +54,121 @@ public final class FileSystem {
         return HOME_DIR;
     }
 
+    public static FileCache getFileCache() {
+        return fileCache;
+    }
+
+    /**
+     * Replaces the file cache with an empty one that holds up to maxBytes, or
+     * disables caching if maxBytes is 0.
+     */
+    public static void configureFileCache(long maxBytes) {
+        fileCache = new FileCache(maxBytes, MAX_CACHED_FILE_BYTES);
+    }
+
+    public static MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * Replaces the metadata cache with an empty one that holds up to maxEntries
+     * paths for ttlMillis each, or disables caching if maxEntries is 0.
+     */
+    public static void configureMetadataCache(int maxEntries, long ttlMillis) {
+        metadataCache.shutdown();
+        metadataCache = new MetadataCache(Paths.get(HOME_DIR), maxEntries, ttlMillis);
+    }
+
+    public static AttributeReader getAttributeReader() {
+        return attributeReader;
+    }
+
+    /**
+     * Replaces the reader of directory entries' attributes with one that reads
+     * them on parallelism threads at once, or on the listing's own thread if
+     * parallelism is 1. Should only be called while no directories are being
+     * listed.
+     */
+    public static void configureAttributeReader(int parallelism) {
+        attributeReader.shutdown();
+        attributeReader = new AttributeReader(parallelism);
+    }
+
+    public static NameIndex getNameIndex() {
+        return nameIndex;
+    }
+
+    /**
+     * Replaces the index of generations of file names with an empty one that
+     * indexes up to maxDirs directories. Should only be called while no files
+     * are being stored.
+     */
+    public static void configureNameIndex(int maxDirs) {
+        nameIndex = new NameIndex(maxDirs);
+    }
+
+    public static PathLocks getPathLocks() {
+        return pathLocks;
+    }
+
+    /**
+     * Replaces the path locks with numStripes stripes, or turns locking off if
+     * numStripes is 0. Should only be called while no calls are being handled.
+     */
+    public static void configurePathLocks(int numStripes) {
+        pathLocks = new PathLocks(numStripes);
+    }
+
+    public static FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * Sets how stored files are synced to disk before they are published. Should
+     * only be called while no files are being stored.
+     */
+    public static void configureFsync(FsyncPolicy policy) {
+        if (groupCommit != null) {
+            groupCommit.shutdown();
+            groupCommit = null;
+        }
+        if (policy == FsyncPolicy.Group) {
+            groupCommit = new GroupCommit();
+        }
+        fsyncPolicy = policy;
+    }
+
+    public static PartialUploads getPartialUploads() {
+        return partialUploads;
+    }
+
+    /**
+     * Replaces the record of interrupted uploads with an empty one that keeps each
+     * upload for ttlMillis. Should only be called before any uploads are made.
+     */
+    public static void configurePartialUploads(long ttlMillis) {
+        partialUploads.shutdown();
+        partialUploads = new PartialUploads(Paths.get(STAGING_DIR), ttlMillis);
+    }
+
     /**
      * @return Returns the user with a specified user-id from the FileSystem, or
      *         null if the user doesn't exist.
      */
     public static User getUser(String userId) {
-        for (User user : FileSystem.users) {
-            if (user.getId().equals(userId)) {
-                return user;
-            }
-        }
-        return null;
+        return userDatabase.getUser(userId);
+    }
+
+    public static UserDatabase getUserDatabase() {
+        return userDatabase;
     }
 
     public static boolean pathExists(String relativePath) {
-        Path dir = Paths.get(HOME_DIR + relativePath);
-        return Files.exists(dir);
+        return getMetadata(relativePath).exists();
     }
 
     public static boolean pathIsDirectory(String relativePath) {
-        Path filePath = Paths.get(HOME_DIR + relativePath);
-        return Files.isDirectory(filePath);
+        return getMetadata(relativePath).isDirectory();
     }
 
     public static boolean pathIsFile(String relativePath) {
@@ -68,100 +188,431 @@ public final class FileSystem {
         return true; // path is file
     }
 
-    public static String readDir(String relativePath) {
-        Path dir = Paths.get(HOME_DIR + relativePath);
-        String[] fileNames = dir.toFile().list();
+    /**
+     * Opens the directory at relativePath to be listed an entry at a time, in
+     * whatever order the file system keeps them, so that listing it takes the
+     * same memory however many entries it has. The stream must be closed once
+     * the listing is done.
+     * 
+     * @throws IOException if the directory could not be opened
+     */
+    public static DirectoryStream<Path> openDir(String relativePath) throws IOException {
+        return Files.newDirectoryStream(getPath(relativePath));
+    }
 
-        StringBuilder dirListBuilder = new StringBuilder(relativePath + "\n");
-        for (int i = 0; i < fileNames.length; i++) {
-            dirListBuilder.append(fileNames[i]);
-            if (i < (fileNames.length - 1)) {
-                dirListBuilder.append("\n");
+    /**
+     * Reads a page of the directory at relativePath: the first pageSize entries
+     * whose names sort after afterName. Pages are in name order, so the last
+     * name of one page is where the next starts, and entries created or deleted
+     * in the meantime never shift a page. Only pageSize entries are held at a
+     * time however many the directory has, at the cost of reading the whole
+     * directory for each page.
+     * 
+     * @param afterName the last name of the previous page, or null for the first
+     *                  page
+     * @return the paths of the entries, in name order, with fewer than pageSize
+     *         of them once the end of the directory has been reached
+     * @throws IOException if the directory could not be read
+     */
+    public static List<Path> readDirPage(String relativePath, String afterName, int pageSize) throws IOException {
+        // holds the smallest names seen so far, with the largest of them at its head
+        PriorityQueue<String> page = new PriorityQueue<String>(pageSize + 1, Comparator.reverseOrder());
+        try (DirectoryStream<Path> entries = openDir(relativePath)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (afterName != null && name.compareTo(afterName) <= 0) {
+                    continue;
+                }
+                if (page.size() == pageSize && name.compareTo(page.peek()) >= 0) {
+                    continue; // sorts after the whole page so far
+                }
+                page.offer(name);
+                if (page.size() > pageSize) {
+                    page.poll();
+                }
             }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
         }
-        return dirListBuilder.toString();
-    }
-
-    public static String readDirVerbose(String relativePath) {
-        Path dir = Paths.get(HOME_DIR + relativePath);
-        File[] files = dir.toFile().listFiles();
-
-        StringBuilder dirListBuilder = new StringBuilder(relativePath + "\n");
-        relativePath = Utils.appendIfMissing(relativePath, "/");
-        for (int i = 0; i < files.length; i++) {
-            dirListBuilder.append("Name: " + files[i].getName() + 
-                "    Path: " + relativePath + files[i].getName() + 
-                "    Size: " + files[i].length() + " Bytes"
-            );
-            if (i < (files.length - 1)) {
-                dirListBuilder.append("\n");
-            }
+        Path dir = getPath(relativePath);
+        String[] names = page.toArray(new String[page.size()]);
+        Arrays.sort(names);
+        List<Path> entries = new ArrayList<Path>(names.length);
+        for (String name : names) {
+            entries.add(dir.resolve(name));
         }
-        return dirListBuilder.toString();
+        return entries;
+    }
+
+    /**
+     * Reads the sizes of a batch of entries listed from a directory, so that they
+     * can be described in full as LIST V does. The entries' attributes are read
+     * in parallel if there are enough of them, but each size is always put in
+     * the same index of sizes as its entry.
+     */
+    public static void readDirEntrySizes(Path[] entries, int count, long[] sizes) {
+        attributeReader.readSizes(entries, count, sizes);
+    }
+
+    /**
+     * @return the line naming entry in a directory listing, as LIST F does
+     */
+    public static String formatDirEntry(Path entry) {
+        return entry.getFileName().toString();
+    }
+
+    /**
+     * @param relativePath the directory entry was listed from
+     * @param size         the size of entry, from readDirEntrySizes()
+     * @return the line describing entry in full in a directory listing, as LIST V
+     *         does
+     */
+    public static String formatDirEntry(String relativePath, Path entry, long size) {
+        String name = entry.getFileName().toString();
+        return "Name: " + name + "    Path: " + Utils.appendIfMissing(relativePath, "/") + name + "    Size: " + size
+                + " Bytes";
     }
 
     public static void writeFile(String relativeFilePath, String data) {
-        try {
-            Path filePath = Paths.get(HOME_DIR + relativeFilePath);
-            Files.write(filePath, data.getBytes());
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        writeFile(relativeFilePath, data.getBytes());
     }
 
     public static void writeFile(String relativeFilePath, String data, StandardOpenOption option) {
+        writeFile(relativeFilePath, data.getBytes(), option);
+    }
+
+    /**
+     * Writes data to the file at relativeFilePath. Unless it is appended to, the
+     * file is written in full to a staging file first and then published in
+     * one step, in the same way as an uploaded file. The options are honored as
+     * Files.write() would: with CREATE_NEW the file must not exist yet, and
+     * without CREATE or CREATE_NEW it must, which is checked while the file is
+     * locked so that nothing can store it in between. No options means CREATE,
+     * TRUNCATE_EXISTING and WRITE.
+     */
+    public static void writeFile(String relativeFilePath, byte[] data, StandardOpenOption... options) {
+        Path filePath = getPath(relativeFilePath);
+        List<StandardOpenOption> optionList = Arrays.asList(options);
+        if (optionList.contains(StandardOpenOption.APPEND)) {
+            try {
+                PathLocks.Locked locked = pathLocks.lockForWriting(filePath);
+                try {
+                    Files.write(filePath, data, options);
+                    sync(filePath);
+                    invalidateCachedFile(relativeFilePath);
+                } finally {
+                    locked.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        Path stagingFile = partialUploads.getStagingDir().resolve(UUID.randomUUID() + ".part");
         try {
-            Path filePath = Paths.get(HOME_DIR + relativeFilePath);
-            Files.write(filePath, data.getBytes(), option);
+            Files.createDirectories(stagingFile.getParent());
+            Files.write(stagingFile, data, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            sync(stagingFile);
+            PathLocks.Locked locked = pathLocks.lockForWriting(filePath);
+            try {
+                if (optionList.contains(StandardOpenOption.CREATE_NEW)
+                        && Files.exists(filePath, LinkOption.NOFOLLOW_LINKS)) {
+                    throw new FileAlreadyExistsException(filePath.toString());
+                }
+                if (!optionList.isEmpty() && !optionList.contains(StandardOpenOption.CREATE)
+                        && !optionList.contains(StandardOpenOption.CREATE_NEW) && !Files.exists(filePath)) {
+                    throw new NoSuchFileException(filePath.toString());
+                }
+                moveAtomically(stagingFile, filePath);
+                invalidateCachedFile(relativeFilePath);
+                nameIndex.add(filePath);
+            } finally {
+                locked.close();
+            }
+            sync(filePath.getParent());
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            try {
+                Files.deleteIfExists(stagingFile);
+            } catch (IOException e) {
+                Utils.logMessage("Could not delete staging file " + stagingFile);
+            }
         }
     }
 
     /**
-     * Takes an object representing the information from a STOR and SIZE call, and
-     * calls the appropiate method to generate the file or modify the existing one.
+     * Opens a channel to read the file at relativeFilePath, so that it can be
+     * streamed rather than read into memory as a whole. The channel is shared with
+     * every other transfer of the same file, so it must only be read from with
+     * positional reads, and released rather than closed. Files are only ever
+     * replaced as a whole, so this doesn't wait for anything storing the file,
+     * and the channel keeps reading the version it opened after it is replaced.
+     * 
+     * @throws IOException if the file could not be opened
      */
-    public static void writeFile(PendingStorFile storFile) {
-        switch (storFile.getWriteMode()) {
-            case "new":
-                writeFile(storFile.getFilePath(), storFile.getClampedBytesToWrite(), StandardOpenOption.CREATE_NEW);
-                break;
+    public static SharedFileChannel openSharedFileChannel(String relativeFilePath) throws IOException {
+        return sharedFileChannels.acquire(getPath(relativeFilePath));
+    }
+
+    public static SharedFileChannels getSharedFileChannels() {
+        return sharedFileChannels;
+    }
+
+    /**
+     * Reads a small file into memory, encoded the way it is sent to the client.
+     * Goes through the file cache, so that a file which is retrieved often is only
+     * read and encoded once for as long as it stays unchanged.
+     * 
+     * @param fileSize the size of the file when it was selected for retrieval
+     * @return the encoded file contents, or null if the file is too large to be
+     *         cached (or caching is disabled) or its size is no longer fileSize,
+     *         in which case it should be streamed instead
+     * @throws IOException if the file could not be read
+     */
+    public static byte[] readCachedFile(String relativeFilePath, long fileSize, TransferEncoding encoding)
+            throws IOException {
+        FileCache cache = fileCache;
+        if (!cache.isEnabled() || fileSize > cache.getMaxEntryBytes()) {
+            return null;
+        }
+        Path filePath = getPath(relativeFilePath);
+        FileMetadata metadata = metadataCache.get(filePath);
+        if (metadata.getSize() != fileSize) {
+            return null;
+        }
+        long lastModified = metadata.getLastModified();
+        String cacheKey = getCacheKey(relativeFilePath, encoding);
+        byte[] contents = cache.get(cacheKey, fileSize, lastModified);
+        if (contents != null) {
+            return contents;
+        }
+        byte[] fileBytes = Files.readAllBytes(filePath);
+        if (fileBytes.length != fileSize) { // changed since its attributes were read
+            return null;
+        }
+        if (encoding == TransferEncoding.Base64) {
+            contents = new byte[Base64ChunkEncoder.encodedLength(fileBytes.length)];
+            Base64ChunkEncoder.encode(fileBytes, fileBytes.length, contents);
+        } else {
+            contents = fileBytes;
+        }
+        cache.put(cacheKey, fileSize, lastModified, contents);
+        return contents;
+    }
+
+    /**
+     * Drops any cached contents and metadata of the file at relativeFilePath,
+     * and stops later transfers sharing a channel opened before the change.
+     * Should be called whenever the server changes the file.
+     */
+    public static void invalidateCachedFile(String relativeFilePath) {
+        for (TransferEncoding encoding : TransferEncoding.values()) {
+            fileCache.invalidate(getCacheKey(relativeFilePath, encoding));
+        }
+        metadataCache.invalidate(getPath(relativeFilePath));
+        sharedFileChannels.detach(getPath(relativeFilePath));
+    }
+
+    /**
+     * Opens a channel to write the contents of the file selected by a STOR call to
+     * a staging file, so that they can be streamed to disk as they arrive without
+     * touching the file itself until all of them have. A resumed upload carries
+     * on from the end of the contents committed before it was interrupted.
+     * 
+     * @throws IOException if the staging file could not be opened
+     */
+    public static FileChannel openStagingChannel(PendingStorFile storFile) throws IOException {
+        Path stagingFile = storFile.getStagingFile();
+        if (stagingFile == null) {
+            Path stagingDir = partialUploads.getStagingDir();
+            Files.createDirectories(stagingDir);
+            stagingFile = stagingDir.resolve(UUID.randomUUID() + ".part");
+            storFile.setStagingFile(stagingFile);
+            return FileChannel.open(stagingFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+        FileChannel fileChannel = FileChannel.open(stagingFile, StandardOpenOption.WRITE);
+        fileChannel.truncate(storFile.getNumBytesCommitted());
+        fileChannel.position(storFile.getNumBytesCommitted());
+        return fileChannel;
+    }
+
+    /**
+     * Stores the staged contents of a completed upload to the file selected by its
+     * STOR call. Depending on the write mode the file is created (new), replaced
+     * (old) or appended to (app). If a new file was created by someone else in
+     * the meantime, the upload is stored to a new generation of it instead, and
+     * storFile's path is updated to match.
+     * 
+     * @throws IOException if the file could not be stored
+     */
+    public static void commitStagedFile(PendingStorFile storFile) throws IOException {
+        storFile.setFilePath(commitStagedFile(storFile.getStagingFile(), storFile.getFilePath(),
+                storFile.getWriteMode()));
+    }
+
+    /**
+     * Stores the contents of stagingFile to the file at relativeFilePath, in the
+     * same way as commitStagedFile(PendingStorFile). Used for uploads that were
+     * staged some other way, such as the parts of a multipart upload. The file
+     * is locked for writing while it is stored, so appends to the same file
+     * never interleave. A new or replaced file is published with an atomic
+     * move, so until then anyone reading the file carries on with the old
+     * version, and is never held up.
+     * 
+     * @return the path of the file that was stored to, which for a new file may
+     *         be a new generation of relativeFilePath
+     * @throws IOException if the file could not be stored
+     */
+    public static String commitStagedFile(Path stagingFile, String relativeFilePath, String writeMode)
+            throws IOException {
+        // synced before the file is locked, so that nothing waits on the disk for it
+        sync(stagingFile);
+        String storedFilePath = relativeFilePath;
+        while (true) {
+            Path filePath = getPath(storedFilePath);
+            boolean stored = false;
+            PathLocks.Locked locked = pathLocks.lockForWriting(filePath);
+            try {
+                if (Files.isDirectory(filePath)) {
+                    throw new IOException(relativeFilePath + " is a directory");
+                }
+                boolean fileExists = Files.exists(filePath);
+                if (!writeMode.equals("new") || !fileExists) {
+                    // a file deleted since STOR APP found it is created, as it would have been then
+                    String storedWriteMode = (writeMode.equals("app") && !fileExists) ? "new" : writeMode;
+                    try {
+                        writeStagedFile(stagingFile, filePath, storedWriteMode);
+                    } finally {
+                        invalidateCachedFile(storedFilePath);
+                    }
+                    nameIndex.add(filePath);
+                    stored = true;
+                }
+            } finally {
+                locked.close();
+            }
+            if (stored) {
+                // a new or replaced file is only durable once its directory has been synced too
+                sync(filePath.getParent());
+                return storedFilePath;
+            }
+            // created by someone else since STOR NEW, so the next generation of it is
+            // stored instead, or another if that has been taken too by the time it is locked
+            Path requestedPath = getPath(relativeFilePath);
+            storedFilePath = getParentDir(relativeFilePath)
+                    + nameIndex.reserveGeneration(requestedPath.getParent(), requestedPath.getFileName().toString());
+        }
+    }
+
+    private static void writeStagedFile(Path stagingFile, Path filePath, String writeMode) throws IOException {
+        switch (writeMode) {
+            case "new": // only called once the file is locked and known not to exist
             case "old":
-                writeFile(storFile.getFilePath(), storFile.getClampedBytesToWrite());
+                moveAtomically(stagingFile, filePath);
                 break;
             case "app":
-                writeFile(storFile.getFilePath(), storFile.getClampedBytesToWrite(), StandardOpenOption.APPEND);
+                appendFile(stagingFile, filePath);
+                sync(filePath);
+                Files.delete(stagingFile);
                 break;
+            default:
+                throw new IllegalArgumentException("Unknown write mode " + writeMode);
         }
     }
 
-    public static String readFile(String relativeFilePath) {
+    /**
+     * Replaces filePath with stagingFile in a single step, so that anyone
+     * opening filePath gets either all of the old version or all of the new
+     * one.
+     */
+    private static void moveAtomically(Path stagingFile, Path filePath) throws IOException {
         try {
-            Path filePath = Paths.get(HOME_DIR + relativeFilePath);
-            FileType fileType = getFileType(relativeFilePath);
-            // if file type is plain text read and return pure string
-            if (fileType == FileType.Text) {
-                return Files.readString(filePath);
-            } else { // otherwise encode to Base64 before returning
-                byte[] fileBytes = Files.readAllBytes(filePath);
-                return Base64.getEncoder().encodeToString(fileBytes);
+            Files.move(stagingFile, filePath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // the staging directory is on another file system, so is first copied next to the file
+            Path tempFile = filePath.resolveSibling("." + filePath.getFileName() + "." + UUID.randomUUID() + ".tmp");
+            try {
+                Files.copy(stagingFile, tempFile);
+                sync(tempFile);
+                Files.move(tempFile, filePath, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-            return "";
+            Files.delete(stagingFile);
+        }
+    }
+
+    private static void sync(Path path) throws IOException {
+        switch (fsyncPolicy) {
+            case Close:
+                GroupCommit.force(path);
+                break;
+            case Group:
+                groupCommit.sync(path);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Deletes the staged contents of an upload that won't be stored or resumed.
+     */
+    public static void discardStagedFile(PendingStorFile storFile) {
+        if (storFile.getStagingFile() == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(storFile.getStagingFile());
+        } catch (IOException e) {
+            Utils.logMessage("Could not delete staging file " + storFile.getStagingFile());
         }
     }
 
-    public static void renameFile(String originalRelativeFilePath, String newRelativeFilePath) {
-        File originalFile = Paths.get(HOME_DIR + originalRelativeFilePath).toFile();
-        Path newFilePath = Paths.get(HOME_DIR + newRelativeFilePath);
-        originalFile.renameTo(newFilePath.toFile());
+    /**
+     * Renames a file, with both it and the new name locked for writing so that
+     * the rename can't replace a file stored under the new name in the
+     * meantime.
+     * 
+     * @throws FileAlreadyExistsException if a file with the new name exists
+     * @throws IOException                if the file could not be renamed, e.g.
+     *                                    because it was deleted in the meantime
+     */
+    public static void renameFile(String originalRelativeFilePath, String newRelativeFilePath) throws IOException {
+        Path originalFilePath = getPath(originalRelativeFilePath);
+        Path newFilePath = getPath(newRelativeFilePath);
+        PathLocks.Locked locked = pathLocks.lockForWriting(originalFilePath, newFilePath);
+        try {
+            Files.move(originalFilePath, newFilePath);
+            nameIndex.add(newFilePath);
+        } finally {
+            locked.close();
+            invalidateCachedFile(originalRelativeFilePath);
+            invalidateCachedFile(newRelativeFilePath);
+            // a renamed directory takes everything under it with it
+            metadataCache.invalidateTree(originalFilePath);
+            nameIndex.removeTree(originalFilePath);
+        }
     }
 
+    /**
+     * Deletes a file or empty directory. A transfer already reading the file
+     * carries on with the contents it opened.
+     */
     public static boolean deletePath(String relativeFilePath) {
-        Path filePath = Paths.get(HOME_DIR + relativeFilePath);
-        return filePath.toFile().delete();
+        Path filePath = getPath(relativeFilePath);
+        PathLocks.Locked locked = pathLocks.lockForWriting(filePath);
+        try {
+            boolean deleted = filePath.toFile().delete();
+            invalidateCachedFile(relativeFilePath);
+            // a deleted directory's index would otherwise outlive it, while a deleted
+            // file only leaves a gap in the generations of its name
+            nameIndex.removeTree(filePath);
+            return deleted;
+        } finally {
+            locked.close();
+        }
     }
 
     /**
@@ -169,22 +620,36 @@ public final class FileSystem {
      *         occurs for the file at relativeFilePath.
      */
     public static long getFileTransferSize(String relativeFilePath) {
-        File file = Paths.get(HOME_DIR + relativeFilePath).toFile();
+        return getFileTransferSize(relativeFilePath, getFileSize(relativeFilePath));
+    }
+
+    /**
+     * @return The number of bytes that will be sent to the client, if transfer
+     *         occurs for a range of rangeLength bytes of the file at
+     *         relativeFilePath.
+     */
+    public static long getFileTransferSize(String relativeFilePath, long rangeLength) {
         FileType fileType = getFileType(relativeFilePath);
         // if file type is binary, send Base64 byte length back
         if (fileType == FileType.Binary) {
-            return byteLengthToBase64Length(file.length());
+            return byteLengthToBase64Length(rangeLength);
         }
         // otherwise send normal byte size on disk
-        return file.length();
+        return rangeLength;
     }
 
     /**
-     * @return The number of bytes that the file at relativeFilePath occupies.
+     * @return The number of bytes that the file at relativeFilePath occupies,
+     *         once any append to it that is under way has finished.
      */
     public static long getFileSize(String relativeFilePath) {
-        File file = Paths.get(HOME_DIR + relativeFilePath).toFile();
-        return file.length();
+        Path filePath = getPath(relativeFilePath);
+        PathLocks.Locked locked = pathLocks.lockForReading(filePath);
+        try {
+            return metadataCache.get(filePath).getSize();
+        } finally {
+            locked.close();
+        }
     }
 
     /**
@@ -199,76 +664,67 @@ public final class FileSystem {
         return FileType.Binary;
     }
 
+    /**
+     * @return the key the contents of a file are cached under in a given
+     *         encoding, which is the same for any spelling of the file's path
+     */
+    private static String getCacheKey(String relativeFilePath, TransferEncoding encoding) {
+        return Paths.get(relativeFilePath).normalize() + ":" + encoding;
+    }
+
+    /**
+     * @return what was last found at relativePath, going through the metadata
+     *         cache so that checking the same path several times only stats it
+     *         once
+     */
+    private static FileMetadata getMetadata(String relativePath) {
+        return metadataCache.get(getPath(relativePath));
+    }
+
+    /**
+     * @return the normalized path of a file in the home directory, so that every
+     *         spelling of it shares a lock and a metadata cache entry
+     */
+    private static Path getPath(String relativeFilePath) {
+        return Paths.get(HOME_DIR + relativeFilePath).normalize();
+    }
+
+    /**
+     * @return the directory containing relativeFilePath, relative to the home
+     *         directory and including its trailing '/'
+     */
+    private static String getParentDir(String relativeFilePath) {
+        return relativeFilePath.substring(0, relativeFilePath.lastIndexOf('/') + 1);
+    }
+
     private static long byteLengthToBase64Length(long byteLength) {
         return ((4 * byteLength / 3) + 3) & ~3;
     }
 
     /**
      * Ensures that if baseFile exists within relativeDirName, a number is appended
-     * to the end of the it to make it unique.
+     * to the end of the it to make it unique. The number is the next after the
+     * highest generation of baseFile in the directory, found in the name index
+     * without listing the directory, and is reserved so that no other session
+     * is given it. A new file is stored to it with commitStagedFile(), which
+     * chooses another if something else has taken it by the time the file is
+     * locked.
      * 
      * @return relativeDirName followed by the unique baseFile name
      */
     public static String getUniqueFileName(String baseFile, String relativeDirName) {
-        String baseName;
-        String baseExtension;
-        if (baseFile.contains(".")) { // parse out extension and name
-            ArrayList<String> baseComponents = Utils.splitString(baseFile, "\\.");
-            StringBuilder baseNameBuilder = new StringBuilder();
-            for (int i = 0; i < baseComponents.size() - 1; i++) {
-                baseNameBuilder.append(baseComponents.get(i));
-            }
-            baseName = baseNameBuilder.toString();
-            baseExtension = baseComponents.get(baseComponents.size() - 1);
-        } else { // no extension, name is just baseFile
-            baseName = baseFile;
-            baseExtension = "";
-        }
-
-        // read all the files in relativeDirName
-        String filesInDir = readDir(relativeDirName);
-        int i = 1;
-        // increment the number prefixed to baseFile until it is no longer found
-        while (filesInDir.contains(baseFile)) {
-            baseFile = baseName + i + "." + baseExtension;
-            i++;
-        }
-        return Utils.appendIfMissing(relativeDirName, "/") + baseFile;
+        String dirPath = Utils.appendIfMissing(relativeDirName, "/");
+        return dirPath + nameIndex.reserveGeneration(getPath(dirPath), baseFile);
     }
 
-    /**
-     * Reads the resources/users.txt file and generates a list of Users for the
-     * FileSystem to store during runtime.
-     * 
-     * @return the list of users
-     */
-    private static List<User> readUsers() {
-        List<String> userData = new ArrayList<String>();
-        List<User> users = new ArrayList<User>();
-
-        try {
-            Path path = Paths.get(USER_DB);
-            userData = Files.readAllLines(path);
-        } catch (Exception e) {
-            System.out.println("Could not open " + USER_DB);
-            e.printStackTrace();
-            return users;
-        }
-
-        // first two lines are column names/divider so remove them
-        userData.remove(0);
-        userData.remove(0);
-        // parse out values in each row
-        for (String row : userData) {
-            String[] cols = row.split("\\|");
-            // get individual values from each column in row
-            String userId = cols[USER_ID_COL];
-            List<String> accounts = Utils.splitString(cols[ACCOUNT_COL], "\\s+");
-            String password = cols[PASSWORD_COL].equals(" ") ? null : cols[PASSWORD_COL];
-            // create new user based on values
-            User user = new User(userId, accounts, password);
-            users.add(user);
+    private static void appendFile(Path source, Path destination) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(destination, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long position = 0;
+            long size = in.size();
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
         }
-        return users;
     }
 }
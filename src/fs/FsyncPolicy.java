@@ -0,0 +1,29 @@
+package fs;
+
+/**
+ * A list of the possible ways stored files are made durable before they
+ * replace the file they are stored to
+ */
+public enum FsyncPolicy {
+    // left to the operating system to write out whenever it chooses
+    None,
+    // synced as each upload is stored, before anyone can see it
+    Close,
+    // synced in batches shared by every upload being stored at the time
+    Group;
+
+    /**
+     * @return the FsyncPolicy matching the name given on the command line, or
+     *         None if the name is not recognised.
+     */
+    public static FsyncPolicy fromArg(String arg) {
+        switch (arg) {
+            case "close":
+                return Close;
+            case "group":
+                return Group;
+            default:
+                return None;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package fs;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Syncs files to disk in batches, so that many uploads being stored at once
+ * share the cost of waiting for the disk. A single background thread syncs
+ * every path queued since its last batch, while the paths queued in the
+ * meantime wait for the next one. A path queued by several uploads, such as
+ * the directory they are all stored to, is only synced once per batch. The
+ * waits are on a lock's conditions rather than a monitor, so that a virtual
+ * thread waiting for its batch doesn't pin its carrier. Safe to share between
+ * threads.
+ */
+public class GroupCommit {
+    private ReentrantLock lock;
+    // signalled when a path is queued, and when a batch has been synced
+    private Condition pathQueued;
+    private Condition batchSynced;
+    private Batch queued;
+    private Thread syncer;
+
+    public GroupCommit() {
+        this.lock = new ReentrantLock();
+        this.pathQueued = lock.newCondition();
+        this.batchSynced = lock.newCondition();
+        this.queued = new Batch();
+        this.syncer = new Thread(this::syncBatches, "group-commit");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * Queues path to be synced with the next batch, and waits until it has been.
+     *
+     * @throws IOException if path could not be synced, or the wait was
+     *                     interrupted
+     */
+    public void sync(Path path) throws IOException {
+        Batch batch;
+        lock.lock();
+        try {
+            batch = queued;
+            batch.paths.add(path);
+            pathQueued.signal();
+            while (!batch.synced) {
+                batchSynced.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + path + " to be synced");
+        } finally {
+            lock.unlock();
+        }
+        IOException error = batch.errors.get(path);
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Stops syncing batches. Should only be called once nothing is waiting on a
+     * sync.
+     */
+    public void shutdown() {
+        syncer.interrupt();
+    }
+
+    /**
+     * Syncs the contents and metadata of a file, or the entries of a directory,
+     * to disk straight away.
+     *
+     * @throws IOException if path could not be synced
+     */
+    public static void force(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // some platforms can't open a directory to sync it, so it can't be helped
+            if (!Files.isDirectory(path)) {
+                throw e;
+            }
+        }
+    }
+
+    private void syncBatches() {
+        try {
+            while (true) {
+                Batch batch;
+                lock.lock();
+                try {
+                    while (queued.paths.isEmpty()) {
+                        pathQueued.await();
+                    }
+                    batch = queued;
+                    queued = new Batch();
+                } finally {
+                    lock.unlock();
+                }
+                for (Path path : batch.paths) {
+                    try {
+                        force(path);
+                    } catch (IOException e) {
+                        batch.errors.put(path, e);
+                    }
+                }
+                lock.lock();
+                try {
+                    batch.synced = true;
+                    batchSynced.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            // shut down
+        }
+    }
+
+    /**
+     * The paths queued to be synced together, and what became of them.
+     */
+    private static class Batch {
+        private Set<Path> paths = new LinkedHashSet<Path>();
+        private Map<Path, IOException> errors = new HashMap<Path, IOException>();
+        private boolean synced;
+    }
+}
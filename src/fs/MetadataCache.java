@@ -0,0 +1,298 @@
+package fs;
+
+import java.io.*;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import utils.Utils;
+
+/**
+ * A cache of what stat found for recently used paths, so that the several
+ * checks a single call makes of the same path, and the calls that follow it,
+ * only stat it once. Entries are dropped whenever the server changes a path,
+ * and a WatchService watching the directory tree drops them when something
+ * else does. As the watcher reports changes a moment after they happen, and
+ * some platforms only poll for them, entries also expire after a TTL, which
+ * bounds how long a change made outside of the server can go unseen. The
+ * cache is bounded by its number of entries, and once it is full the least
+ * recently used quarter of them is evicted in one go, so that finding them
+ * is paid for by many lookups. Entries are kept in a ConcurrentHashMap, so
+ * lookups never wait for each other, nor for an invalidation walking the
+ * cache for the entries under a directory. Safe to share between threads.
+ */
+public class MetadataCache {
+    public static final int DEFAULT_MAX_ENTRIES = 64 * 1024;
+    public static final long DEFAULT_TTL_MILLIS = 5000;
+
+    private int maxEntries;
+    private long ttlMillis;
+    private ConcurrentHashMap<Path, CachedMetadata> entries;
+    private AtomicLong numInvalidations;
+    private LongAdder numHits;
+    private LongAdder numMisses;
+    private LongAdder numEvictions;
+    private AtomicBoolean evicting;
+    private WatchService watchService;
+    private Map<WatchKey, Path> watchedDirs;
+
+    /**
+     * @param rootDir    the directory whose tree is watched for changes made
+     *                   outside of the server
+     * @param maxEntries the number of paths the cache may hold, or 0 to disable
+     *                   it
+     * @param ttlMillis  how long an entry is kept before the path is stat'd
+     *                   again
+     */
+    public MetadataCache(Path rootDir, int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new ConcurrentHashMap<Path, CachedMetadata>();
+        this.numInvalidations = new AtomicLong();
+        this.numHits = new LongAdder();
+        this.numMisses = new LongAdder();
+        this.numEvictions = new LongAdder();
+        this.evicting = new AtomicBoolean();
+        this.watchedDirs = new ConcurrentHashMap<WatchKey, Path>();
+        if (isEnabled()) {
+            startWatching(rootDir);
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    public long getTtlMillis() {
+        return this.ttlMillis;
+    }
+
+    /**
+     * @param path a normalized path, so that every spelling of a path shares an
+     *             entry
+     * @return the cached metadata of path, or what a stat of it finds if there
+     *         is none or it has expired
+     */
+    public FileMetadata get(Path path) {
+        CachedMetadata cachedMetadata = entries.get(path);
+        if (cachedMetadata != null) {
+            long now = System.currentTimeMillis();
+            if (now - cachedMetadata.cachedAt < ttlMillis) {
+                if (cachedMetadata.lastUsed != now) { // saves contending for a path used many times a millisecond
+                    cachedMetadata.lastUsed = now;
+                }
+                numHits.increment();
+                return cachedMetadata.metadata;
+            }
+            entries.remove(path, cachedMetadata);
+        }
+        numMisses.increment();
+        long invalidationsBefore = numInvalidations.get();
+        FileMetadata metadata = FileMetadata.read(path);
+        if (!isEnabled()) {
+            return metadata;
+        }
+        // anything invalidated while path was being stat'd may have been path, in
+        // which case what was found could already be out of date. Invalidations
+        // are counted before they drop anything, so one that comes after the
+        // count is checked below drops the new entry itself.
+        if (numInvalidations.get() == invalidationsBefore) {
+            cachedMetadata = new CachedMetadata(metadata);
+            entries.put(path, cachedMetadata);
+            if (numInvalidations.get() != invalidationsBefore) {
+                entries.remove(path, cachedMetadata);
+            }
+            evictIfFull();
+        }
+        return metadata;
+    }
+
+    /**
+     * Drops the entry for path. Should be called whenever path is changed.
+     */
+    public void invalidate(Path path) {
+        numInvalidations.incrementAndGet();
+        entries.remove(path);
+    }
+
+    /**
+     * Drops the entries for path and everything under it, for when path is a
+     * directory that has been moved or deleted.
+     */
+    public void invalidateTree(Path path) {
+        numInvalidations.incrementAndGet();
+        CachedMetadata removed = entries.remove(path);
+        if (removed != null && removed.metadata.exists() && !removed.metadata.isDirectory()) {
+            return; // a file has nothing under it, so there is no need to look
+        }
+        entries.keySet().removeIf(cachedPath -> cachedPath.startsWith(path));
+    }
+
+    public void invalidateAll() {
+        numInvalidations.incrementAndGet();
+        entries.clear();
+    }
+
+    /**
+     * Stops watching for changes, leaving the cache as it is.
+     */
+    public void shutdown() {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            Utils.logMessage("Could not stop watching for file changes");
+        }
+    }
+
+    public int getNumEntries() {
+        return entries.size();
+    }
+
+    public long getNumHits() {
+        return numHits.sum();
+    }
+
+    /**
+     * @return the number of lookups that had to stat their path
+     */
+    public long getNumMisses() {
+        return numMisses.sum();
+    }
+
+    public long getNumEvictions() {
+        return numEvictions.sum();
+    }
+
+    public String toString() {
+        return "{ Entries: " + entries.size() + ", Hits: " + numHits.sum() + ", Misses: " + numMisses.sum()
+                + ", Evictions: " + numEvictions.sum() + " }";
+    }
+
+    /**
+     * Evicts the least recently used quarter of the entries if the cache is
+     * over its bound. Only one thread evicts at a time, and the others carry on
+     * without waiting for it.
+     */
+    private void evictIfFull() {
+        if (entries.size() <= maxEntries || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // the times are copied before sorting, as lookups keep changing them
+            long[] lastUsedTimes = new long[entries.size()];
+            int numEntries = 0;
+            for (CachedMetadata cachedMetadata : entries.values()) {
+                if (numEntries == lastUsedTimes.length) {
+                    break;
+                }
+                lastUsedTimes[numEntries++] = cachedMetadata.lastUsed;
+            }
+            int numToEvict = numEntries - (maxEntries - maxEntries / 4);
+            if (numToEvict <= 0) {
+                return;
+            }
+            Arrays.sort(lastUsedTimes, 0, numEntries);
+            long evictUpTo = lastUsedTimes[numToEvict - 1];
+            Iterator<Map.Entry<Path, CachedMetadata>> cached = entries.entrySet().iterator();
+            while (numToEvict > 0 && cached.hasNext()) {
+                if (cached.next().getValue().lastUsed <= evictUpTo) {
+                    cached.remove();
+                    numToEvict--;
+                    numEvictions.increment();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private void startWatching(Path rootDir) {
+        try {
+            watchService = rootDir.getFileSystem().newWatchService();
+            watchTree(rootDir);
+        } catch (IOException e) {
+            Utils.logMessage("Could not watch " + rootDir + " for changes, relying on the metadata cache's TTL");
+            return;
+        }
+        Thread watcher = new Thread(this::processEvents, "metadata-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Watches dir and every directory under it, so that a directory created
+     * outside of the server is watched along with what is already there.
+     */
+    private void watchTree(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            Iterator<Path> dirs = paths.filter(Files::isDirectory).iterator();
+            while (dirs.hasNext()) {
+                Path watchedDir = dirs.next();
+                WatchKey key = watchedDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirs.put(key, watchedDir);
+            }
+        }
+    }
+
+    private void processEvents() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path dir = watchedDirs.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (dir == null || event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        invalidateAll(); // events were lost, so anything could have changed
+                        continue;
+                    }
+                    Path path = dir.resolve((Path) event.context());
+                    // a directory moved in or out takes everything under it with it
+                    invalidateTree(path);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                        try {
+                            watchTree(path);
+                        } catch (IOException e) {
+                            Utils.logMessage("Could not watch " + path + " for changes");
+                        }
+                    }
+                }
+                if (!key.reset()) { // dir was deleted, or moved away
+                    watchedDirs.remove(key);
+                    if (dir != null) {
+                        invalidateTree(dir);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // shut down
+        }
+    }
+
+    private static class CachedMetadata {
+        private FileMetadata metadata;
+        private long cachedAt;
+        // updated by every lookup that finds the entry, and read to choose what to evict
+        private volatile long lastUsed;
+
+        CachedMetadata(FileMetadata metadata) {
+            this.metadata = metadata;
+            this.cachedAt = System.currentTimeMillis();
+            this.lastUsed = cachedAt;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package fs;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import utils.Utils;
+
+/**
+ * An upload sent as several parts, possibly over several connections at once.
+ * Every part is written straight to its place in a single staging file with
+ * positional writes through a channel they all share, and the ranges of the
+ * parts that arrived whole are recorded. Once they cover the whole file the
+ * staging file is sealed, and can be stored to the file like any other upload.
+ * Safe to share between threads.
+ */
+public class MultipartUpload {
+    private Path stagingFile;
+    private String filePath;
+    private FileChannel fileChannel;
+    // the offset and length of each part that arrived whole and intact
+    private TreeMap<Long, Long> parts;
+    private int numPartsInProgress;
+    private long lastUpdated;
+    private boolean sealed;
+
+    /**
+     * Creates the staging file the parts are written to.
+     * 
+     * @param filePath the file the parts are stored to once complete
+     * @throws IOException if the staging file could not be created
+     */
+    MultipartUpload(Path stagingFile, String filePath) throws IOException {
+        this.stagingFile = stagingFile;
+        this.filePath = filePath;
+        this.fileChannel = FileChannel.open(stagingFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.parts = new TreeMap<Long, Long>();
+        this.lastUpdated = System.currentTimeMillis();
+    }
+
+    public Path getStagingFile() {
+        return this.stagingFile;
+    }
+
+    public String getFilePath() {
+        return this.filePath;
+    }
+
+    /**
+     * Starts receiving a part. The channel must only be written to with positional
+     * writes, and endPart() must be called once the part is done with.
+     * 
+     * @return the channel to write the part to
+     * @throws IOException if the upload has already been sealed or discarded
+     */
+    public synchronized FileChannel beginPart() throws IOException {
+        if (sealed) {
+            throw new IOException("the upload of " + filePath + " is no longer in progress");
+        }
+        numPartsInProgress++;
+        lastUpdated = System.currentTimeMillis();
+        return fileChannel;
+    }
+
+    /**
+     * Finishes receiving a part. A part that didn't arrive intact may have
+     * overwritten parts that did, so those are forgotten and must be sent again.
+     * 
+     * @param intact whether the whole part arrived and matched its checksum
+     */
+    public synchronized void endPart(long offset, long length, boolean intact) {
+        numPartsInProgress--;
+        lastUpdated = System.currentTimeMillis();
+        if (intact) {
+            parts.put(offset, Math.max(length, parts.getOrDefault(offset, 0L)));
+            return;
+        }
+        Iterator<Map.Entry<Long, Long>> overlapping = parts.headMap(offset + length).entrySet().iterator();
+        while (overlapping.hasNext()) {
+            Map.Entry<Long, Long> part = overlapping.next();
+            if (part.getKey() + part.getValue() > offset) {
+                overlapping.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes from the start of the file that are covered by
+     *         parts which arrived intact, with no gaps between them
+     */
+    public synchronized long getNumContiguousBytes() {
+        long end = 0;
+        for (Map.Entry<Long, Long> part : parts.entrySet()) {
+            if (part.getKey() > end) {
+                break;
+            }
+            end = Math.max(end, part.getKey() + part.getValue());
+        }
+        return end;
+    }
+
+    /**
+     * Stops accepting parts, cuts the staging file down to fileSize and makes
+     * sure it is on disk, so that it is ready to be stored to the file.
+     * 
+     * @return false if parts are still being received, in which case the upload
+     *         is left as it was
+     * @throws IOException if the upload has already been sealed, or the staging
+     *                     file could not be written
+     */
+    public boolean seal(long fileSize) throws IOException {
+        if (fileSize < 0) {
+            throw new IllegalArgumentException("File size must not be negative");
+        }
+        // the staging file is written once no part can start, rather than while
+        // holding the monitor every part needs to start and end
+        synchronized (this) {
+            if (sealed) {
+                throw new IOException("the upload of " + filePath + " is no longer in progress");
+            }
+            if (numPartsInProgress > 0) {
+                return false;
+            }
+            sealed = true;
+        }
+        try {
+            fileChannel.truncate(fileSize);
+            fileChannel.force(false);
+        } finally {
+            fileChannel.close();
+        }
+        return true;
+    }
+
+    /**
+     * @return the time the last part started or finished, in milliseconds since
+     *         the epoch
+     */
+    public synchronized long getLastUpdated() {
+        return this.lastUpdated;
+    }
+
+    /**
+     * Seals the upload so that it can be discarded, unless a part has started or
+     * finished since expiredBefore or is still being received.
+     * 
+     * @return whether the upload was sealed
+     */
+    synchronized boolean sealIfIdleSince(long expiredBefore) {
+        if (sealed || numPartsInProgress > 0 || lastUpdated >= expiredBefore) {
+            return false;
+        }
+        sealed = true;
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            Utils.logMessage("Could not close staging file " + stagingFile);
+        }
+        return true;
+    }
+
+    /**
+     * Seals and discards an upload that was never handed out, as another was
+     * started for the same file first.
+     */
+    void abandon() {
+        synchronized (this) {
+            sealed = true;
+        }
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            Utils.logMessage("Could not close staging file " + stagingFile);
+        }
+        discard();
+    }
+
+    /**
+     * Deletes the staging file of an upload that has been sealed but won't be
+     * stored.
+     */
+    public void discard() {
+        try {
+            Files.deleteIfExists(stagingFile);
+        } catch (IOException e) {
+            Utils.logMessage("Could not delete staging file " + stagingFile);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package fs;
+
+import java.io.*;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import utils.Utils;
+
+/**
+ * An index of the generations of file names in recently used directories, so
+ * that STOR NEW can find the next free generation of a file, e.g. file5.txt
+ * after file.txt to file4.txt, without listing the directory. For each base
+ * name and extension a directory holds generations of, the index keeps the
+ * highest generation taken, and the next one is always free. A directory is
+ * read once, the first time a generation is chosen in it, and then kept up
+ * to date as files are stored to it and renamed into it. Choosing a
+ * generation reserves it, so sessions storing new generations of the same
+ * file at once are each given their own. Deleting a file doesn't lower the
+ * highest generation, which only leaves a gap. The index is bounded by its
+ * number of directories, and the least recently used are dropped to make
+ * room, along with the generations reserved in them that haven't been stored
+ * yet. Safe to share between threads.
+ */
+public class NameIndex {
+    public static final int DEFAULT_MAX_DIRS = 1024;
+    // a generation has at most this many digits, so that it always fits in an int
+    private static final int MAX_GENERATION_DIGITS = 9;
+
+    private int maxDirs;
+    private LinkedHashMap<Path, DirIndex> dirs;
+    private long numDirReads;
+
+    /**
+     * @param maxDirs the number of directories whose names are indexed at once
+     */
+    public NameIndex(int maxDirs) {
+        this.maxDirs = maxDirs;
+        this.dirs = new LinkedHashMap<Path, DirIndex>(16, 0.75f, true);
+    }
+
+    /**
+     * Chooses and reserves the next generation of baseFile in dir. A name
+     * taken by something other than the server since dir was read is skipped,
+     * with a single stat to check each.
+     * 
+     * @param dir a normalized path
+     * @return the name of the new generation of baseFile
+     */
+    public String reserveGeneration(Path dir, String baseFile) {
+        DirIndex dirIndex = getDirIndex(dir);
+        // a lock rather than a monitor, as the directory is read and stat'd while it
+        // is held, which would pin a virtual thread to its carrier
+        dirIndex.lock.lock();
+        try {
+            if (!dirIndex.read) {
+                readDir(dir, dirIndex);
+            }
+            String key = getKey(baseFile);
+            int generation = dirIndex.highestGenerations.getOrDefault(key, 0);
+            String name;
+            do {
+                generation++;
+                name = getGenerationName(baseFile, generation);
+            } while (Files.exists(dir.resolve(name), LinkOption.NOFOLLOW_LINKS));
+            dirIndex.highestGenerations.put(key, generation);
+            return name;
+        } finally {
+            dirIndex.lock.unlock();
+        }
+    }
+
+    /**
+     * Records that a file now exists at filePath. Should be called whenever the
+     * server stores or renames a file.
+     * 
+     * @param filePath a normalized path
+     */
+    public void add(Path filePath) {
+        DirIndex dirIndex;
+        synchronized (this) {
+            dirIndex = dirs.get(filePath.getParent());
+        }
+        if (dirIndex == null) {
+            return; // found when the directory is first read
+        }
+        dirIndex.lock.lock();
+        try {
+            if (dirIndex.read) {
+                dirIndex.add(filePath.getFileName().toString());
+            }
+        } finally {
+            dirIndex.lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the index of path and every directory under it, for when path is a
+     * directory that has been moved or deleted.
+     */
+    public synchronized void removeTree(Path path) {
+        dirs.keySet().removeIf(dir -> dir.startsWith(path));
+    }
+
+    public synchronized int getNumDirs() {
+        return dirs.size();
+    }
+
+    /**
+     * @return the number of times a directory has been read to index it
+     */
+    public synchronized long getNumDirReads() {
+        return numDirReads;
+    }
+
+    /**
+     * @return the name of a new generation of baseFile, with generation appended
+     *         to its name
+     */
+    static String getGenerationName(String baseFile, int generation) {
+        String baseName;
+        String baseExtension;
+        if (baseFile.contains(".")) { // parse out extension and name
+            ArrayList<String> baseComponents = Utils.splitString(baseFile, "\\.");
+            StringBuilder baseNameBuilder = new StringBuilder();
+            for (int i = 0; i < baseComponents.size() - 1; i++) {
+                baseNameBuilder.append(baseComponents.get(i));
+            }
+            baseName = baseNameBuilder.toString();
+            baseExtension = baseComponents.get(baseComponents.size() - 1);
+        } else { // no extension, name is just baseFile
+            baseName = baseFile;
+            baseExtension = "";
+        }
+        return baseName + generation + "." + baseExtension;
+    }
+
+    /**
+     * @return the key the generations of baseFile are indexed under: the name
+     *         of any of its generations with the generation left out, and a '/'
+     *         between the name and extension, as no file name can contain one
+     */
+    private static String getKey(String baseFile) {
+        String generationName = getGenerationName(baseFile, 0);
+        int extensionStart = generationName.lastIndexOf('.');
+        return generationName.substring(0, extensionStart - 1) + "/" + generationName.substring(extensionStart + 1);
+    }
+
+    private synchronized DirIndex getDirIndex(Path dir) {
+        DirIndex dirIndex = dirs.get(dir);
+        if (dirIndex == null) {
+            dirIndex = new DirIndex();
+            dirs.put(dir, dirIndex);
+            if (dirs.size() > maxDirs) {
+                dirs.remove(dirs.keySet().iterator().next());
+            }
+        }
+        return dirIndex;
+    }
+
+    /**
+     * Indexes every name in dir. Only called while dirIndex is locked, so that
+     * nothing is added to it before it has been read.
+     */
+    private void readDir(Path dir, DirIndex dirIndex) {
+        synchronized (this) {
+            numDirReads++;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                dirIndex.add(entry.getFileName().toString());
+            }
+            dirIndex.read = true;
+        } catch (IOException | DirectoryIteratorException e) {
+            // read again next time, and until then every generation chosen is checked anyway
+            Utils.logMessage("Could not index the names in " + dir);
+        }
+    }
+
+    /**
+     * The highest generation taken of each base name and extension in a
+     * directory.
+     */
+    private static class DirIndex {
+        private ReentrantLock lock = new ReentrantLock();
+        private Map<String, Integer> highestGenerations = new HashMap<String, Integer>();
+        private boolean read;
+
+        /**
+         * Indexes name as a generation of every base name it could be one of. A
+         * name ending in digits, such as file12.txt, is generation 12 of file.txt
+         * and generation 2 of file1.txt, but never generation 02 of file1.txt, as
+         * generations don't start with a 0.
+         */
+        void add(String name) {
+            int extensionStart = name.lastIndexOf('.');
+            if (extensionStart < 0) {
+                return; // not a generation of anything, as each has an extension
+            }
+            String extension = name.substring(extensionStart + 1);
+            int digitsStart = extensionStart;
+            while (digitsStart > 0 && extensionStart - digitsStart < MAX_GENERATION_DIGITS
+                    && name.charAt(digitsStart - 1) >= '0' && name.charAt(digitsStart - 1) <= '9') {
+                digitsStart--;
+            }
+            for (int i = digitsStart; i < extensionStart; i++) {
+                if (name.charAt(i) == '0') {
+                    continue;
+                }
+                String key = name.substring(0, i) + "/" + extension;
+                int generation = Integer.parseInt(name.substring(i, extensionStart));
+                highestGenerations.merge(key, generation, Math::max);
+            }
+        }
+    }
+}
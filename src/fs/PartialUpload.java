@@ -0,0 +1,54 @@
+package fs;
+
+import java.nio.file.Path;
+
+/**
+ * Records an upload that was interrupted before all of its contents arrived.
+ * The contents received so far are kept in a staging file, away from the file
+ * being stored to, until a later connection resumes the upload and sends the
+ * rest.
+ */
+public class PartialUpload {
+    private Path stagingFile;
+    private String filePath;
+    private String writeMode;
+    private long numBytesCommitted;
+    private long lastUpdated;
+
+    /**
+     * @param stagingFile       holds the contents received so far
+     * @param filePath          the file the contents are stored to once complete
+     * @param numBytesCommitted the number of bytes in stagingFile that were
+     *                          written to disk
+     */
+    public PartialUpload(Path stagingFile, String filePath, String writeMode, long numBytesCommitted) {
+        this.stagingFile = stagingFile;
+        this.filePath = filePath;
+        this.writeMode = writeMode;
+        this.numBytesCommitted = numBytesCommitted;
+        this.lastUpdated = System.currentTimeMillis();
+    }
+
+    public Path getStagingFile() {
+        return this.stagingFile;
+    }
+
+    public String getFilePath() {
+        return this.filePath;
+    }
+
+    public String getWriteMode() {
+        return this.writeMode;
+    }
+
+    public long getNumBytesCommitted() {
+        return this.numBytesCommitted;
+    }
+
+    /**
+     * @return the time the upload was interrupted, in milliseconds since the epoch
+     */
+    public long getLastUpdated() {
+        return this.lastUpdated;
+    }
+}
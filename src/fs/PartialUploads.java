@@ -0,0 +1,193 @@
+package fs;
+
+import java.io.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import utils.Utils;
+
+/**
+ * Keeps track of interrupted uploads, so that a client which reconnects can
+ * resume one rather than send the whole file again, and of multipart uploads
+ * whose parts are still arriving. Uploads are keyed by the user and the file
+ * they were stored to. A background reaper deletes the staging files of uploads
+ * that haven't been resumed or sent a part within the TTL, along with any
+ * staging files that no upload refers to, such as those left behind by a
+ * previous run of the server. Safe to share between threads.
+ */
+public class PartialUploads {
+    private Path stagingDir;
+    private long ttlMillis;
+    private ConcurrentHashMap<String, PartialUpload> uploads;
+    private ConcurrentHashMap<String, MultipartUpload> multipartUploads;
+    private ScheduledExecutorService reaper;
+
+    /**
+     * @param stagingDir the directory staging files are kept in
+     * @param ttlMillis  how long an interrupted upload is kept for
+     */
+    public PartialUploads(Path stagingDir, long ttlMillis) {
+        this.stagingDir = stagingDir;
+        this.ttlMillis = ttlMillis;
+        this.uploads = new ConcurrentHashMap<String, PartialUpload>();
+        this.multipartUploads = new ConcurrentHashMap<String, MultipartUpload>();
+        this.reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "partial-upload-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, ttlMillis / 4);
+        reaper.scheduleAtFixedRate(this::reapExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public Path getStagingDir() {
+        return this.stagingDir;
+    }
+
+    public long getTtlMillis() {
+        return this.ttlMillis;
+    }
+
+    public int size() {
+        return uploads.size();
+    }
+
+    public static String getKey(String userId, String filePath) {
+        return userId + ":" + filePath;
+    }
+
+    /**
+     * Records an interrupted upload, replacing and deleting any earlier one to
+     * the same file.
+     */
+    public void put(String key, PartialUpload upload) {
+        PartialUpload replaced = uploads.put(key, upload);
+        if (replaced != null && !replaced.getStagingFile().equals(upload.getStagingFile())) {
+            deleteStagingFile(replaced.getStagingFile());
+        }
+    }
+
+    /**
+     * Removes an interrupted upload so that it can be resumed. Only one client can
+     * take a given upload, and it should put() the upload back if it disconnects
+     * before finishing it.
+     *
+     * @return the upload, or null if there isn't one
+     */
+    public PartialUpload take(String key) {
+        return uploads.remove(key);
+    }
+
+    /**
+     * @return the multipart upload to filePath, starting one if no parts of it
+     *         have been sent yet. Nothing is locked while the staging file is
+     *         created, so if the first parts arrive at once each creates one,
+     *         and all but the first to start the upload discard theirs.
+     * @throws IOException if the staging file for a new upload could not be
+     *                     created
+     */
+    public MultipartUpload openMultipart(String key, String filePath) throws IOException {
+        MultipartUpload upload = multipartUploads.get(key);
+        if (upload != null) {
+            return upload;
+        }
+        Files.createDirectories(stagingDir);
+        MultipartUpload newUpload = new MultipartUpload(stagingDir.resolve(UUID.randomUUID() + ".part"), filePath);
+        upload = multipartUploads.putIfAbsent(key, newUpload);
+        if (upload == null) {
+            return newUpload;
+        }
+        newUpload.abandon();
+        return upload;
+    }
+
+    /**
+     * @return the multipart upload, or null if there isn't one
+     */
+    public MultipartUpload getMultipart(String key) {
+        return multipartUploads.get(key);
+    }
+
+    /**
+     * Removes a multipart upload once it has been sealed, so that it can be
+     * stored. Parts sent to the same file afterwards start a new upload.
+     */
+    public void removeMultipart(String key, MultipartUpload upload) {
+        multipartUploads.remove(key, upload);
+    }
+
+    public int getNumMultipartUploads() {
+        return multipartUploads.size();
+    }
+
+    /**
+     * Deletes the uploads that haven't been resumed or sent a part within the
+     * TTL, and any staging files at least that old which no upload refers to.
+     */
+    public void reapExpired() {
+        long expiredBefore = System.currentTimeMillis() - ttlMillis;
+        Set<Path> liveStagingFiles = new HashSet<Path>();
+        Iterator<Map.Entry<String, PartialUpload>> entries = uploads.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, PartialUpload> entry = entries.next();
+            PartialUpload upload = entry.getValue();
+            if (upload.getLastUpdated() < expiredBefore && uploads.remove(entry.getKey(), upload)) {
+                deleteStagingFile(upload.getStagingFile());
+                Utils.logMessage("Discarded interrupted upload to " + upload.getFilePath());
+            } else {
+                liveStagingFiles.add(upload.getStagingFile());
+            }
+        }
+        Iterator<Map.Entry<String, MultipartUpload>> multipartEntries = multipartUploads.entrySet().iterator();
+        while (multipartEntries.hasNext()) {
+            Map.Entry<String, MultipartUpload> entry = multipartEntries.next();
+            MultipartUpload upload = entry.getValue();
+            if (upload.sealIfIdleSince(expiredBefore)) {
+                multipartUploads.remove(entry.getKey(), upload);
+                upload.discard();
+                Utils.logMessage("Discarded abandoned multipart upload to " + upload.getFilePath());
+            } else {
+                liveStagingFiles.add(upload.getStagingFile());
+            }
+        }
+        if (!Files.isDirectory(stagingDir)) {
+            return;
+        }
+        try (DirectoryStream<Path> stagingFiles = Files.newDirectoryStream(stagingDir)) {
+            for (Path stagingFile : stagingFiles) {
+                // files still being written to are modified constantly, so are never this old
+                if (!liveStagingFiles.contains(stagingFile)
+                        && Files.getLastModifiedTime(stagingFile).toMillis() < expiredBefore) {
+                    deleteStagingFile(stagingFile);
+                }
+            }
+        } catch (IOException e) {
+            Utils.logMessage("Could not clean up staging directory " + stagingDir);
+        }
+    }
+
+    /**
+     * Stops the reaper, leaving any staging files in place.
+     */
+    public void shutdown() {
+        reaper.shutdownNow();
+    }
+
+    private static void deleteStagingFile(Path stagingFile) {
+        try {
+            Files.deleteIfExists(stagingFile);
+        } catch (IOException e) {
+            Utils.logMessage("Could not delete staging file " + stagingFile);
+        }
+    }
+}
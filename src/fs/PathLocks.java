@@ -0,0 +1,124 @@
+package fs;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write locks for paths, so that calls which change a file are exclusive
+ * while any number of calls reading it run in parallel. Rather than one lock
+ * per path, which would have to be created and cleaned up as paths come and
+ * go, each path hashes to one of a fixed number of lock stripes. Unrelated
+ * paths only contend if they happen to share a stripe, which with the default
+ * number of stripes is rare.
+ *
+ * Several paths can be locked at once, such as both sides of a rename. Their
+ * stripes are always locked in the same order so that two calls locking the
+ * same paths can't deadlock. Safe to share between threads.
+ */
+public class PathLocks {
+    public static final int DEFAULT_NUM_STRIPES = 1024;
+
+    private static final Locked NOT_LOCKED = new Locked(new Lock[0]);
+
+    private ReentrantReadWriteLock[] stripes;
+    private int mask;
+
+    /**
+     * @param numStripes the number of locks paths are spread over, rounded up to
+     *                   a power of two, or 0 to not lock at all
+     */
+    public PathLocks(int numStripes) {
+        if (numStripes < 0) {
+            throw new IllegalArgumentException("Number of lock stripes must not be negative");
+        }
+        int size = (numStripes <= 1) ? numStripes : Integer.highestOneBit(numStripes - 1) << 1;
+        this.stripes = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        this.mask = size - 1;
+    }
+
+    public boolean isEnabled() {
+        return stripes.length > 0;
+    }
+
+    public int getNumStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * Locks paths to be read, waiting for any call changing one of them to finish.
+     *
+     * @param paths normalized paths, so that every spelling of a path shares a
+     *              lock
+     * @return the held locks, to be closed once reading is done
+     */
+    public Locked lockForReading(Path... paths) {
+        return lock(false, paths);
+    }
+
+    /**
+     * Locks paths to be changed, waiting until no other call is reading or
+     * changing any of them.
+     *
+     * @param paths normalized paths, so that every spelling of a path shares a
+     *              lock
+     * @return the held locks, to be closed once the change is done
+     */
+    public Locked lockForWriting(Path... paths) {
+        return lock(true, paths);
+    }
+
+    private Locked lock(boolean write, Path[] paths) {
+        if (!isEnabled()) {
+            return NOT_LOCKED;
+        }
+        int[] indexes = new int[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            indexes[i] = getStripeIndex(paths[i]);
+        }
+        Arrays.sort(indexes);
+        int numLocks = 0;
+        Lock[] locks = new Lock[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            if (i > 0 && indexes[i] == indexes[i - 1]) {
+                continue; // paths sharing a stripe only lock it once
+            }
+            ReentrantReadWriteLock stripe = stripes[indexes[i]];
+            Lock lock = write ? stripe.writeLock() : stripe.readLock();
+            lock.lock();
+            locks[numLocks++] = lock;
+        }
+        return new Locked(Arrays.copyOf(locks, numLocks));
+    }
+
+    private int getStripeIndex(Path path) {
+        int hash = path.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Locks held by a call, released by close(), which should be called in a
+     * finally block straight after the locks are taken. Also AutoCloseable, for
+     * a call that refers to the locks in the body of a try-with-resources.
+     */
+    public static final class Locked implements AutoCloseable {
+        private Lock[] locks;
+
+        private Locked(Lock[] locks) {
+            this.locks = locks;
+        }
+
+        /**
+         * Releases the locks, in the reverse of the order they were taken in.
+         */
+        public void close() {
+            for (int i = locks.length - 1; i >= 0; i--) {
+                locks[i].unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package fs;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A read-only FileChannel handed out by SharedFileChannels. Holders must only
+ * read from it with positional reads or transferTo(), and must call release()
+ * rather than closing it.
+ */
+public class SharedFileChannel {
+    private SharedFileChannels owner;
+    private Path filePath;
+    private FileChannel channel;
+    // once this reaches 0 the channel is closed, and it is never handed out again
+    private AtomicInteger numUsers;
+
+    SharedFileChannel(SharedFileChannels owner, Path filePath, FileChannel channel) {
+        this.owner = owner;
+        this.filePath = filePath;
+        this.channel = channel;
+        this.numUsers = new AtomicInteger(1);
+    }
+
+    public Path getFilePath() {
+        return this.filePath;
+    }
+
+    public FileChannel getChannel() {
+        return this.channel;
+    }
+
+    /**
+     * Gives up this holder's use of the channel, closing it if no one else is
+     * using it. Must be called exactly once.
+     */
+    public void release() {
+        if (numUsers.decrementAndGet() == 0) {
+            owner.closeReleased(this);
+        }
+    }
+
+    /**
+     * Adds a user of the channel, unless it has been closed.
+     * 
+     * @return whether the channel can be used
+     */
+    boolean retain() {
+        while (true) {
+            int users = numUsers.get();
+            // a channel is closed for everyone if a thread reading from it is interrupted
+            if (users == 0 || !channel.isOpen()) {
+                return false;
+            }
+            if (numUsers.compareAndSet(users, users + 1)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package fs;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares one read-only FileChannel per file between all of the transfers
+ * reading from it, so that many clients retrieving segments of the same large
+ * file at once don't each open it. Transfers only read with positional reads
+ * and transferTo(), which never move the channel's position, so any number of
+ * them can read from the same channel concurrently. Each channel is closed once
+ * the last transfer using it releases it. Nothing is locked while a file is
+ * opened: transfers that find no channel each open one, and all but the first
+ * to publish theirs close it again and share the first's. Safe to share
+ * between threads.
+ */
+public class SharedFileChannels {
+    private ConcurrentHashMap<Path, SharedFileChannel> channels;
+
+    public SharedFileChannels() {
+        this.channels = new ConcurrentHashMap<Path, SharedFileChannel>();
+    }
+
+    /**
+     * @return the channel shared by every transfer reading filePath, opening it
+     *         if no transfer is. Must be released once the transfer is done.
+     * @throws IOException if the file could not be opened
+     */
+    public SharedFileChannel acquire(Path filePath) throws IOException {
+        while (true) {
+            SharedFileChannel sharedChannel = channels.get(filePath);
+            if (sharedChannel != null && sharedChannel.retain()) {
+                return sharedChannel;
+            }
+            FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ);
+            SharedFileChannel openedChannel = new SharedFileChannel(this, filePath, fileChannel);
+            boolean published = (sharedChannel == null) ? channels.putIfAbsent(filePath, openedChannel) == null
+                    : channels.replace(filePath, sharedChannel, openedChannel);
+            if (published) {
+                return openedChannel;
+            }
+            // another transfer published a channel first, so that one is shared instead
+            fileChannel.close();
+        }
+    }
+
+    /**
+     * Stops handing out the channel open on filePath, as the file has been
+     * changed or replaced. Transfers already reading from it carry on with the
+     * file they started with, and later ones open the file afresh.
+     */
+    public void detach(Path filePath) {
+        channels.remove(filePath);
+    }
+
+    /**
+     * @return the number of files with a channel open
+     */
+    public int size() {
+        return channels.size();
+    }
+
+    /**
+     * Closes sharedChannel once its last user has released it.
+     */
+    void closeReleased(SharedFileChannel sharedChannel) {
+        channels.remove(sharedChannel.getFilePath(), sharedChannel);
+        try {
+            sharedChannel.getChannel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
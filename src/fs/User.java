@@ -1,18 +1,20 @@
 package fs;
 
 import java.util.List;
+import java.util.Set;
 
 /**
- * Represents a user that exists on the FileSystem
+ * Represents a user that exists on the FileSystem. Immutable, so that a user
+ * can be shared by every table of users it is read into.
  */
 public class User {
     private String id;
-    private List<String> accounts;
+    private Set<String> accounts;
     private String password;
 
     public User(String id, List<String> accounts, String password) {
         this.id = id;
-        this.accounts = accounts;
+        this.accounts = Set.copyOf(accounts); // compact, as a user has few accounts
         this.password = password;
     }
 
@@ -20,7 +22,7 @@ public class User {
         return this.id;
     }
 
-    public List<String> getAccounts() {
+    public Set<String> getAccounts() {
         return this.accounts;
     }
 
@@ -33,12 +35,7 @@ public class User {
     }
 
     public boolean containsAccount(String accountName) {
-        for (String account : accounts) {
-            if (account.equals(accountName)) {
-                return true;
-            }
-        }
-        return false;
+        return accounts.contains(accountName);
     }
 
     public boolean requiresAccount() {
@@ -0,0 +1,169 @@
+package fs;
+
+import java.io.*;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import utils.Utils;
+
+/**
+ * The users of the server, read from the user database file and read again
+ * whenever it changes, so that users can be added or removed without
+ * restarting the server. A WatchService watching the file's directory reports
+ * the change, and once the file has been left alone for a moment it is read
+ * into a new table that replaces the old one in a single step. Lookups never
+ * wait for a reload, and never see a table that is only partly read. If the
+ * changed file can't be read, such as when it is still being written, the old
+ * table is kept until the next change. Replacing the file with a rename,
+ * rather than writing over it, means it is never read half written. Sessions
+ * that are already logged in stay logged in as the user they found. Safe to
+ * share between threads.
+ */
+public class UserDatabase {
+    // how long the file must go unchanged before it is read, so that a write made
+    // in several steps is read once it is done
+    private static final long SETTLE_MILLIS = 100;
+
+    private Path file;
+    private volatile UserTable table;
+    private volatile long numReloads;
+    private WatchService watchService;
+    // held while the file is read, so that reloads don't overlap. A lock rather than
+    // a monitor, so that a virtual thread reloading isn't pinned to its carrier.
+    private ReentrantLock reloadLock = new ReentrantLock();
+
+    /**
+     * Reads the users in file, or starts with none if it can't be read, and
+     * starts watching it for changes.
+     */
+    public UserDatabase(Path file) {
+        this.file = file.toAbsolutePath().normalize();
+        try {
+            this.table = UserTable.read(this.file);
+        } catch (IOException e) {
+            System.out.println("Could not open " + file);
+            e.printStackTrace();
+            this.table = new UserTable(Collections.emptyList());
+        }
+        startWatching();
+    }
+
+    /**
+     * @return the user with userId, or null if there is none
+     */
+    public User getUser(String userId) {
+        return table.get(userId);
+    }
+
+    /**
+     * @return the users as they were last read, which stay the same however
+     *         the file changes afterwards
+     */
+    public UserTable getTable() {
+        return table;
+    }
+
+    /**
+     * Reads the file again, and replaces the users with what it holds.
+     * 
+     * @return false if the file could not be read, in which case the users are
+     *         left as they were
+     */
+    public boolean reload() {
+        reloadLock.lock();
+        try {
+            UserTable newTable;
+            try {
+                newTable = UserTable.read(file);
+            } catch (IOException e) {
+                Utils.logMessage("Could not reload users from " + file + ": " + e.getLocalizedMessage());
+                return false;
+            }
+            table = newTable;
+            numReloads++;
+            Utils.logMessage("Reloaded " + newTable.size() + " users from " + file);
+            return true;
+        } finally {
+            reloadLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of times the users have been replaced since the file
+     *         was first read
+     */
+    public long getNumReloads() {
+        return numReloads;
+    }
+
+    /**
+     * Stops watching the file for changes, leaving the users as they are.
+     */
+    public void shutdown() {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            Utils.logMessage("Could not stop watching " + file + " for changes");
+        }
+    }
+
+    private void startWatching() {
+        try {
+            watchService = file.getFileSystem().newWatchService();
+            // a file can't be watched on its own, and one replaced with a rename is a
+            // new file, so its directory is watched instead
+            file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            Utils.logMessage("Could not watch " + file + " for changes, users will only be read at startup");
+            return;
+        }
+        Thread watcher = new Thread(this::processEvents, "users-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void processEvents() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = takeFileChanged(key);
+                // waits for the file to settle, taking whatever else changes in the meantime
+                while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= takeFileChanged(key);
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // shut down
+        }
+    }
+
+    /**
+     * @return whether any of key's events were for the file, or events were lost
+     *         and it might have been
+     */
+    private boolean takeFileChanged(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
@@ -0,0 +1,88 @@
+package fs;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The users read from the user database, indexed by user-id. A table is never
+ * changed once it has been read, so a changed database is read into a new
+ * table that replaces the old one as a whole, and anything holding the old
+ * one carries on with a consistent view of every user. Safe to share between
+ * threads.
+ */
+public class UserTable {
+    private static final int USER_ID_COL = 0;
+    private static final int ACCOUNT_COL = 1;
+    private static final int PASSWORD_COL = 2;
+    // the first two lines are the column names and the divider under them
+    private static final int NUM_HEADER_LINES = 2;
+    // compiled once rather than for every row, which matters for large databases
+    private static final Pattern ACCOUNT_SEPARATOR = Pattern.compile("\\s+");
+
+    private Map<String, User> users;
+
+    /**
+     * @param users the users in the table, where the first of any with the same
+     *              user-id is the one kept
+     */
+    public UserTable(Collection<User> users) {
+        this.users = new HashMap<String, User>(Math.max(16, (int) (users.size() / 0.75f) + 1));
+        for (User user : users) {
+            this.users.putIfAbsent(user.getId(), user);
+        }
+    }
+
+    /**
+     * Reads a user database, a table with a row for each user of the form
+     * "user-id|accounts|password", where the accounts are separated by spaces,
+     * and a single space stands for no accounts or no password. Blank lines are
+     * skipped.
+     * 
+     * @throws IOException if the database could not be read, or a row is
+     *                     missing a column
+     */
+    public static UserTable read(Path file) throws IOException {
+        List<User> users = new ArrayList<User>();
+        // the same few account names are shared by many users, so each is only held once
+        Map<String, String> accountNames = new HashMap<String, String>();
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String row;
+            for (int rowNum = 1; (row = reader.readLine()) != null; rowNum++) {
+                if (rowNum <= NUM_HEADER_LINES || row.isEmpty()) {
+                    continue;
+                }
+                String[] cols = row.split("\\|");
+                if (cols.length <= PASSWORD_COL) {
+                    throw new IOException("Row " + rowNum + " of " + file + " is missing a column");
+                }
+                String userId = cols[USER_ID_COL];
+                String[] accounts = ACCOUNT_SEPARATOR.split(cols[ACCOUNT_COL]);
+                for (int i = 0; i < accounts.length; i++) {
+                    accounts[i] = accountNames.computeIfAbsent(accounts[i], name -> name);
+                }
+                String password = cols[PASSWORD_COL].equals(" ") ? null : cols[PASSWORD_COL];
+                users.add(new User(userId, Arrays.asList(accounts), password));
+            }
+        }
+        return new UserTable(users);
+    }
+
+    /**
+     * @return the user with userId, or null if there is none
+     */
+    public User get(String userId) {
+        return users.get(userId);
+    }
+
+    public int size() {
+        return users.size();
+    }
+}
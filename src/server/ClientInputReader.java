@@ -0,0 +1,182 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads input from a client's InputStream through a buffer. Command calls are
+ * read a line at a time, split the same way as BufferedReader.readLine(). File
+ * contents are read as raw bytes, which a BufferedReader would have decoded as
+ * chars, either a chunk of a line at a time or as a given number of bytes in
+ * binary mode.
+ */
+public class ClientInputReader {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int INITIAL_LINE_CAPACITY = 64;
+
+    private InputStream in;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    private byte[] lineBytes;
+    private boolean skipLineFeed;
+    private boolean endOfLine;
+
+    public ClientInputReader(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.lineBytes = new byte[INITIAL_LINE_CAPACITY];
+    }
+
+    /**
+     * Reads a line terminated by '\n', '\r' or "\r\n", and decodes it with the
+     * default charset. This is a blocking method.
+     * 
+     * @return the line without its terminator, or null if the stream ended before
+     *         any of it was read
+     * @throws IOException if the stream could not be read
+     */
+    public String readLine() throws IOException {
+        int lineLength = 0;
+        while (true) {
+            if (!fillBufferIfEmpty()) {
+                return (lineLength == 0) ? null : decodeLine(lineLength);
+            }
+            byte b = buffer[position++];
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (b == '\n') {
+                    continue;
+                }
+            }
+            if (b == '\n' || b == '\r') {
+                skipLineFeed = (b == '\r');
+                return decodeLine(lineLength);
+            }
+            if (lineLength == lineBytes.length) {
+                lineBytes = Arrays.copyOf(lineBytes, lineBytes.length * 2);
+            }
+            lineBytes[lineLength++] = b;
+        }
+    }
+
+    /**
+     * Reads the next part of the current line as raw bytes, up to the end of the
+     * line or the end of what is in the buffer, whichever comes first. This lets a
+     * long line be handled a chunk at a time rather than held in memory as a
+     * whole. Use isEndOfLine() to check whether the chunk finished the line. This
+     * is a blocking method.
+     * 
+     * @return a buffer holding the chunk without the line's terminator, which is
+     *         only valid until the next read, or null if the stream has ended
+     * @throws IOException if the stream could not be read
+     */
+    public ByteBuffer readLineChunk() throws IOException {
+        if (!fillBufferIfEmpty()) {
+            return null;
+        }
+        if (skipLineFeed) {
+            skipLineFeed = false;
+            if (buffer[position] == '\n') {
+                position++;
+                if (!fillBufferIfEmpty()) {
+                    return null;
+                }
+            }
+        }
+        int start = position;
+        while (position < limit && buffer[position] != '\n' && buffer[position] != '\r') {
+            position++;
+        }
+        ByteBuffer chunk = ByteBuffer.wrap(buffer, start, position - start);
+        endOfLine = (position < limit);
+        if (endOfLine) {
+            skipLineFeed = (buffer[position] == '\r');
+            position++;
+        }
+        return chunk;
+    }
+
+    /**
+     * @return whether the chunk returned by the last call to readLineChunk()
+     *         finished the line
+     */
+    public boolean isEndOfLine() {
+        return this.endOfLine;
+    }
+
+    /**
+     * Reads up to length raw bytes into b, blocking until at least one is
+     * available. Bytes already in the buffer are used first, after which the
+     * stream is read directly.
+     * 
+     * @return the number of bytes read, or -1 if the stream has ended
+     * @throws IOException if the stream could not be read
+     */
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (skipLineFeed) {
+            skipLineFeed = false;
+            if (!fillBufferIfEmpty()) {
+                return -1;
+            }
+            if (buffer[position] == '\n') {
+                position++;
+            }
+        }
+        if (position == limit) {
+            return in.read(b, offset, length);
+        }
+        int bytesRead = Math.min(length, limit - position);
+        System.arraycopy(buffer, position, b, offset, bytesRead);
+        position += bytesRead;
+        return bytesRead;
+    }
+
+    /**
+     * @return true if a whole line has already been read into the buffer, so that
+     *         readLine() can return it without blocking. Lets a pipelining client's
+     *         responses be held back until every command it has sent so far has
+     *         been answered.
+     */
+    public boolean hasBufferedLine() {
+        int start = position;
+        if (skipLineFeed && start < limit && buffer[start] == '\n') {
+            start++;
+        }
+        for (int i = start; i < limit; i++) {
+            if (buffer[i] == '\n' || buffer[i] == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * @return false if the buffer is empty and the stream has ended
+     */
+    private boolean fillBufferIfEmpty() throws IOException {
+        if (position < limit) {
+            return true;
+        }
+        int bytesRead = in.read(buffer, 0, buffer.length);
+        if (bytesRead == -1) {
+            return false;
+        }
+        position = 0;
+        limit = bytesRead;
+        return true;
+    }
+
+    private String decodeLine(int lineLength) {
+        return new String(lineBytes, 0, lineLength, Charset.defaultCharset());
+    }
+}
@@ -0,0 +1,69 @@
+package server;
+
+/**
+ * Describes one of the commands the server accepts: its name, how many args it
+ * takes, whether the client has to be logged in to call it, and the handler
+ * that carries it out.
+ */
+public class Command {
+    private String name;
+    private int minArgs;
+    private int maxArgs;
+    private boolean restricted;
+    private String usage;
+    private Response usageError;
+    private Handler handler;
+
+    /**
+     * @param restricted whether the client must be logged in to call the command
+     * @param usage      shown to the client when the command is called with the
+     *                   wrong number of args
+     */
+    public Command(String name, int minArgs, int maxArgs, boolean restricted, String usage, Handler handler) {
+        this.name = name;
+        this.minArgs = minArgs;
+        this.maxArgs = maxArgs;
+        this.restricted = restricted;
+        this.usage = usage;
+        this.usageError = Response.fixed("ERROR: Invalid Arguments\nUsage: " + usage, ResponseCode.None);
+        this.handler = handler;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public boolean isRestricted() {
+        return this.restricted;
+    }
+
+    public boolean acceptsNumArgs(int numArgs) {
+        return numArgs >= minArgs && numArgs <= maxArgs;
+    }
+
+    public String getUsage() {
+        return this.usage;
+    }
+
+    /**
+     * @return the response to the command being called with the wrong number of
+     *         args
+     */
+    public Response getUsageError() {
+        return this.usageError;
+    }
+
+    /**
+     * @return the response that should be written back to the client
+     */
+    public Response call(SFTPSession session, CommandLine commandLine) {
+        return handler.call(session, commandLine);
+    }
+
+    /**
+     * Carries out a command for a session, given the parsed command call.
+     */
+    public interface Handler {
+        Response call(SFTPSession session, CommandLine commandLine);
+    }
+}
@@ -0,0 +1,97 @@
+package server;
+
+/**
+ * A command call split into its name and args on runs of whitespace, the same
+ * way as String.split("\\s+"). Rather than building a new array or list for
+ * every call, a CommandLine is reused: parse() only records where each token
+ * starts and ends in the line, and an arg is only copied out as a String when
+ * it is asked for.
+ */
+public class CommandLine {
+    // enough for the name and four args, the most any command accepts
+    private static final int MAX_TOKENS = 5;
+
+    private String line;
+    private int[] tokenStarts;
+    private int[] tokenEnds;
+    private int numTokens;
+
+    public CommandLine() {
+        this.tokenStarts = new int[MAX_TOKENS];
+        this.tokenEnds = new int[MAX_TOKENS];
+    }
+
+    /**
+     * Splits line into tokens, replacing whatever was parsed before. As with
+     * String.split(), leading whitespace gives an empty first token (and so an
+     * empty command name) while trailing whitespace is ignored.
+     */
+    public void parse(String line) {
+        this.line = line;
+        this.numTokens = 0;
+        int length = line.length();
+        int i = 0;
+        if (length > 0 && isWhitespace(line.charAt(0))) {
+            addToken(0, 0);
+            while (i < length && isWhitespace(line.charAt(i))) {
+                i++;
+            }
+        }
+        while (i < length) {
+            int start = i;
+            while (i < length && !isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            addToken(start, i);
+            while (i < length && isWhitespace(line.charAt(i))) {
+                i++;
+            }
+        }
+        if (numTokens == 0) {
+            addToken(0, 0);
+        }
+    }
+
+    public String getLine() {
+        return this.line;
+    }
+
+    public int getNameStart() {
+        return tokenStarts[0];
+    }
+
+    public int getNameEnd() {
+        return tokenEnds[0];
+    }
+
+    public String getName() {
+        return line.substring(tokenStarts[0], tokenEnds[0]);
+    }
+
+    public int getNumArgs() {
+        return numTokens - 1;
+    }
+
+    /**
+     * @return the arg at index, where the arg following the command name is 0
+     */
+    public String getArg(int index) {
+        return line.substring(tokenStarts[index + 1], tokenEnds[index + 1]);
+    }
+
+    private void addToken(int start, int end) {
+        // tokens beyond MAX_TOKENS are only counted, as that is enough to reject the call
+        if (numTokens < MAX_TOKENS) {
+            tokenStarts[numTokens] = start;
+            tokenEnds[numTokens] = end;
+        }
+        numTokens++;
+    }
+
+    /**
+     * @return whether c matches the regex \s
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
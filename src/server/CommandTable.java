@@ -0,0 +1,57 @@
+package server;
+
+/**
+ * Looks up Commands by name in a small, sparsely filled open addressing hash
+ * table. The name is read straight out of a CommandLine, so no String has to be
+ * created for it.
+ */
+public class CommandTable {
+    private Command[] slots;
+    private int mask;
+
+    public CommandTable(Command... commands) {
+        // at least four slots per command, so that most lookups take a single probe
+        int numSlots = Integer.highestOneBit(commands.length * 4 - 1) << 1;
+        this.slots = new Command[numSlots];
+        this.mask = numSlots - 1;
+        for (Command command : commands) {
+            String name = command.getName();
+            int slot = hash(name, 0, name.length()) & mask;
+            while (slots[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = command;
+        }
+    }
+
+    /**
+     * @return the command named by commandLine, or null if there isn't one
+     */
+    public Command lookup(CommandLine commandLine) {
+        String line = commandLine.getLine();
+        int nameStart = commandLine.getNameStart();
+        int nameLength = commandLine.getNameEnd() - nameStart;
+        int slot = hash(line, nameStart, nameLength) & mask;
+        Command command;
+        while ((command = slots[slot]) != null) {
+            String name = command.getName();
+            if (name.length() == nameLength && line.regionMatches(nameStart, name, 0, nameLength)) {
+                return command;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @return the same hash as String.hashCode() for the region of s, spread so
+     *         that the low bits used to pick a slot depend on every char
+     */
+    private static int hash(String s, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,192 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+import fs.FileSystem;
+import utils.BufferPool;
+
+/**
+ * Represents a directory listing that is to be sent to the client in response
+ * to LIST: the path of the directory followed by a line for each entry, and
+ * the '\0' terminator. Entries are taken from an iterator one at a time and
+ * encoded into a pooled buffer as it is sent, so a listing of a directory of
+ * any size is never built in memory as a whole. A verbose listing takes entries
+ * a batch at a time instead, so that the sizes of a whole batch can be read at
+ * once, and sends them in the order they were taken. Reading the directory
+ * and the sizes can block, so each buffer is filled by prepare(), which a
+ * non-blocking caller can run on another thread before writing it. Chars are
+ * encoded the same way as a Response, keeping only the low eight bits of each.
+ */
+public class DirectoryListing implements PendingWrite {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 32;
+    private static final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private static final int BATCH_SIZE = 1024;
+
+    private String dirPath;
+    private Iterator<Path> entries;
+    private Closeable source;
+    private boolean verbose;
+    private Path[] batch;
+    private long[] batchSizes;
+    private int batchLength;
+    private int batchIndex;
+    private byte[] buffer;
+    private ByteBuffer pendingBuffer;
+    private String line;
+    private int lineOffset;
+    private boolean lastLineTaken;
+    private boolean encoded;
+
+    /**
+     * @param dirPath the directory being listed, relative to the home directory
+     * @param entries the entries to list, in the order they are sent
+     * @param source  closed once the listing is done, such as the
+     *                DirectoryStream entries come from, or null if there is
+     *                nothing to close
+     * @param verbose whether each entry is described in full as LIST V does,
+     *                rather than just named as LIST F does
+     */
+    public DirectoryListing(String dirPath, Iterator<Path> entries, Closeable source, boolean verbose) {
+        this.dirPath = dirPath;
+        this.entries = entries;
+        this.source = source;
+        this.verbose = verbose;
+        this.line = ResponseCode.Success.toString() + dirPath;
+    }
+
+    /**
+     * Writes the lines encoded by the last prepare(), encoding them first if
+     * they haven't been. Returns false without filling the buffer again once
+     * they have all been written, so that the next buffer can be prepared.
+     */
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        if (needsPreparing()) {
+            prepare();
+        }
+        if (pendingBuffer != null) {
+            channel.write(pendingBuffer);
+            if (pendingBuffer.hasRemaining()) {
+                return false; // channel is full
+            }
+            pendingBuffer = null;
+        }
+        if (encoded) {
+            close();
+            return true;
+        }
+        return false; // the next lines are still to be encoded
+    }
+
+    public boolean needsPreparing() {
+        return pendingBuffer == null && !encoded;
+    }
+
+    /**
+     * Fills the buffer with the next lines to be sent, reading more of the
+     * directory as needed.
+     */
+    public void prepare() throws IOException {
+        if (buffer == null) {
+            buffer = bufferPool.acquire();
+        }
+        int length = fillBuffer();
+        if (length == 0) {
+            encoded = true;
+        } else {
+            pendingBuffer = ByteBuffer.wrap(buffer, 0, length);
+        }
+    }
+
+    public void close() {
+        try {
+            if (source != null) {
+                source.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        source = null;
+        batch = null;
+        batchSizes = null;
+        if (buffer != null) {
+            bufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Encodes as many of the lines still to be sent as fit into the buffer,
+     * carrying a line that doesn't fit over to the next time it is filled.
+     * 
+     * @return the number of bytes encoded, or 0 once the whole listing has been
+     *         encoded
+     */
+    private int fillBuffer() throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            if (line == null && !takeNextLine()) {
+                break;
+            }
+            int numChars = Math.min(line.length() - lineOffset, buffer.length - length);
+            for (int i = 0; i < numChars; i++) {
+                buffer[length++] = (byte) line.charAt(lineOffset++);
+            }
+            if (lineOffset == line.length()) {
+                line = null;
+                lineOffset = 0;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return false once every line, including the terminator, has been taken
+     */
+    private boolean takeNextLine() throws IOException {
+        try {
+            if (verbose) {
+                if (batchIndex == batchLength) {
+                    takeNextBatch();
+                }
+                if (batchIndex < batchLength) {
+                    line = "\n" + FileSystem.formatDirEntry(dirPath, batch[batchIndex], batchSizes[batchIndex]);
+                    batch[batchIndex++] = null;
+                    return true;
+                }
+            } else if (entries.hasNext()) {
+                line = "\n" + FileSystem.formatDirEntry(entries.next());
+                return true;
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        if (lastLineTaken) {
+            return false;
+        }
+        line = "\0";
+        lastLineTaken = true;
+        return true;
+    }
+
+    /**
+     * Takes up to BATCH_SIZE more entries and reads all of their sizes.
+     */
+    private void takeNextBatch() {
+        if (batch == null) {
+            batch = new Path[BATCH_SIZE];
+            batchSizes = new long[BATCH_SIZE];
+        }
+        batchLength = 0;
+        batchIndex = 0;
+        while (batchLength < BATCH_SIZE && entries.hasNext()) {
+            batch[batchLength++] = entries.next();
+        }
+        FileSystem.readDirEntrySizes(batch, batchLength, batchSizes);
+    }
+}
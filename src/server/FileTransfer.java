@@ -0,0 +1,284 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+
+import fs.FileSystem;
+import fs.SharedFileChannel;
+import utils.Base64ChunkEncoder;
+import utils.BufferPool;
+import utils.DeflateFrames;
+
+/**
+ * Represents a file that is to be sent to the client following a RETR and SEND
+ * call, followed by the '\0' terminator unless the client is in binary mode.
+ * Small files are sent from the FileSystem's file cache where possible. Larger
+ * raw files are streamed straight from disk to the client's channel with
+ * FileChannel.transferTo(), which the OS can carry out without copying the file
+ * through the heap. Larger Base64 files are read a chunk at a time and encoded
+ * into a pooled buffer as they are sent, so memory use per transfer stays the
+ * same however large the file is. Compressed files are deflated the same way,
+ * a chunk at a time, and sent as frames followed by an empty end frame. Either
+ * way the file is read with positional reads, so a transfer can start part way
+ * through the file to resume one that was interrupted, and every transfer of
+ * the same file can share one channel, as happens when a client retrieves
+ * segments of it over several connections.
+ */
+public class FileTransfer implements PendingWrite {
+    // a multiple of 3, so that only the final chunk of a file is padded
+    private static final int CHUNK_SIZE = 48 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 32;
+    private static final BufferPool chunkPool = new BufferPool(CHUNK_SIZE, MAX_POOLED_BUFFERS);
+    private static final BufferPool encodedChunkPool = new BufferPool(
+            Base64ChunkEncoder.encodedLength(CHUNK_SIZE), MAX_POOLED_BUFFERS);
+    private static volatile int compressionLevel = DeflateFrames.DEFAULT_LEVEL;
+
+    private String filePath;
+    private long fileSize;
+    private TransferEncoding encoding;
+    private SharedFileChannel sharedChannel;
+    private FileChannel fileChannel;
+    private ByteBuffer cachedContents;
+    private long position;
+    private long bytesRemaining;
+    private byte[] chunk;
+    private byte[] encodedChunk;
+    private ByteBuffer pendingEncodedChunk;
+    private Deflater deflater;
+    private ByteBuffer terminator;
+
+    /**
+     * Sends the whole file, unless a range is set with setRange().
+     * 
+     * @param fileSize   the size of the file on disk. This should match the size
+     *                   given to the client in response to RETR once encoded.
+     * @param terminated whether the file should be followed by '\0' like other
+     *                   responses. Raw binary transfers are not, as the client
+     *                   reads exactly the number of bytes it was told to expect,
+     *                   and compressed transfers end with their end frame instead.
+     */
+    public FileTransfer(String filePath, long fileSize, TransferEncoding encoding, boolean terminated) {
+        this.filePath = filePath;
+        this.fileSize = fileSize;
+        this.encoding = encoding;
+        this.bytesRemaining = fileSize;
+        if (encoding == TransferEncoding.Deflate) {
+            this.terminator = ByteBuffer.wrap(DeflateFrames.endFrame());
+        } else {
+            this.terminator = terminated ? ByteBuffer.wrap(new byte[] { '\0' }) : ByteBuffer.allocate(0);
+        }
+    }
+
+    /**
+     * Sets the level files are deflated at when sent in compressed mode, from 0
+     * (no compression) to 9 (best compression), or -1 for zlib's default.
+     */
+    public static void configureCompressionLevel(int level) {
+        DeflateFrames.checkLevel(level);
+        compressionLevel = level;
+    }
+
+    public String getFilePath() {
+        return this.filePath;
+    }
+
+    /**
+     * Limits the transfer to length bytes of the file starting from offset. In
+     * Base64 the range must start on a multiple of 3 bytes, so that its encoding
+     * is exactly the matching part of the whole file's, and only a range that
+     * runs to the end of the file may have a length that isn't a multiple of 3.
+     * 
+     * @throws IllegalArgumentException if the range is outside the file, or not
+     *                                  aligned for Base64
+     */
+    public void setRange(long offset, long length) {
+        if (offset < 0 || length < 0 || offset + length > fileSize) {
+            throw new IllegalArgumentException("Range is outside of " + filePath);
+        }
+        if (encoding == TransferEncoding.Base64
+                && (offset % 3 != 0 || (length % 3 != 0 && offset + length != fileSize))) {
+            throw new IllegalArgumentException("Range must be aligned to 3 bytes in Base64");
+        }
+        this.position = offset;
+        this.bytesRemaining = length;
+    }
+
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        if (fileChannel == null && cachedContents == null) {
+            open();
+        }
+        boolean fileWritten;
+        if (cachedContents != null) {
+            channel.write(cachedContents);
+            fileWritten = !cachedContents.hasRemaining();
+        } else if (encoding == TransferEncoding.Base64) {
+            fileWritten = writeBase64To(channel);
+        } else if (encoding == TransferEncoding.Deflate) {
+            fileWritten = writeDeflatedTo(channel);
+        } else {
+            fileWritten = writeRawTo(channel);
+        }
+        if (!fileWritten) {
+            return false;
+        }
+        channel.write(terminator);
+        if (terminator.hasRemaining()) {
+            return false;
+        }
+        close();
+        return true;
+    }
+
+    public void close() {
+        try {
+            if (sharedChannel != null) {
+                sharedChannel.release();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        sharedChannel = null;
+        fileChannel = null;
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (chunk != null) {
+            chunkPool.release(chunk);
+            encodedChunkPool.release(encodedChunk);
+            chunk = null;
+            encodedChunk = null;
+        }
+    }
+
+    /**
+     * Takes the file's contents from the file cache if it is small enough to be
+     * cached, otherwise opens it to be streamed.
+     */
+    private void open() throws IOException {
+        // compressed contents can't be sliced for a range, so are never cached
+        byte[] contents = (encoding == TransferEncoding.Deflate) ? null
+                : FileSystem.readCachedFile(filePath, fileSize, encoding);
+        if (contents != null) {
+            // the range is aligned so that in Base64 every 3 bytes of the file are 4 cached bytes
+            if (encoding == TransferEncoding.Base64) {
+                cachedContents = ByteBuffer.wrap(contents, (int) (position / 3 * 4),
+                        Base64ChunkEncoder.encodedLength((int) bytesRemaining));
+            } else {
+                cachedContents = ByteBuffer.wrap(contents, (int) position, (int) bytesRemaining);
+            }
+        } else {
+            sharedChannel = FileSystem.openSharedFileChannel(filePath);
+            fileChannel = sharedChannel.getChannel();
+        }
+    }
+
+    /**
+     * @return true once the whole file has been written, false if the channel
+     *         filled up first
+     */
+    private boolean writeRawTo(WritableByteChannel channel) throws IOException {
+        while (bytesRemaining > 0) {
+            long bytesWritten = fileChannel.transferTo(position, bytesRemaining, channel);
+            if (bytesWritten == 0) {
+                if (position >= fileChannel.size()) {
+                    throw new EOFException(filePath + " is shorter than the size sent to the client");
+                }
+                return false; // channel is full
+            }
+            position += bytesWritten;
+            bytesRemaining -= bytesWritten;
+        }
+        return true;
+    }
+
+    /**
+     * Encodes and writes the file one chunk at a time, only reading the next chunk
+     * once the channel has accepted all of the previous one.
+     * 
+     * @return true once the whole file has been written, false if the channel
+     *         filled up first
+     */
+    private boolean writeBase64To(WritableByteChannel channel) throws IOException {
+        if (chunk == null) {
+            chunk = chunkPool.acquire();
+            encodedChunk = encodedChunkPool.acquire();
+        }
+        while (true) {
+            if (pendingEncodedChunk != null) {
+                channel.write(pendingEncodedChunk);
+                if (pendingEncodedChunk.hasRemaining()) {
+                    return false; // channel is full
+                }
+                pendingEncodedChunk = null;
+            }
+            if (bytesRemaining == 0) {
+                return true;
+            }
+            int chunkLength = readChunk();
+            int encodedLength = Base64ChunkEncoder.encode(chunk, chunkLength, encodedChunk);
+            pendingEncodedChunk = ByteBuffer.wrap(encodedChunk, 0, encodedLength);
+        }
+    }
+
+    /**
+     * Deflates and writes the file one chunk at a time, as frames of up to the
+     * size of an encoded chunk, only reading the next chunk once the deflater
+     * has taken all of the previous one.
+     * 
+     * @return true once every frame of the file has been written, false if the
+     *         channel filled up first
+     */
+    private boolean writeDeflatedTo(WritableByteChannel channel) throws IOException {
+        if (chunk == null) {
+            chunk = chunkPool.acquire();
+            encodedChunk = encodedChunkPool.acquire();
+            deflater = new Deflater(compressionLevel);
+        }
+        while (true) {
+            if (pendingEncodedChunk != null) {
+                channel.write(pendingEncodedChunk);
+                if (pendingEncodedChunk.hasRemaining()) {
+                    return false; // channel is full
+                }
+                pendingEncodedChunk = null;
+            }
+            if (deflater.finished()) {
+                return true;
+            }
+            if (deflater.needsInput() && bytesRemaining > 0) {
+                deflater.setInput(chunk, 0, readChunk());
+            }
+            if (bytesRemaining == 0) {
+                deflater.finish();
+            }
+            int frameLength = DeflateFrames.deflateFrame(deflater, encodedChunk);
+            if (frameLength > 0) {
+                pendingEncodedChunk = ByteBuffer.wrap(encodedChunk, 0, frameLength);
+            }
+        }
+    }
+
+    /**
+     * Fills chunk with the next CHUNK_SIZE bytes of the file, or all of the bytes
+     * left to send if there are fewer than that.
+     * 
+     * @return the number of bytes read into chunk
+     */
+    private int readChunk() throws IOException {
+        int chunkLength = (int) Math.min(CHUNK_SIZE, bytesRemaining);
+        ByteBuffer chunkBuffer = ByteBuffer.wrap(chunk, 0, chunkLength);
+        while (chunkBuffer.hasRemaining()) {
+            int bytesRead = fileChannel.read(chunkBuffer, position);
+            if (bytesRead == -1) {
+                throw new EOFException(filePath + " is shorter than the size sent to the client");
+            }
+            position += bytesRead;
+        }
+        bytesRemaining -= chunkLength;
+        return chunkLength;
+    }
+}
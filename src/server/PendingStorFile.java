@@ -1,22 +1,66 @@
 package server;
 
-import utils.Utils;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import fs.FileSystem;
+import fs.PartialUpload;
+import utils.DeflateFrames;
 
 /**
- * Represents a file that is to be written following a STOR and SIZE call
+ * Represents a file that is to be written following a STOR and SIZE call. The
+ * file contents are written to a staging file as they arrive rather than being
+ * held in memory, and any bytes beyond the size given to SIZE are dropped. The
+ * file itself is only written once all of the contents have arrived, so an
+ * interrupted upload never leaves part of itself behind in it. Instead it can
+ * be suspended, and resumed later by another connection.
+ *
+ * In compressed mode the contents arrive as deflated frames, which are
+ * inflated into a fixed size buffer as they arrive and written from there.
+ * The upload then runs until the end frame rather than for a number of bytes,
+ * and the size given to SIZE is what the contents must inflate to.
  */
 public class PendingStorFile {
+    private static final int DEFLATE_BUFFER_SIZE = 64 * 1024;
+
     private String filePath;
-    private String bytesToWrite;
-    private int maxBytes;
+    private long maxBytes;
+    private long numBytesReceived;
+    private long numBytesWritten;
     private String writeMode;
     private String transferType;
+    private boolean raw;
+    private Path stagingFile;
+    private long numBytesCommitted;
+    private FileChannel fileChannel;
+    private IOException writeError;
+    // only set for compressed uploads
+    private Inflater inflater;
+    private ByteBuffer inflatedBytes;
+    private byte[] frameHeader;
+    private int frameHeaderLength;
+    private int frameBytesRemaining;
+    private boolean endFrameReceived;
 
     public PendingStorFile(String filePath, String writeMode) {
         this.filePath = filePath;
         this.writeMode = writeMode;
     }
 
+    /**
+     * Resumes an interrupted upload, following on from the contents it had already
+     * committed.
+     */
+    public PendingStorFile(PartialUpload partialUpload) {
+        this(partialUpload.getFilePath(), partialUpload.getWriteMode());
+        this.stagingFile = partialUpload.getStagingFile();
+        this.numBytesCommitted = partialUpload.getNumBytesCommitted();
+    }
+
     public String getFilePath() {
         return this.filePath;
     }
@@ -25,15 +69,7 @@ public class PendingStorFile {
         this.filePath = filePath;
     }
 
-    public void setBytesToWrite(String s) {
-        this.bytesToWrite = s;
-    }
-
-    public String getClampedBytesToWrite() {
-        return Utils.safeSubstring(bytesToWrite, 0, maxBytes);
-    }
-
-    public void setMaxBytes(int maxBytes) {
+    public void setMaxBytes(long maxBytes) {
         this.maxBytes = maxBytes;
     }
 
@@ -48,4 +84,270 @@ public class PendingStorFile {
     public void setTransferType(String transferType) {
         this.transferType = transferType;
     }
+
+    /**
+     * Marks the file contents as being sent in binary mode, as exactly maxBytes
+     * raw bytes rather than a line of text.
+     */
+    public void expectRawBytes() {
+        this.raw = true;
+    }
+
+    public boolean isRaw() {
+        return this.raw;
+    }
+
+    /**
+     * Marks the file contents as being sent in compressed mode, as deflated frames
+     * that inflate to maxBytes bytes.
+     */
+    public void expectDeflatedFrames() {
+        this.raw = true;
+        this.inflater = new Inflater();
+        this.inflatedBytes = ByteBuffer.allocate(DEFLATE_BUFFER_SIZE);
+        this.frameHeader = new byte[DeflateFrames.HEADER_LENGTH];
+    }
+
+    public Path getStagingFile() {
+        return this.stagingFile;
+    }
+
+    public void setStagingFile(Path stagingFile) {
+        this.stagingFile = stagingFile;
+    }
+
+    /**
+     * @return the number of bytes of the contents received by an earlier
+     *         connection, before the upload was interrupted
+     */
+    public long getNumBytesCommitted() {
+        return this.numBytesCommitted;
+    }
+
+    /**
+     * @return the number of bytes still expected. In compressed mode this is how
+     *         many bytes are left of the current frame or its header, as the
+     *         total isn't known until the end frame arrives.
+     */
+    public long getNumBytesRemaining() {
+        if (inflater != null) {
+            if (endFrameReceived) {
+                return 0;
+            }
+            return (frameBytesRemaining > 0) ? frameBytesRemaining : DeflateFrames.HEADER_LENGTH - frameHeaderLength;
+        }
+        return Math.max(0, maxBytes - numBytesReceived);
+    }
+
+    /**
+     * Opens the staging file so that the contents can be written as they arrive.
+     * 
+     * @throws IOException if the staging file could not be opened
+     */
+    public void open() throws IOException {
+        fileChannel = FileSystem.openStagingChannel(this);
+    }
+
+    /**
+     * Writes as many bytes from src to the file as are still expected, leaving any
+     * others in it. If a write fails the bytes are still taken from src, so the
+     * rest of the upload can be consumed, and the error is thrown by finish().
+     */
+    public void write(ByteBuffer src) {
+        if (inflater != null) {
+            while (src.hasRemaining() && !endFrameReceived) {
+                writeFrameBytes(src);
+            }
+            return;
+        }
+        int length = (int) Math.min(src.remaining(), getNumBytesRemaining());
+        ByteBuffer bytes = src.slice();
+        bytes.limit(length);
+        src.position(src.position() + length);
+        numBytesReceived += length;
+        if (writeError != null) {
+            return;
+        }
+        try {
+            while (bytes.hasRemaining()) {
+                numBytesWritten += writeToStaging(bytes);
+            }
+        } catch (IOException e) {
+            writeError = e;
+        }
+    }
+
+    /**
+     * Takes the next bytes of the current frame from src, or of its header if that
+     * hasn't all arrived yet, inflating them and writing what they inflate to. If
+     * the contents aren't valid or inflate to more than maxBytes the frames are
+     * still consumed, so the rest of the upload is, and the error is thrown by
+     * finish().
+     */
+    private void writeFrameBytes(ByteBuffer src) {
+        if (frameBytesRemaining == 0) {
+            int length = Math.min(src.remaining(), DeflateFrames.HEADER_LENGTH - frameHeaderLength);
+            src.get(frameHeader, frameHeaderLength, length);
+            frameHeaderLength += length;
+            if (frameHeaderLength == DeflateFrames.HEADER_LENGTH) {
+                frameHeaderLength = 0;
+                frameBytesRemaining = DeflateFrames.readHeader(frameHeader, 0);
+                endFrameReceived = (frameBytesRemaining == 0);
+                if (frameBytesRemaining < 0) {
+                    writeError = new IOException("contents, a frame has a negative length");
+                    frameBytesRemaining = 0;
+                    endFrameReceived = true;
+                }
+            }
+            return;
+        }
+        int length = Math.min(src.remaining(), frameBytesRemaining);
+        ByteBuffer frameBytes = src.slice();
+        frameBytes.limit(length);
+        src.position(src.position() + length);
+        frameBytesRemaining -= length;
+        numBytesReceived += length;
+        if (writeError != null) {
+            return;
+        }
+        try {
+            inflater.setInput(frameBytes);
+            while (!inflater.needsInput() && !inflater.finished()) {
+                inflatedBytes.clear();
+                if (inflater.inflate(inflatedBytes) == 0 && inflater.needsDictionary()) {
+                    throw new IOException("contents, they need a preset dictionary");
+                }
+                inflatedBytes.flip();
+                if (numBytesWritten + inflatedBytes.remaining() > maxBytes) {
+                    throw new IOException("contents, they inflate to more than their size");
+                }
+                while (inflatedBytes.hasRemaining()) {
+                    numBytesWritten += writeToStaging(inflatedBytes);
+                }
+            }
+            if (inflater.finished() && frameBytes.hasRemaining()) {
+                throw new IOException("contents, there are bytes after the end of the compressed data");
+            }
+        } catch (DataFormatException e) {
+            writeError = new IOException("contents, they are not valid compressed data");
+        } catch (IOException e) {
+            writeError = e;
+        }
+    }
+
+    /**
+     * Writes the next bytes of the contents to wherever they are staged.
+     * 
+     * @return the number of bytes written
+     */
+    protected int writeToStaging(ByteBuffer bytes) throws IOException {
+        return fileChannel.write(bytes);
+    }
+
+    /**
+     * @return the number of bytes the client said it would send with SIZE
+     */
+    protected long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * @return the number of bytes of the contents written to the staging file by
+     *         this connection
+     */
+    protected long getNumBytesWritten() {
+        return this.numBytesWritten;
+    }
+
+    /**
+     * @return the error that stopped any of the contents being written, or null
+     */
+    protected IOException getWriteError() {
+        return this.writeError;
+    }
+
+    /**
+     * Once all of the contents have been received, closes the staging file and
+     * stores them to the file according to the write mode.
+     * 
+     * @throws IOException if any of the contents could not be written, or the
+     *                     file could not be stored
+     */
+    public void finish() throws IOException {
+        closeChannel();
+        endInflater();
+        try {
+            if (writeError != null) {
+                throw writeError;
+            } else if (inflater != null && numBytesWritten != maxBytes) {
+                throw new IOException("contents, they inflate to " + numBytesWritten + " bytes rather than "
+                        + maxBytes);
+            }
+            FileSystem.commitStagedFile(this);
+        } catch (IOException e) {
+            FileSystem.discardStagedFile(this);
+            throw e;
+        }
+    }
+
+    /**
+     * Suspends an upload that was interrupted before all of its contents arrived,
+     * making sure what was received is on disk so that it can be resumed.
+     * 
+     * @return a record of the upload to resume it from, or null if there is
+     *         nothing worth resuming, in which case the upload is discarded
+     */
+    public PartialUpload suspend() {
+        endInflater();
+        // the rest of a compressed upload can't be inflated without the state lost here
+        if (inflater != null) {
+            close();
+            return null;
+        }
+        if (fileChannel != null && writeError == null) {
+            try {
+                fileChannel.force(false);
+            } catch (IOException e) {
+                writeError = e;
+            }
+        }
+        closeChannel();
+        long numBytesOnDisk = numBytesCommitted + numBytesWritten;
+        if (writeError != null || stagingFile == null || numBytesOnDisk == 0) {
+            close();
+            return null;
+        }
+        return new PartialUpload(stagingFile, filePath, writeMode, numBytesOnDisk);
+    }
+
+    /**
+     * Discards the upload, along with anything written so far.
+     */
+    public void close() {
+        closeChannel();
+        endInflater();
+        FileSystem.discardStagedFile(this);
+    }
+
+    /**
+     * Frees the native memory held for inflating a compressed upload.
+     */
+    protected void endInflater() {
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            if (fileChannel != null) {
+                fileChannel.close();
+                fileChannel = null;
+            }
+        } catch (IOException e) {
+            if (writeError == null) {
+                writeError = e;
+            }
+        }
+    }
 }
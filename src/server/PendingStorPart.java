@@ -0,0 +1,111 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import fs.MultipartUpload;
+import fs.PartialUpload;
+
+/**
+ * Represents one part of a multipart upload that is to be written following a
+ * PART and SIZE call. The part is written straight to its place in the
+ * upload's staging file, which is shared with the other parts, and its CRC-32
+ * is worked out as it arrives. It only counts towards the upload if every byte
+ * given to SIZE arrived and the checksum matches the one given to PART.
+ * Otherwise it has to be sent again.
+ */
+public class PendingStorPart extends PendingStorFile {
+    private MultipartUpload upload;
+    private long offset;
+    private long expectedChecksum;
+    private CRC32 checksum;
+    private FileChannel fileChannel;
+    private long position;
+
+    /**
+     * @param offset           the byte of the file the part starts at
+     * @param expectedChecksum the CRC-32 of the part's contents
+     */
+    public PendingStorPart(MultipartUpload upload, long offset, long expectedChecksum) {
+        super(upload.getFilePath(), "part");
+        this.upload = upload;
+        this.offset = offset;
+        this.expectedChecksum = expectedChecksum;
+        this.checksum = new CRC32();
+    }
+
+    public long getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * Starts writing the part to the upload's staging file.
+     * 
+     * @throws IOException if the upload is no longer in progress
+     */
+    public void open() throws IOException {
+        fileChannel = upload.beginPart();
+        position = offset;
+    }
+
+    protected int writeToStaging(ByteBuffer bytes) throws IOException {
+        int start = bytes.position();
+        int bytesWritten = fileChannel.write(bytes, position);
+        checksum.update(bytes.duplicate().position(start).limit(start + bytesWritten));
+        position += bytesWritten;
+        return bytesWritten;
+    }
+
+    /**
+     * Once all of the part has been received, records it as part of the upload if
+     * it arrived intact.
+     * 
+     * @throws IOException if any of the part could not be written, it was shorter
+     *                     than the size given, or its checksum doesn't match
+     */
+    public void finish() throws IOException {
+        endInflater();
+        boolean intact = false;
+        try {
+            if (getWriteError() != null) {
+                throw getWriteError();
+            } else if (getNumBytesWritten() != getMaxBytes()) {
+                throw new IOException("part, it is shorter than its size");
+            } else if (checksum.getValue() != expectedChecksum) {
+                throw new IOException("part, its checksum doesn't match");
+            }
+            intact = true;
+        } finally {
+            endPart(intact);
+        }
+    }
+
+    /**
+     * An interrupted part can't be resumed, so it is dropped and has to be sent
+     * again, while the rest of the upload is kept.
+     * 
+     * @return null
+     */
+    public PartialUpload suspend() {
+        close();
+        return null;
+    }
+
+    /**
+     * Drops the part, leaving the rest of the upload as it is.
+     */
+    public void close() {
+        endInflater();
+        endPart(false);
+    }
+
+    private void endPart(boolean intact) {
+        if (fileChannel == null) {
+            return;
+        }
+        fileChannel = null;
+        upload.endPart(offset, getNumBytesWritten(), intact);
+    }
+}
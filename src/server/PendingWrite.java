@@ -0,0 +1,43 @@
+package server;
+
+import java.io.*;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Represents output that is queued to be written to a client's channel. If the
+ * channel is non-blocking it may not accept everything at once, so the write is
+ * continued each time the channel becomes writable again.
+ */
+public interface PendingWrite {
+    /**
+     * Writes as much as the channel will accept.
+     * 
+     * @return true once everything has been written
+     * @throws IOException if the channel could not be written to
+     */
+    boolean writeTo(WritableByteChannel channel) throws IOException;
+
+    /**
+     * @return whether the next bytes to write have to be produced first, in a
+     *         way that may block, such as by reading a directory. writeTo()
+     *         produces them itself if they haven't been, but a caller that mustn't
+     *         block can call prepare() on another thread first.
+     */
+    default boolean needsPreparing() {
+        return false;
+    }
+
+    /**
+     * Produces the next bytes to write, so that writeTo() can write them without
+     * blocking on anything but the channel.
+     * 
+     * @throws IOException if they could not be produced
+     */
+    default void prepare() throws IOException {
+    }
+
+    /**
+     * Releases anything held by the write, whether or not it was completed.
+     */
+    void close();
+}
@@ -0,0 +1,116 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A response to a client, already encoded exactly as it is written: the
+ * response code, the message and the terminating '\0'. Chars are encoded the
+ * same way as DataOutputStream.writeBytes(), keeping only the low eight bits of
+ * each.
+ *
+ * Most responses never change, so fixed() interns them. Each is encoded the
+ * first time it is used and the same instance is handed out from then on, so
+ * sending it allocates nothing. Responses that include values which change from
+ * call to call, such as paths, are encoded by a ResponseTemplate instead.
+ */
+public final class Response {
+    /**
+     * Sent when a call has nothing to say, such as a SEND whose file follows.
+     */
+    public static final Response EMPTY = new Response(new byte[0]);
+
+    private static final EnumMap<ResponseCode, ConcurrentHashMap<String, Response>> FIXED_RESPONSES;
+
+    static {
+        FIXED_RESPONSES = new EnumMap<ResponseCode, ConcurrentHashMap<String, Response>>(ResponseCode.class);
+        for (ResponseCode responseCode : ResponseCode.values()) {
+            FIXED_RESPONSES.put(responseCode, new ConcurrentHashMap<String, Response>());
+        }
+    }
+
+    private final byte[] bytes;
+
+    Response(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Looks up the interned response for a message that never changes. As each
+     * distinct message is kept for as long as the server runs, msg should be a
+     * constant. Use encode() or a ResponseTemplate for anything else.
+     */
+    public static Response fixed(String msg, ResponseCode responseCode) {
+        ConcurrentHashMap<String, Response> responses = FIXED_RESPONSES.get(responseCode);
+        Response response = responses.get(msg);
+        if (response == null) {
+            response = encode(msg, responseCode);
+            Response interned = responses.putIfAbsent(msg, response);
+            if (interned != null) {
+                response = interned;
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Encodes a response that is only sent once, such as a directory listing,
+     * straight into an array of exactly the right length.
+     */
+    public static Response encode(String msg, ResponseCode responseCode) {
+        String prefix = responseCode.toString();
+        byte[] bytes = new byte[prefix.length() + msg.length() + 1];
+        int length = encodeChars(prefix, bytes, 0);
+        encodeChars(msg, bytes, length);
+        return new Response(bytes);
+    }
+
+    /**
+     * @return a response holding this response's message followed by next's on a
+     *         new line, for calls that report the outcome of two actions at once
+     */
+    public Response joinLines(Response next) {
+        int length = Math.max(0, bytes.length - 1);
+        byte[] joined = new byte[length + 1 + next.bytes.length];
+        System.arraycopy(bytes, 0, joined, 0, length);
+        joined[length] = '\n';
+        System.arraycopy(next.bytes, 0, joined, length + 1, next.bytes.length);
+        return new Response(joined);
+    }
+
+    /**
+     * @return the number of bytes written to send the response, including its
+     *         terminating '\0'
+     */
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * @return the response as it is sent, without its terminating '\0'
+     */
+    public String toString() {
+        return new String(bytes, 0, Math.max(0, bytes.length - 1), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the encoded response, which must not be modified as it may be shared
+     */
+    byte[] getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Encodes the chars of s into dst starting at offset.
+     *
+     * @return the offset following the last byte written
+     */
+    static int encodeChars(String s, byte[] dst, int offset) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            dst[offset++] = (byte) s.charAt(i);
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,66 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes responses that are the same every time apart from a few values, such
+ * as "Saved {}". The fixed parts of the message are encoded once when the
+ * template is created, so format() only encodes the values and copies the rest
+ * into a single array of exactly the right length, instead of concatenating
+ * the message and then encoding all of it.
+ */
+public final class ResponseTemplate {
+    private static final String PLACEHOLDER = "{}";
+
+    // the encoded parts between each placeholder, the first starting with the
+    // response code and the last ending with the terminating '\0'
+    private byte[][] fragments;
+    private int fragmentsLength;
+
+    /**
+     * @param pattern the message, with each value to be filled in marked by "{}"
+     */
+    public ResponseTemplate(String pattern, ResponseCode responseCode) {
+        List<String> parts = new ArrayList<String>();
+        int start = 0;
+        int placeholder;
+        while ((placeholder = pattern.indexOf(PLACEHOLDER, start)) != -1) {
+            parts.add(pattern.substring(start, placeholder));
+            start = placeholder + PLACEHOLDER.length();
+        }
+        parts.add(pattern.substring(start));
+        parts.set(0, responseCode.toString() + parts.get(0));
+
+        this.fragments = new byte[parts.size()][];
+        for (int i = 0; i < parts.size(); i++) {
+            boolean last = (i == parts.size() - 1);
+            fragments[i] = new byte[parts.get(i).length() + (last ? 1 : 0)];
+            Response.encodeChars(parts.get(i), fragments[i], 0);
+            fragmentsLength += fragments[i].length;
+        }
+    }
+
+    /**
+     * @param values the values to fill the placeholders with, in order
+     * @return the response with every placeholder filled in
+     */
+    public Response format(String... values) {
+        if (values.length != fragments.length - 1) {
+            throw new IllegalArgumentException("Expected " + (fragments.length - 1) + " values, got " + values.length);
+        }
+        int length = fragmentsLength;
+        for (String value : values) {
+            length += value.length();
+        }
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        for (int i = 0; i < values.length; i++) {
+            System.arraycopy(fragments[i], 0, bytes, offset, fragments[i].length);
+            offset = Response.encodeChars(values[i], bytes, offset + fragments[i].length);
+        }
+        byte[] lastFragment = fragments[values.length];
+        System.arraycopy(lastFragment, 0, bytes, offset, lastFragment.length);
+        return new Response(bytes);
+    }
+}
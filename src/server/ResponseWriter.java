@@ -0,0 +1,64 @@
+package server;
+
+import java.io.*;
+
+/**
+ * Writes responses to a client's OutputStream through a reusable buffer, so that
+ * a response goes out in one write (or one write per BUFFER_SIZE bytes for large
+ * responses) rather than one write per char. Responses are already encoded, so
+ * writing one only copies its bytes into the buffer.
+ */
+public class ResponseWriter {
+    // kept small as every connected client holds one
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private OutputStream out;
+    private byte[] buffer;
+    private int count;
+
+    public ResponseWriter(OutputStream out) {
+        this.out = out;
+        this.buffer = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Copies response into the buffer, writing the buffer out each time it fills
+     * up. Anything left in the buffer is only written once flush() is called.
+     * 
+     * @throws IOException if the underlying stream could not be written to
+     */
+    public void write(Response response) throws IOException {
+        byte[] bytes = response.getBytes();
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (count == buffer.length) {
+                writeBuffer();
+            }
+            int length = Math.min(bytes.length - offset, buffer.length - count);
+            System.arraycopy(bytes, offset, buffer, count, length);
+            count += length;
+            offset += length;
+        }
+    }
+
+    /**
+     * Writes anything left in the buffer to the underlying stream and flushes it.
+     * 
+     * @throws IOException if the underlying stream could not be written to
+     */
+    public void flush() throws IOException {
+        writeBuffer();
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void writeBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+}
@@ -2,12 +2,10 @@ package server;
 
 import java.io.*;
 import java.net.*;
-import java.util.List;
-import java.util.Arrays;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
-import fs.FileSystem;
-import fs.User;
 import utils.Utils;
 
 /**
@@ -15,43 +13,30 @@ import utils.Utils;
  * Intended for use with a Thread.
  */
 public class SFTPClientWorker implements Runnable {
-    private static final List<String> ZERO_ARG_CMDS = Arrays.asList("done", "send", "stop");
-    private static final List<String> ONE_OR_TWO_ARG_CMDS = Arrays.asList("list");
-    private static final List<String> TWO_ARG_CMDS = Arrays.asList("stor");
-    private static final List<String> RESTRICTED_CMDS = Arrays.asList("type", "list", "kill", "name",
-            "tobe", "retr", "send", "stop", "stor", "size");
-    private static final List<String> ALL_CMDS = Arrays.asList("user", "acct", "pass", "type", "list",
-            "cdir", "kill", "name", "tobe", "done", "retr", "send", "stop", "stor", "size");
+    private static final int FILE_BUFFER_SIZE = 8 * 1024;
 
     private int id;
     private Socket clientSocket;
-    private BufferedReader inFromClient;
-    private DataOutputStream outToClient;
-    private String transferType;
-    private User selectedUser;
-    private String selectedAccount;
-    private boolean passwordProvided;
-    private String currentDir;
-    private String pendingDirChange;
-    private String pendingFileToRename;
-    private String pendingFileToRetrieve;
-    private PendingStorFile pendingStorFile;
+    private ClientInputReader inFromClient;
+    private byte[] fileBuffer;
+    private ResponseWriter outToClient;
+    private WritableByteChannel clientChannel;
+    private boolean serverAvailable;
+    private SFTPSession session;
 
     public SFTPClientWorker(Socket clientSocket, int id, boolean serverAvailable) {
         this.id = id;
         this.clientSocket = clientSocket;
-        this.transferType = "b";
+        this.serverAvailable = serverAvailable;
+        this.session = new SFTPSession(id);
+        this.fileBuffer = new byte[FILE_BUFFER_SIZE];
         try {
-            inFromClient = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            outToClient = new DataOutputStream(clientSocket.getOutputStream());
-            if (serverAvailable) {
-                // if server is available, send positive welcome message
-                writeToClient(makeResponse(SFTPServer.getServerProtocol() + " Server Online", ResponseCode.Success));
-            } else {
-                // if the server is unavailable, send error message and close connection
-                writeToClient(makeResponse(SFTPServer.getServerProtocol() + " Server Unavailable", ResponseCode.Error));
-                closeConnection();
-            }
+            inFromClient = new ClientInputReader(clientSocket.getInputStream());
+            outToClient = new ResponseWriter(clientSocket.getOutputStream());
+            // sockets accepted from a ServerSocketChannel have a channel, which lets
+            // FileTransfers skip copying the file through the heap
+            clientChannel = (clientSocket.getChannel() != null) ? clientSocket.getChannel()
+                    : Channels.newChannel(clientSocket.getOutputStream());
         } catch (Exception e) {
             Utils.logMessage("Could not open streams from client " + id);
             e.printStackTrace();
@@ -62,33 +47,6 @@ public class SFTPClientWorker implements Runnable {
         return this.id;
     }
 
-    /**
-     * @return true of the Client has selected a valid User, account and password.
-     */
-    public boolean isLoggedIn() {
-        return isUserSelected() && isAccountSelected() && isPasswordProvided();
-    }
-
-    /**
-     * @return true if the Client has selected a User (does not imply they are
-     *         logged in).
-     */
-    public boolean isUserSelected() {
-        return this.selectedUser != null;
-    }
-
-    public boolean isAccountSelected() {
-        return this.selectedAccount != null || !this.selectedUser.requiresAccount();
-    }
-
-    public boolean isPasswordProvided() {
-        return passwordProvided || !this.selectedUser.requiresPassword();
-    }
-
-    public boolean isPendingDirChange() {
-        return this.pendingDirChange != null;
-    }
-
     public boolean isClosed() {
         return clientSocket.isClosed();
     }
@@ -98,14 +56,35 @@ public class SFTPClientWorker implements Runnable {
      * call the relevant server command, and sends the response back to the client.
      */
     public void run() {
+        greetClient();
         while (!isClosed()) {
             try {
-                // Get command call from client
-                String commandCall = readFromClient();
-                // Check which commmand was supplied and perform it
-                String commandRes = callCommand(commandCall);
+                Response commandRes;
+                if (session.isAwaitingFileBytes()) {
+                    // Get raw file contents sent in binary mode from client
+                    commandRes = session.receiveFileBytes(readFileBytesFromClient());
+                } else if (session.isAwaitingFileLine()) {
+                    // Get the next part of the file contents line from client
+                    ByteBuffer lineChunk = readFileLineFromClient();
+                    commandRes = session.receiveFileLine(lineChunk, inFromClient.isEndOfLine());
+                } else {
+                    // Get command call from client
+                    String input = readFromClient();
+                    // Check which commmand was supplied and perform it
+                    commandRes = session.handleInput(input);
+                }
                 // Send the result back to the client
                 writeToClient(commandRes);
+                PendingWrite transfer = session.takeTransfer();
+                if (transfer != null) {
+                    outToClient.flush();
+                    writeToClient(transfer);
+                }
+                // a pipelining client has already sent its next command, so its
+                // response can go out in the same write as this one
+                if (!commandIsBuffered()) {
+                    outToClient.flush();
+                }
             } catch (Exception e) { // If we fail to communicate with the client, close the connection
                 // Utils.logMessage("Could not read/write to client " + id);
                 // e.printStackTrace();
@@ -118,6 +97,7 @@ public class SFTPClientWorker implements Runnable {
      * Closes all connections to the client.
      */
     public void closeConnection() {
+        session.close();
         try {
             clientSocket.close();
             inFromClient.close();
@@ -129,18 +109,22 @@ public class SFTPClientWorker implements Runnable {
     }
 
     /**
-     * Clears any information associated with the clients current user session.
-     * (selectedUser, currentDir, pendingStorFile etc.)
+     * Sends the greeting to the client. The greeting is only sent once the worker
+     * starts running, so a client queued by the server's SessionLimiter waits on it
+     * until a session is available. If the server is unavailable, the connection is
+     * closed after sending the error message.
      */
-    private void clearUserState() {
-        selectedUser = null;
-        selectedAccount = null;
-        passwordProvided = false;
-        currentDir = null;
-        pendingDirChange = null;
-        pendingFileToRename = null;
-        pendingFileToRetrieve = null;
-        pendingStorFile = null;
+    private void greetClient() {
+        try {
+            writeToClient(SFTPSession.makeGreeting(serverAvailable));
+            outToClient.flush();
+        } catch (Exception e) {
+            closeConnection();
+            return;
+        }
+        if (!serverAvailable) {
+            closeConnection();
+        }
     }
 
     /**
@@ -155,414 +139,71 @@ public class SFTPClientWorker implements Runnable {
     }
 
     /**
-     * Writes a message to the client output buffer and flushes it. To ensure the
-     * client is aware when the message is finished, use makeResponse() which
-     * appropriately appends a null terminating character to the message.
+     * Reads the next part of a line of file contents from the client, up to the
+     * end of the line or of what has been received. This is a blocking method.
      * 
-     * @throws Exception if the client could not be written to
+     * @return a buffer holding the bytes read, without the line's terminator
+     * @throws Exception if input from the client could not be read, or the client
+     *                   disconnected before sending the whole line
      */
-    private void writeToClient(String s) throws Exception {
-        outToClient.writeBytes(s);
-        outToClient.flush();
+    private ByteBuffer readFileLineFromClient() throws Exception {
+        ByteBuffer lineChunk = inFromClient.readLineChunk();
+        if (lineChunk == null) {
+            throw new EOFException("Client " + id + " disconnected before sending the whole file");
+        }
+        return lineChunk;
     }
 
     /**
-     * @return true if the user is logged or the command does not required
-     *         authentication
+     * Reads whatever raw file contents are available from the client, up to the
+     * number of bytes the session is still waiting for. This is a blocking method.
+     * 
+     * @return a buffer holding the bytes read
+     * @throws Exception if input from the client could not be read, or the client
+     *                   disconnected before sending the whole file
      */
-    private boolean callIsAuthorized(String commandName) {
-        return isLoggedIn() || !RESTRICTED_CMDS.contains(commandName);
+    private ByteBuffer readFileBytesFromClient() throws Exception {
+        int length = (int) Math.min(fileBuffer.length, session.getNumFileBytesRemaining());
+        int bytesRead = inFromClient.read(fileBuffer, 0, length);
+        if (bytesRead == -1) {
+            throw new EOFException("Client " + id + " disconnected before sending the whole file");
+        }
+        return ByteBuffer.wrap(fileBuffer, 0, bytesRead);
     }
 
     /**
-     * Verifies that a command matching commmandName exists, and that the number of
-     * args provided is within bounds for that command.
-     * 
-     * @return whether the command and it's number of args is valid
+     * @return true if the next command call from the client has already been
+     *         received, so reading it won't block
      */
-    private boolean callIsValid(String commandName, int numArgs) {
-        boolean commandExists = ALL_CMDS.contains(commandName);
-        boolean twoArgCmdsOutOfBounds = (TWO_ARG_CMDS.contains(commandName) && (numArgs > 2 || numArgs < 2));
-        boolean oneOrTwoArgCmdsOutOfBounds = (ONE_OR_TWO_ARG_CMDS.contains(commandName)
-                && (numArgs < 1 || numArgs > 2));
-        boolean zeroArgCmdsOutOfBounds = (ZERO_ARG_CMDS.contains(commandName) && numArgs > 0);
-        boolean remainingCmdsOutOfBounds = (!TWO_ARG_CMDS.contains(commandName) && !ZERO_ARG_CMDS.contains(commandName)
-                && !ONE_OR_TWO_ARG_CMDS.contains(commandName) && (numArgs != 1));
-
-        return (commandExists && !twoArgCmdsOutOfBounds && !oneOrTwoArgCmdsOutOfBounds &&
-                !zeroArgCmdsOutOfBounds && !remainingCmdsOutOfBounds);
-    }
-
-    private String getArgError(String commandName) {
-        switch (commandName) {
-            case "user":
-                return "ERROR: Invalid Arguments\nUsage: USER user-id";
-            case "acct":
-                return "ERROR: Invalid Arguments\nUsage: ACCT account";
-            case "pass":
-                return "ERROR: Invalid Arguments\nUsage: PASS password";
-            case "type":
-                return "ERROR: Invalid Arguments\nUsage: TYPE { A | B | C }";
-            case "list":
-                return "ERROR: Invalid Arguments\nUsage: LIST { F | V } directory-path";
-            case "cdir":
-                return "ERROR: Invalid Arguments\nUsage: CDIR new-directory";
-            case "kill":
-                return "ERROR: Invalid Arguments\nUsage: KILL file-spec";
-            case "name":
-                return "ERROR: Invalid Arguments\nUsage: NAME old-file-spec";
-            case "tobe":
-                return "ERROR: Invalid Arguments\nUsage: TOBE new-file-spec";
-            case "done":
-                return "ERROR: Invalid Arguments\nUsage: DONE";
-            case "retr":
-                return "ERROR: Invalid Arguments\nUsage: RETR file-spec";
-            case "send":
-                return "ERROR: Invalid Arguments\nUsage: SEND";
-            case "stop":
-                return "ERROR: Invalid Arguments\nUsage: STOP";
-            case "stor":
-                return "ERROR: Invalid Arguments\nUsage: STOR { NEW | OLD | APP } file-spec";
-            case "size":
-                return "ERROR: Invalid Arguments\nUsage: SIZE number-of-bytes-in-file";
-            default:
-                return "ERROR: Invalid Command\r\nAvailable Commands: \"USER\", \"ACCT\", \"PASS\", \"TYPE\", \"LIST\","
-                        + " \"CDIR\", \"KILL\", \"NAME\", \"TOBE\", \"DONE\", \"RETR\", \"SEND\", \"STOP\", \"STOR\", \"SIZE\"";
-        }
+    private boolean commandIsBuffered() {
+        return !session.isAwaitingFile() && inFromClient.hasBufferedLine();
     }
 
     /**
-     * Calls a string that represents a server command call and returns the result
-     * of the call. May also return errors from lack of authorization or invalid
-     * arguments.
+     * Writes a response to the client output buffer, which is only sent once it is
+     * flushed.
      * 
-     * @param commandCall
-     * @return results of the command call or a meaningful error
+     * @throws Exception if the client could not be written to
      */
-    private String callCommand(String commandCall) {
-        ArrayList<String> commandArgs = Utils.splitString(commandCall, "\\s+");
-        String commandName = commandArgs.remove(0); // first value in call is just the command name
-
-        if (!callIsAuthorized(commandName)) {
-            return makeResponse("Please log in first", ResponseCode.Error);
-        }
-        if (!callIsValid(commandName, commandArgs.size())) {
-            return makeResponse(getArgError(commandName), ResponseCode.None);
-        }
-
-        switch (commandName) {
-            case "user":
-                return user(commandArgs.get(0));
-            case "acct":
-                return acct(commandArgs.get(0));
-            case "pass":
-                return pass(commandArgs.get(0));
-            case "type":
-                return type(commandArgs.get(0));
-            case "list":
-                return list(commandArgs);
-            case "cdir":
-                return cdir(commandArgs.get(0));
-            case "kill":
-                return kill(commandArgs.get(0));
-            case "name":
-                return name(commandArgs.get(0));
-            case "tobe":
-                return tobe(commandArgs.get(0));
-            case "done":
-                return done();
-            case "retr":
-                return retr(commandArgs.get(0));
-            case "send":
-                return send();
-            case "stop":
-                return stop();
-            case "stor":
-                return stor(commandArgs.get(0), commandArgs.get(1));
-            case "size":
-                return size(Integer.valueOf(commandArgs.get(0)));
-            default:
-                throw new IllegalArgumentException();
-        }
-    }
-
-    private String user(String userId) {
-        User foundUser = FileSystem.getUser(userId);
-        if (foundUser != null) {
-            // clear state on user switch to stop new user from accessing old information
-            clearUserState();
-            // update selectedUser and cdir to the root dir of the new user
-            selectedUser = foundUser;
-            currentDir = selectedUser.getRootDir();
-            // distinguish between accounts that need accounts/passwords and ones that don't
-            if (selectedUser.requiresAccount() || selectedUser.requiresPassword()) {
-                return makeResponse("User-id valid, send account and password", ResponseCode.Success);
-            } else {
-                return makeResponse(selectedUser.getId() + " logged in", ResponseCode.LoggedIn);
-            }
-        } else {
-            return makeResponse("Invalid user-id, try again", ResponseCode.Error);
-        }
+    private void writeToClient(Response response) throws Exception {
+        outToClient.write(response);
     }
 
-    private String acct(String accountName) {
-        // guard against trying to select an account without specifying a user
-        // or trying to select an account when a user doesn't have any
-        if (!isUserSelected()) {
-            return makeResponse("Please select a user first", ResponseCode.Error);
-        } else if (!selectedUser.requiresAccount()) {
-            return makeResponse("User is not associated with any accounts", ResponseCode.Error);
-        }
-        if (selectedUser.containsAccount(accountName)) {
-            // update selectedAccount
-            selectedAccount = accountName;
-            // handle users that need a password along with their account
-            if (selectedUser.requiresPassword() && !isLoggedIn()) {
-                return makeResponse("Account valid, send password", ResponseCode.Success);
-            } else {
-                // if there were any dir changes that took place prior to login
-                // handle them now
-                if (isPendingDirChange()) {
-                    String loginResponse = makeResponseString("Account valid, logged-in\n", ResponseCode.LoggedIn);
-                    loginResponse += cdir(pendingDirChange);
-                    pendingDirChange = null;
-                    return loginResponse;
-                } else { // otherwise send normal login acknowledgement
-                    return makeResponse("Account valid, logged-in", ResponseCode.LoggedIn);
-                }
-            }
-        } else {
-            selectedAccount = null;
-            return makeResponse("Invalid account, try again", ResponseCode.Error);
-        }
-    }
-
-    private String pass(String password) {
-        // guard against trying to use a password when no selectedUser, or when
-        // selectedUser has no pasword
-        if (!isUserSelected()) {
-            return makeResponse("Please select a user first", ResponseCode.Error);
-        } else if (!selectedUser.requiresPassword()) {
-            return makeResponse("No password required", ResponseCode.Error);
-        }
-        if (selectedUser.getPassword().equals(password)) {
-            // signal the user has provided a correct password
-            passwordProvided = true;
-            // handle users that need an account along with their password
-            if (selectedUser.requiresAccount() && !isAccountSelected()) {
-                return makeResponse("Send account", ResponseCode.Success);
-            } else {
-                // if there were any dir changes that took place prior to login
-                // handle them now
-                if (isPendingDirChange()) {
-                    String loginResponse = makeResponseString("Logged in\n", ResponseCode.LoggedIn);
-                    loginResponse += cdir(pendingDirChange);
-                    pendingDirChange = null;
-                    return loginResponse;
-                } else { // otherwise send normal login acknowledgement
-                    currentDir = selectedUser.getRootDir();
-                    return makeResponse("Logged in", ResponseCode.LoggedIn);
-                }
-            }
-        } else {
-            return makeResponse("Wrong password, try again", ResponseCode.Error);
-        }
-    }
-
-    private String type(String selectedType) {
-        switch (selectedType) {
-            case "a":
-                this.transferType = selectedType;
-                return makeResponse("Using Ascii mode", ResponseCode.Success);
-            case "b":
-                this.transferType = selectedType;
-                return makeResponse("Using Binary mode", ResponseCode.Success);
-            case "c":
-                this.transferType = selectedType;
-                return makeResponse("Using Continuous mode", ResponseCode.Success);
-            default:
-                return makeResponse("Type not valid", ResponseCode.Error);
-        }
-    }
-
-    private String list(List<String> commandArgs) {
-        String selectedListDir = currentDir;
-        // append the extra arg to list a subdir, if given
-        if (commandArgs.size() > 1) {
-            selectedListDir += commandArgs.get(1);
-        }
-        if (!FileSystem.pathExists(selectedListDir)) {
-            return makeResponse("Can't list directory because: " + selectedListDir + " does not exist",
-                    ResponseCode.Error);
-        } else if (FileSystem.pathIsFile(selectedListDir)) {
-            return makeResponse("Can't list directory because: " + selectedListDir + " is not a directory",
-                    ResponseCode.Error);
-        }
-        switch (commandArgs.get(0)) {
-            case "f":
-                return makeResponse(FileSystem.readDir(selectedListDir), ResponseCode.Success);
-            case "v":
-                return makeResponse(FileSystem.readDirVerbose(selectedListDir), ResponseCode.Success);
-            default:
-                return makeResponse("Argument error", ResponseCode.Error);
-        }
-    }
-
-    private String cdir(String destDir) {
-        // signal the client must select a user before dir can be resolved
-        if (!isUserSelected()) {
-            return makeResponse("Please select a user first", ResponseCode.Error);
-        }
-        // resolve selected directory
-        String selectedDir;
-        if (destDir.equals("/")) {
-            selectedDir = selectedUser.getRootDir();
-        } else if (destDir.startsWith("/")) {
-            selectedDir = selectedUser.getId() + destDir;
-        } else {
-            selectedDir = Utils.appendIfMissing(currentDir, "/");
-            selectedDir += destDir;
-        }
-        // validate dir can be navigated to
-        if (!FileSystem.pathExists(selectedDir)) {
-            return makeResponse("Can't connect to directory because: " + selectedDir  + " does not exist", ResponseCode.Error);
-        } else if (FileSystem.pathIsFile(selectedDir)) {
-            return makeResponse("Can't list directory because: " + selectedDir  + " is not a directory", ResponseCode.Error);
-        }
-        // signal the client must be logged in before cdir can happen
-        if (!isLoggedIn()) {
-            pendingDirChange = destDir;
-            return makeResponse("Directory exists, send account/password", ResponseCode.Success);
-        }
-        // change current directory
-        currentDir = selectedDir;
-        return makeResponse("Changed working dir to " + currentDir, ResponseCode.LoggedIn);
-    }
-
-    private String kill(String pathName) {
-        String selectedPath = Utils.appendIfMissing(currentDir, "/") + pathName;
-        if (!FileSystem.pathExists(selectedPath)) {
-            return makeResponse("Not deleted because " + selectedPath + " does not exist", ResponseCode.Error);
-        } else if (FileSystem.pathIsDirectory(selectedPath)) {
-            return makeResponse("Not deleted because " + selectedPath + " is a directory", ResponseCode.Error);
-        }
-        FileSystem.deletePath(selectedPath);
-        return makeResponse(selectedPath + " deleted", ResponseCode.Success);
-    }
-
-    private String name(String fileName) {
-        String selectedFile = Utils.appendIfMissing(currentDir, "/") + fileName;
-        if (!FileSystem.pathExists(selectedFile)) {
-            return makeResponse("Can't find " + selectedFile, ResponseCode.Error);
-        }
-        pendingFileToRename = selectedFile;
-        return makeResponse("File exists", ResponseCode.Success);
-    }
-
-    private String tobe(String fileName) {
-        if (pendingFileToRename == null) {
-            return makeResponse("Please select a file to rename first", ResponseCode.Error);
-        }
-        String renamedFile = Utils.appendIfMissing(currentDir, "/") + fileName;
-        if (FileSystem.pathExists(renamedFile)) {
-            pendingFileToRename = null;
-            return makeResponse("File wasn't renamed because " + renamedFile + " already exists", ResponseCode.Error);
-        }
-        FileSystem.renameFile(pendingFileToRename, renamedFile);
-        String tempPendingFileToRename = pendingFileToRename;
-        pendingFileToRename = null;
-        return makeResponse(tempPendingFileToRename + " renamed to " + renamedFile, ResponseCode.Success);
-    }
-
-    private String done() {
-        return makeResponse("Closing connection", ResponseCode.Success);
-    }
-
-    private String retr(String fileName) {
-        String selectedFile = Utils.appendIfMissing(currentDir, "/") + fileName;
-        if (!FileSystem.pathExists(selectedFile)) {
-            pendingFileToRetrieve = null;
-            return makeResponse("File doesn't exist", ResponseCode.Error);
-        } else if (FileSystem.pathIsDirectory(selectedFile)) {
-            pendingFileToRetrieve = null;
-            return makeResponse("Specifier is not a file", ResponseCode.Error);
-        }
-        pendingFileToRetrieve = selectedFile;
-        return makeResponse(FileSystem.getFileTransferSize(selectedFile) + " bytes will be sent", ResponseCode.Success);
-    }
-
-    private String send() {
-        if (pendingFileToRetrieve == null) {
-            return makeResponse("Please select a file to retrieve first", ResponseCode.Error);
-        }
-        String dataToSend = FileSystem.readFile(pendingFileToRetrieve);
-        pendingFileToRetrieve = null;
-        return makeResponse(dataToSend, ResponseCode.None);
-    }
-
-    private String stop() {
-        pendingFileToRetrieve = null;
-        return makeResponse("File will not be sent", ResponseCode.Success);
-    }
-
-    private String stor(String mode, String fileName) {
-        if (!fileName.contains(".")) {
-            pendingStorFile = null;
-            return makeResponse("Specifier is not a file", ResponseCode.Error);
-        }
-        String selectedFile = Utils.appendIfMissing(currentDir, "/") + fileName;
-        switch (mode) {
-            case "new":
-                if (!FileSystem.pathExists(selectedFile)) {
-                    pendingStorFile = new PendingStorFile(selectedFile, mode);
-                    return makeResponse("File does not exist, will create new file", ResponseCode.Success);
-                }
-                selectedFile = FileSystem.getUniqueFileName(fileName, currentDir);
-                pendingStorFile = new PendingStorFile(selectedFile, mode);
-                return makeResponse("File exists, will create new generation of file", ResponseCode.Success);
-            case "old":
-                pendingStorFile = new PendingStorFile(selectedFile, mode);
-                if (!FileSystem.pathExists(selectedFile)) {
-                    return makeResponse("Will create new file", ResponseCode.Success);
-                }
-                return makeResponse("Will write over old file", ResponseCode.Success);
-            case "app":
-                if (!FileSystem.pathExists(selectedFile)) {
-                    pendingStorFile = new PendingStorFile(selectedFile, "new");
-                    return makeResponse("Will create new file", ResponseCode.Success);
-                }
-                pendingStorFile = new PendingStorFile(selectedFile, mode);
-                return makeResponse("Will append to file", ResponseCode.Success);
-            default:
-                throw new IllegalArgumentException();
-        }
-    }
-
-    private String size(int maxBytes) {
+    /**
+     * Streams a file or directory listing to the client, blocking until all of
+     * it (and its terminating null character) has been written.
+     * 
+     * @throws Exception if the file or directory could not be read or the client
+     *                   could not be written to
+     */
+    private void writeToClient(PendingWrite transfer) throws Exception {
         try {
-            if (pendingStorFile == null) {
-                return makeResponse("Please select a file name to store at first", ResponseCode.Error);
+            boolean transferComplete = false;
+            while (!transferComplete) {
+                transferComplete = transfer.writeTo(clientChannel);
             }
-            writeToClient(makeResponse("Ok, waiting for file", ResponseCode.Success));
-            pendingStorFile.setMaxBytes(maxBytes);
-            pendingStorFile.setBytesToWrite(inFromClient.readLine());
-            pendingStorFile.setTransferType(transferType);
-            FileSystem.writeFile(pendingStorFile);
-        } catch (Exception e) {
-            // e.printStackTrace();
-            pendingStorFile = null;
-            return makeResponse("Couldn't save " + e.getLocalizedMessage(), ResponseCode.Error);
+        } finally {
+            transfer.close();
         }
-        String savedFile = pendingStorFile.getFilePath();
-        pendingStorFile = null;
-        return makeResponse("Saved " + savedFile, ResponseCode.Success);
-    }
-
-    private static String makeResponse(String msg, ResponseCode responseCode) {
-        return makeResponseString(msg, responseCode) + '\0';
-    }
-
-    private static String makeResponseString(String msg, ResponseCode responseCode) {
-        return responseCode.toString() + msg;
     }
 }
@@ -0,0 +1,395 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import utils.Utils;
+
+/**
+ * Represents the non-blocking connection of a given SFTPServer instance to a
+ * specific client. Intended for use with a SFTPEventLoop, which notifies the
+ * connection whenever its channel can be read from or written to.
+ * 
+ * Handling a call can block on the disk, e.g. to wait for a path lock, read a
+ * directory or sync a stored file, so the event loop thread only reads and
+ * writes the channel. Each batch of input read is handed to a worker, which
+ * feeds it to the session and collects the responses, and reading is paused
+ * until the loop has been handed them back to write. So the session is only
+ * ever used by one thread at a time, calls are still handled in order, and a
+ * slow call only holds up its own client. Output that has to read the disk to
+ * produce its bytes, such as a directory listing, is prepared by a worker the
+ * same way each time it needs more.
+ */
+public class SFTPConnection {
+    private static final int INITIAL_LINE_CAPACITY = 64;
+
+    private int id;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private SFTPSession session;
+    private boolean serverAvailable;
+    private byte[] lineBytes;
+    private int lineLength;
+    private boolean skipLineFeed;
+    private ArrayDeque<PendingWrite> pendingWrites;
+    private boolean closeAfterWrite;
+    private Runnable onClose;
+    private Executor workers;
+    private Executor eventLoop;
+    // whether a worker is handling input or preparing output, and so is using the session or a transfer
+    private boolean workerActive;
+    private boolean closeRequested;
+    // only used by the worker handling a batch of input
+    private ByteArrayOutputStream responseBytes;
+    private List<PendingWrite> output;
+
+    /**
+     * @param onClose   called once the connection has been closed, may be null
+     * @param workers   runs the session's calls, which may block
+     * @param eventLoop runs a task on the thread driving the connection, once it
+     *                  next polls its connections
+     */
+    public SFTPConnection(SocketChannel channel, int id, boolean serverAvailable, Runnable onClose,
+            Executor workers, Executor eventLoop) {
+        this.id = id;
+        this.channel = channel;
+        this.serverAvailable = serverAvailable;
+        this.onClose = onClose;
+        this.workers = workers;
+        this.eventLoop = eventLoop;
+        this.session = new SFTPSession(id);
+        this.lineBytes = new byte[INITIAL_LINE_CAPACITY];
+        this.pendingWrites = new ArrayDeque<PendingWrite>();
+        this.responseBytes = new ByteArrayOutputStream();
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    /**
+     * Sends the greeting to the client once the connection has been registered
+     * with a selector. If the server is unavailable, the connection is closed as
+     * soon as the greeting has been written.
+     */
+    public void start(SelectionKey key) throws IOException {
+        this.key = key;
+        pendingWrites.add(new BufferWrite(ByteBuffer.wrap(SFTPSession.makeGreeting(serverAvailable).getBytes())));
+        closeAfterWrite = !serverAvailable;
+        writePendingWrites();
+    }
+
+    /**
+     * Reads whatever is available on the channel into readBuffer, and hands a
+     * copy of it to a worker to be handled by handleInput(). Reading is paused
+     * until the worker is done.
+     * 
+     * @throws IOException if the channel could not be read from
+     */
+    public void handleRead(ByteBuffer readBuffer) throws IOException {
+        readBuffer.clear();
+        int bytesRead = channel.read(readBuffer);
+        if (bytesRead == -1) {
+            closeConnection();
+            return;
+        }
+        if (bytesRead == 0) {
+            return;
+        }
+        readBuffer.flip();
+        // readBuffer is shared by every connection on the loop, so the worker gets its own copy
+        ByteBuffer input = ByteBuffer.allocate(readBuffer.remaining());
+        input.put(readBuffer).flip();
+        key.interestOps(0);
+        workerActive = true;
+        workers.execute(() -> handleInput(input));
+    }
+
+    /**
+     * Hands each complete line in input to the session, then hands the responses
+     * back to the event loop to be written. Lines are split the same way as
+     * BufferedReader.readLine(), on '\n', '\r' or "\r\n". File contents are handed
+     * to the session as raw bytes straight from input instead. The responses to
+     * every line in input are collected and written together, so a client that
+     * pipelines its commands gets their responses in as few writes as possible.
+     * Runs on a worker.
+     */
+    private void handleInput(ByteBuffer input) {
+        output = new ArrayList<PendingWrite>();
+        try {
+            handleLines(input);
+        } catch (Exception e) { // match SFTPClientWorker, which drops the client if a call fails
+            closeRequested = true;
+        }
+        flushResponses();
+        List<PendingWrite> handledOutput = output;
+        output = null;
+        eventLoop.execute(() -> finishInput(handledOutput));
+    }
+
+    private void handleLines(ByteBuffer input) {
+        while (input.hasRemaining() && !closeRequested) {
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (input.get(input.position()) == '\n') {
+                    input.get();
+                    continue;
+                }
+            }
+            if (session.isAwaitingFileBytes()) {
+                handleResponse(session.receiveFileBytes(input));
+                continue;
+            }
+            if (session.isAwaitingFileLine()) {
+                handleFileLine(input);
+                continue;
+            }
+            byte b = input.get();
+            if (b == '\n' || b == '\r') {
+                skipLineFeed = (b == '\r');
+                String line = new String(lineBytes, 0, lineLength, Charset.defaultCharset());
+                lineLength = 0;
+                handleLine(line);
+            } else {
+                appendToLine(b);
+            }
+        }
+    }
+
+    /**
+     * Writes as much of the queued output as the channel will accept. Once the
+     * queue is drained, the connection goes back to waiting for input.
+     * 
+     * @throws IOException if the channel could not be written to
+     */
+    public void handleWrite() throws IOException {
+        writePendingWrites();
+    }
+
+    /**
+     * Closes the channel to the client and removes it from its selector. If a
+     * worker is handling the client's input or preparing its output, the
+     * connection is closed once it is done instead, as it is still using the
+     * session.
+     */
+    public void closeConnection() {
+        if (isClosed()) {
+            return;
+        }
+        if (workerActive) {
+            closeRequested = true;
+            return;
+        }
+        session.close();
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+            for (PendingWrite pendingWrite : pendingWrites) {
+                pendingWrite.close();
+            }
+            pendingWrites.clear();
+            Utils.logMessage("Client " + id + " disconnected");
+        } catch (Exception e) {
+            Utils.logMessage("Failed to close connection to client " + id);
+        }
+        if (onClose != null) {
+            onClose.run();
+        }
+    }
+
+    /**
+     * Queues the output of a batch of input once the worker is done with it, and
+     * writes as much of it as the channel will accept. Runs on the event loop.
+     */
+    private void finishInput(List<PendingWrite> handledOutput) {
+        workerActive = false;
+        // queued before anything is closed, so that the transfers in it are closed too
+        pendingWrites.addAll(handledOutput);
+        if (closeRequested) {
+            closeConnection();
+            return;
+        }
+        try {
+            writePendingWrites();
+        } catch (Exception e) {
+            closeConnection();
+        }
+    }
+
+    private void writePendingWrites() throws IOException {
+        while (!pendingWrites.isEmpty()) {
+            PendingWrite pendingWrite = pendingWrites.peek();
+            if (pendingWrite.needsPreparing()) {
+                prepare(pendingWrite);
+                return;
+            }
+            if (!pendingWrite.writeTo(channel)) {
+                if (pendingWrite.needsPreparing()) {
+                    continue;
+                }
+                // reading stays paused until everything has been sent, so that a
+                // client which doesn't read its responses can't grow the queue
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            pendingWrites.poll();
+        }
+        if (!closeIfFlushed()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Has a worker produce the next bytes of pendingWrite, and carries on writing
+     * once it is done. The channel is left alone in the meantime.
+     */
+    private void prepare(PendingWrite pendingWrite) {
+        key.interestOps(0);
+        workerActive = true;
+        workers.execute(() -> {
+            boolean prepared = true;
+            try {
+                pendingWrite.prepare();
+            } catch (Exception e) {
+                prepared = false;
+            }
+            boolean failed = !prepared;
+            eventLoop.execute(() -> finishPreparing(failed));
+        });
+    }
+
+    /**
+     * Writes the output prepared by a worker, unless it could not be prepared.
+     * Runs on the event loop.
+     */
+    private void finishPreparing(boolean failed) {
+        workerActive = false;
+        if (failed || closeRequested) {
+            closeConnection();
+            return;
+        }
+        try {
+            writePendingWrites();
+        } catch (Exception e) {
+            closeConnection();
+        }
+    }
+
+    private void handleLine(String line) {
+        Response commandRes = session.handleInput(line);
+        handleResponse(commandRes);
+        // an empty file sent in binary mode has no bytes to wait for
+        if (session.isAwaitingFileBytes() && session.getNumFileBytesRemaining() == 0) {
+            handleResponse(session.receiveFileBytes(ByteBuffer.allocate(0)));
+        }
+    }
+
+    /**
+     * Hands the part of a line of file contents that is in input to the
+     * session, up to the line's terminator if it has arrived.
+     */
+    private void handleFileLine(ByteBuffer input) {
+        int end = input.position();
+        while (end < input.limit() && input.get(end) != '\n' && input.get(end) != '\r') {
+            end++;
+        }
+        boolean endOfLine = (end < input.limit());
+        ByteBuffer lineChunk = input.duplicate();
+        lineChunk.limit(end);
+        if (endOfLine) {
+            skipLineFeed = (input.get(end) == '\r');
+            end++;
+        }
+        input.position(end);
+        handleResponse(session.receiveFileLine(lineChunk, endOfLine));
+    }
+
+    private void handleResponse(Response commandRes) {
+        writeToClient(commandRes);
+        PendingWrite transfer = session.takeTransfer();
+        if (transfer != null) {
+            writeToClient(transfer);
+        }
+    }
+
+    private void appendToLine(byte b) {
+        if (lineLength == lineBytes.length) {
+            lineBytes = Arrays.copyOf(lineBytes, lineBytes.length * 2);
+        }
+        lineBytes[lineLength++] = b;
+    }
+
+    /**
+     * Collects a response to be written along with any others by
+     * flushResponses().
+     */
+    private void writeToClient(Response response) {
+        byte[] bytes = response.getBytes();
+        responseBytes.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Queues the responses collected so far to be written as one.
+     */
+    private void flushResponses() {
+        if (responseBytes.size() > 0) {
+            output.add(new BufferWrite(ByteBuffer.wrap(responseBytes.toByteArray())));
+            responseBytes.reset();
+        }
+    }
+
+    /**
+     * Queues a file or directory listing to be streamed to the channel after the
+     * responses before it.
+     */
+    private void writeToClient(PendingWrite transfer) {
+        flushResponses();
+        output.add(transfer);
+    }
+
+    private boolean closeIfFlushed() {
+        if (closeAfterWrite && pendingWrites.isEmpty()) {
+            closeConnection();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Represents responses that are waiting to be written to the channel.
+     */
+    private static class BufferWrite implements PendingWrite {
+        private ByteBuffer buffer;
+
+        BufferWrite(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public boolean writeTo(WritableByteChannel channel) throws IOException {
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import utils.Utils;
+
+/**
+ * Multiplexes many non-blocking SFTPConnections over a single Selector.
+ * Intended for use with a Thread, the SFTPServer starts a small number of these
+ * when running in ServerMode.Selector and spreads accepted clients across them.
+ * The loop only reads and writes its connections' channels, and their calls
+ * are handled on a pool of workers shared by every loop. As an Executor it runs
+ * tasks handed back by the workers on the loop's own thread.
+ */
+public class SFTPEventLoop implements Runnable, Executor {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private Selector selector;
+    private Queue<SFTPConnection> pendingConnections;
+    private Queue<Runnable> tasks;
+    private Executor workers;
+    // shared by every connection on this loop, as each read is copied out before the next
+    private ByteBuffer readBuffer;
+
+    /**
+     * @param workers runs the calls of the loop's connections
+     */
+    public SFTPEventLoop(Executor workers) throws IOException {
+        this.selector = Selector.open();
+        this.pendingConnections = new ConcurrentLinkedQueue<SFTPConnection>();
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+        this.workers = workers;
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    }
+
+    /**
+     * Hands a newly accepted client over to this loop. May be called from any
+     * thread, the connection is registered by the loop itself on its next pass.
+     * 
+     * @param onClose called once the client's connection has been closed, may be
+     *                null
+     */
+    public void addClient(SocketChannel clientChannel, int id, boolean serverAvailable, Runnable onClose)
+            throws IOException {
+        clientChannel.configureBlocking(false);
+        pendingConnections.add(new SFTPConnection(clientChannel, id, serverAvailable, onClose, workers, this));
+        selector.wakeup();
+    }
+
+    /**
+     * Runs task on the loop's thread once it next polls its connections. May be
+     * called from any thread.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Continuously waits for any of the loop's connections to become readable or
+     * writable and lets the connection handle it. A connection that fails is
+     * closed without affecting any others on the loop.
+     */
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                registerPendingConnections();
+                runTasks();
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    handleKey(key);
+                }
+            } catch (Exception e) {
+                Utils.logMessage("Event loop failed to poll its connections");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void registerPendingConnections() {
+        SFTPConnection connection;
+        while ((connection = pendingConnections.poll()) != null) {
+            try {
+                SelectionKey key = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+                connection.start(key);
+            } catch (Exception e) {
+                connection.closeConnection();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                Utils.logMessage("Event loop failed to run a task");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        SFTPConnection connection = (SFTPConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isWritable()) {
+                connection.handleWrite();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.handleRead(readBuffer);
+            }
+        } catch (Exception e) { // If we fail to communicate with the client, close the connection
+            connection.closeConnection();
+        }
+    }
+}
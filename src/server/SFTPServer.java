@@ -1,29 +1,116 @@
 package server;
 
 import java.net.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
+import fs.FileSystem;
+import fs.FsyncPolicy;
+import fs.MetadataCache;
 import utils.Utils;
 
 public class SFTPServer {
 	private static final String HOSTNAME = "localhost";
 	private static final int PORT = 6789;
 	private static final String SERVER_PROTOCOL = "RFC 913 SFTP";
+	private static final int ACCEPT_BACKLOG = 1024;
+	// the workers mostly wait on the disk rather than use a CPU, so there are more of them than CPUs
+	private static final int DEFAULT_NUM_WORKERS = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
 
-	ServerSocket welcomeSocket;
+	ServerSocketChannel welcomeChannel;
+	private ServerMode serverMode;
+	private SFTPEventLoop[] eventLoops;
+	private Executor clientExecutor;
+	private SessionLimiter sessionLimiter;
 	private int numAttemptedClients;
 	private boolean serverAvailable;
 
+	/**
+	 * Starts the server. Accepts the optional arguments "--mode=threaded|virtual|selector"
+	 * to choose how client connections are driven, "--loops=n" to set the number
+	 * of event loop threads used in selector mode, "--workers=n" to set the
+	 * number of threads the calls of their clients are handled on,
+	 * "--max-sessions=n" and "--queue-depth=n" to limit how many clients are
+	 * served at once,
+	 * "--file-cache-mb=n" to size the file cache, "--partial-ttl-min=n" to set
+	 * how long interrupted uploads are kept for resuming,
+	 * "--compression-level=n" to set how hard files are deflated in compressed
+	 * mode, from 0 to 9, "--fsync=none|close|group" to choose whether stored
+	 * files are synced to disk before they are published, either one at a time
+	 * or in batches shared by concurrent uploads,
+	 * "--metadata-cache-entries=n" and "--metadata-ttl-ms=n" to size the cache
+	 * of file metadata, or disable it with 0 entries, and bound how long a
+	 * change made outside of the server can go unseen, and
+	 * "--attribute-threads=n" to set how many threads read the sizes of the
+	 * entries of a verbose listing.
+	 */
 	public static void main(String argv[]) throws Exception {
-		SFTPServer sftpServer = new SFTPServer();
+		ServerMode serverMode = ServerMode.fromArg(Utils.getArgValue(argv, "--mode", "threaded"));
+		int numEventLoops = Integer.parseInt(Utils.getArgValue(argv, "--loops",
+				String.valueOf(Runtime.getRuntime().availableProcessors())));
+		int numWorkers = Integer.parseInt(Utils.getArgValue(argv, "--workers", String.valueOf(DEFAULT_NUM_WORKERS)));
+		int maxSessions = Integer.parseInt(Utils.getArgValue(argv, "--max-sessions", "0"));
+		int queueDepth = Integer.parseInt(Utils.getArgValue(argv, "--queue-depth", "0"));
+		String fileCacheMb = Utils.getArgValue(argv, "--file-cache-mb", null);
+		if (fileCacheMb != null) {
+			FileSystem.configureFileCache(Long.parseLong(fileCacheMb) * 1024 * 1024);
+		}
+		String partialTtlMin = Utils.getArgValue(argv, "--partial-ttl-min", null);
+		if (partialTtlMin != null) {
+			FileSystem.configurePartialUploads(Long.parseLong(partialTtlMin) * 60 * 1000);
+		}
+		String compressionLevel = Utils.getArgValue(argv, "--compression-level", null);
+		if (compressionLevel != null) {
+			FileTransfer.configureCompressionLevel(Integer.parseInt(compressionLevel));
+		}
+		FileSystem.configureFsync(FsyncPolicy.fromArg(Utils.getArgValue(argv, "--fsync", "none")));
+		String metadataCacheEntries = Utils.getArgValue(argv, "--metadata-cache-entries", null);
+		String metadataTtlMs = Utils.getArgValue(argv, "--metadata-ttl-ms", null);
+		if (metadataCacheEntries != null || metadataTtlMs != null) {
+			FileSystem.configureMetadataCache(
+					(metadataCacheEntries == null) ? MetadataCache.DEFAULT_MAX_ENTRIES
+							: Integer.parseInt(metadataCacheEntries),
+					(metadataTtlMs == null) ? MetadataCache.DEFAULT_TTL_MILLIS : Long.parseLong(metadataTtlMs));
+		}
+		String attributeThreads = Utils.getArgValue(argv, "--attribute-threads", null);
+		if (attributeThreads != null) {
+			FileSystem.configureAttributeReader(Integer.parseInt(attributeThreads));
+		}
+		SFTPServer sftpServer = new SFTPServer(serverMode, numEventLoops, numWorkers,
+				new SessionLimiter(maxSessions, queueDepth));
 		sftpServer.run();
 	}
 
 	public SFTPServer() {
+		this(ServerMode.Threaded, 0, new SessionLimiter(0, 0));
+	}
+
+	public SFTPServer(ServerMode serverMode, int numEventLoops, SessionLimiter sessionLimiter) {
+		this(serverMode, numEventLoops, DEFAULT_NUM_WORKERS, sessionLimiter);
+	}
+
+	/**
+	 * @param numWorkers the number of threads that handle the calls of clients
+	 *                   driven by the event loops in selector mode
+	 */
+	public SFTPServer(ServerMode serverMode, int numEventLoops, int numWorkers, SessionLimiter sessionLimiter) {
+		this.serverMode = serverMode;
+		this.sessionLimiter = sessionLimiter;
 		try {
-			welcomeSocket = new ServerSocket(PORT);
-			welcomeSocket.setReuseAddress(true);
+			welcomeChannel = ServerSocketChannel.open();
+			welcomeChannel.socket().setReuseAddress(true);
+			welcomeChannel.bind(new InetSocketAddress(PORT), ACCEPT_BACKLOG);
+			if (serverMode == ServerMode.Selector) {
+				startEventLoops(numEventLoops, numWorkers);
+			} else {
+				clientExecutor = (serverMode == ServerMode.Virtual) ? newVirtualThreadExecutor() : newThreadExecutor();
+			}
 			serverAvailable = true;
-			Utils.logMessage("Server started on " + HOSTNAME + " port " + PORT + " [Protocol: " + SERVER_PROTOCOL + "]");
+			Utils.logMessage("Server started on " + HOSTNAME + " port " + PORT + " [Protocol: " + SERVER_PROTOCOL
+					+ ", Mode: " + serverMode + "]");
 		} catch (Exception e) {
 			Utils.logMessage("Could not start server on " + HOSTNAME + " port " + PORT);
 			e.printStackTrace();
@@ -39,23 +126,142 @@ public class SFTPServer {
 		return serverAvailable;
 	}
 
+	public ServerMode getServerMode() {
+		return serverMode;
+	}
+
 	/**
-	 * Polls the server's welcome socket for any incoming requests and creates a new
-	 * SFTPClientWorker thread to handle communication with the client.
+	 * @return the server's SessionLimiter, which holds the live counts of admitted,
+	 *         queued and rejected clients.
+	 */
+	public SessionLimiter getSessionLimiter() {
+		return sessionLimiter;
+	}
+
+	/**
+	 * Accepts incoming clients using the connection handling chosen by the
+	 * server's ServerMode.
 	 */
 	public void run() {
+		if (serverMode == ServerMode.Selector) {
+			runSelector();
+		} else {
+			runThreaded();
+		}
+	}
+
+	/**
+	 * Polls the server's welcome socket for any incoming requests and creates a new
+	 * SFTPClientWorker to handle communication with the client, running it on the
+	 * thread given to it by the clientExecutor. If the SessionLimiter has no room
+	 * for the client, it is sent the "Server Unavailable" greeting instead.
+	 */
+	private void runThreaded() {
+		while (true) {
+			try {
+				// accept incoming connection
+				Socket incomingClientSocket = welcomeChannel.accept().socket();
+				numAttemptedClients++;
+				int clientId = numAttemptedClients;
+				Utils.logMessage("New client connected with id: " + clientId);
+				// instantiate ClientHandler with new connection and run on new thread once admitted
+				serverAvailable = sessionLimiter.admit(() -> startClientWorker(incomingClientSocket, clientId));
+				if (!serverAvailable) {
+					logRejectedClient(clientId);
+					new SFTPClientWorker(incomingClientSocket, clientId, serverAvailable).run();
+				}
+			} catch (Exception e) {
+				Utils.logMessage("Could not connect to incoming client socket");
+			}
+		}
+	}
+
+	private void startClientWorker(Socket clientSocket, int clientId) {
+		SFTPClientWorker clientHandler = new SFTPClientWorker(clientSocket, clientId, true);
+		clientExecutor.execute(() -> {
+			try {
+				clientHandler.run();
+			} finally {
+				sessionLimiter.release();
+			}
+		});
+	}
+
+	/**
+	 * Polls the server's welcome channel for any incoming requests and hands each
+	 * new client to one of the event loops in turn, rather than giving it a thread
+	 * of its own.
+	 */
+	private void runSelector() {
 		while (true) {
 			try {
 				// accept incoming connection
-				Socket incomingClientSocket = welcomeSocket.accept();
+				SocketChannel incomingClientChannel = welcomeChannel.accept();
 				numAttemptedClients++;
-				// instantiate ClientHandler with new connection and run on new thread
-				Utils.logMessage("New client connected with id: " + numAttemptedClients);
-				SFTPClientWorker clientHandler = new SFTPClientWorker(incomingClientSocket, numAttemptedClients, serverAvailable);
-				new Thread(clientHandler).start();
+				int clientId = numAttemptedClients;
+				Utils.logMessage("New client connected with id: " + clientId);
+				SFTPEventLoop eventLoop = eventLoops[clientId % eventLoops.length];
+				serverAvailable = sessionLimiter.admit(() -> startClientConnection(eventLoop, incomingClientChannel, clientId));
+				if (!serverAvailable) {
+					logRejectedClient(clientId);
+					eventLoop.addClient(incomingClientChannel, clientId, serverAvailable, null);
+				}
 			} catch (Exception e) {
 				Utils.logMessage("Could not connect to incoming client socket");
 			}
 		}
 	}
+
+	private void startClientConnection(SFTPEventLoop eventLoop, SocketChannel clientChannel, int clientId) {
+		try {
+			eventLoop.addClient(clientChannel, clientId, true, sessionLimiter::release);
+		} catch (Exception e) {
+			Utils.logMessage("Could not connect to incoming client socket");
+			sessionLimiter.release();
+		}
+	}
+
+	private void logRejectedClient(int clientId) {
+		Utils.logMessage("Client " + clientId + " rejected, server at capacity " + sessionLimiter);
+	}
+
+	/**
+	 * @return an Executor that runs each SFTPClientWorker on a new platform thread.
+	 */
+	private static Executor newThreadExecutor() {
+		return clientHandler -> new Thread(clientHandler).start();
+	}
+
+	/**
+	 * Virtual threads are only available from JDK 21, so the executor is looked up
+	 * reflectively to keep the server building on JDK 11+. The workers only block on
+	 * socket reads/writes and FileSystem calls, none of which hold a monitor while
+	 * they block, waiting on locks and conditions instead, so a blocked worker
+	 * unmounts from its carrier thread rather than pinning it.
+	 * 
+	 * @return an Executor that runs each SFTPClientWorker on a new virtual thread,
+	 *         or on a new platform thread if virtual threads are not supported.
+	 */
+	private static Executor newVirtualThreadExecutor() {
+		try {
+			return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			Utils.logMessage("Virtual threads are not supported by this JVM, using platform threads instead");
+			return newThreadExecutor();
+		}
+	}
+
+	private void startEventLoops(int numEventLoops, int numWorkers) throws Exception {
+		AtomicInteger numWorkerThreads = new AtomicInteger();
+		Executor workers = Executors.newFixedThreadPool(Math.max(1, numWorkers), worker -> {
+			Thread thread = new Thread(worker, "SFTPWorker-" + numWorkerThreads.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+		eventLoops = new SFTPEventLoop[Math.max(1, numEventLoops)];
+		for (int i = 0; i < eventLoops.length; i++) {
+			eventLoops[i] = new SFTPEventLoop(workers);
+			new Thread(eventLoops[i], "SFTPEventLoop-" + i).start();
+		}
+	}
 }
@@ -0,0 +1,845 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.util.List;
+
+import fs.FileSystem;
+import fs.FileType;
+import fs.MultipartUpload;
+import fs.PartialUpload;
+import fs.PartialUploads;
+import fs.User;
+import utils.Utils;
+
+/**
+ * Represents the state of a specific client's session with a given SFTPServer
+ * instance. Command calls are passed in as they are received from the client,
+ * and the response to be written back is returned. Does not perform any I/O
+ * with the client itself, so it can be driven by either a SFTPClientWorker
+ * thread or a SFTPEventLoop.
+ */
+public class SFTPSession {
+    // bounds how much of a directory is held in memory to list a page of it
+    private static final int MAX_LIST_PAGE_SIZE = 10000;
+    private static final CommandTable COMMANDS = new CommandTable(
+            new Command("user", 1, 1, false, "USER user-id", (session, args) -> session.user(args.getArg(0))),
+            new Command("acct", 1, 1, false, "ACCT account", (session, args) -> session.acct(args.getArg(0))),
+            new Command("pass", 1, 1, false, "PASS password", (session, args) -> session.pass(args.getArg(0))),
+            new Command("type", 1, 1, true, "TYPE { A | B | C | Z }", (session, args) -> session.type(args.getArg(0))),
+            new Command("list", 1, 4, true, "LIST { F | V } directory-path [[after-name] page-size]",
+                    (session, args) -> session.list(args.getArg(0), (args.getNumArgs() > 1) ? args.getArg(1) : null,
+                            (args.getNumArgs() > 3) ? args.getArg(2) : null,
+                            (args.getNumArgs() > 2) ? args.getArg(args.getNumArgs() - 1) : null)),
+            new Command("cdir", 1, 1, false, "CDIR new-directory", (session, args) -> session.cdir(args.getArg(0))),
+            new Command("kill", 1, 1, true, "KILL file-spec", (session, args) -> session.kill(args.getArg(0))),
+            new Command("name", 1, 1, true, "NAME old-file-spec", (session, args) -> session.name(args.getArg(0))),
+            new Command("tobe", 1, 1, true, "TOBE new-file-spec", (session, args) -> session.tobe(args.getArg(0))),
+            new Command("done", 0, 0, false, "DONE", (session, args) -> session.done()),
+            new Command("retr", 1, 3, true, "RETR file-spec [offset [length]]",
+                    (session, args) -> session.retr(args.getArg(0), (args.getNumArgs() > 1) ? args.getArg(1) : null,
+                            (args.getNumArgs() > 2) ? args.getArg(2) : null)),
+            new Command("send", 0, 0, true, "SEND", (session, args) -> session.send()),
+            new Command("stop", 0, 0, true, "STOP", (session, args) -> session.stop()),
+            new Command("stor", 2, 2, true, "STOR { NEW | OLD | APP | RES } file-spec",
+                    (session, args) -> session.stor(args.getArg(0), args.getArg(1))),
+            new Command("size", 1, 1, true, "SIZE number-of-bytes-in-file",
+                    (session, args) -> session.size(Long.valueOf(args.getArg(0)))),
+            new Command("part", 3, 3, true, "PART file-spec offset crc32",
+                    (session, args) -> session.part(args.getArg(0), args.getArg(1), args.getArg(2))),
+            new Command("join", 3, 3, true, "JOIN { NEW | OLD | APP } file-spec number-of-bytes-in-file",
+                    (session, args) -> session.join(args.getArg(0), args.getArg(1), args.getArg(2))));
+    private static final Response UNKNOWN_COMMAND_ERROR = makeResponse("ERROR: Invalid Command\r\nAvailable Commands: \"USER\", \"ACCT\","
+            + " \"PASS\", \"TYPE\", \"LIST\", \"CDIR\", \"KILL\", \"NAME\", \"TOBE\", \"DONE\", \"RETR\", \"SEND\", \"STOP\","
+            + " \"STOR\", \"SIZE\", \"PART\", \"JOIN\"", ResponseCode.None);
+    private static final Response GREETING = makeResponse(SFTPServer.getServerProtocol() + " Server Online",
+            ResponseCode.Success);
+    private static final Response GREETING_UNAVAILABLE = makeResponse(
+            SFTPServer.getServerProtocol() + " Server Unavailable", ResponseCode.Error);
+
+    // responses that include a value, e.g. a path, that changes from call to call
+    private static final ResponseTemplate LOGGED_IN_AS = new ResponseTemplate("{} logged in", ResponseCode.LoggedIn);
+    private static final ResponseTemplate LIST_NOT_FOUND = new ResponseTemplate(
+            "Can't list directory because: {} does not exist", ResponseCode.Error);
+    private static final ResponseTemplate NOT_A_DIRECTORY = new ResponseTemplate(
+            "Can't list directory because: {} is not a directory", ResponseCode.Error);
+    private static final ResponseTemplate CDIR_NOT_FOUND = new ResponseTemplate(
+            "Can't connect to directory because: {} does not exist", ResponseCode.Error);
+    private static final ResponseTemplate CHANGED_DIR = new ResponseTemplate("Changed working dir to {}",
+            ResponseCode.LoggedIn);
+    private static final ResponseTemplate KILL_NOT_FOUND = new ResponseTemplate("Not deleted because {} does not exist",
+            ResponseCode.Error);
+    private static final ResponseTemplate KILL_DIRECTORY = new ResponseTemplate("Not deleted because {} is a directory",
+            ResponseCode.Error);
+    private static final ResponseTemplate DELETED = new ResponseTemplate("{} deleted", ResponseCode.Success);
+    private static final ResponseTemplate NAME_NOT_FOUND = new ResponseTemplate("Can't find {}", ResponseCode.Error);
+    private static final ResponseTemplate TOBE_EXISTS = new ResponseTemplate(
+            "File wasn't renamed because {} already exists", ResponseCode.Error);
+    private static final ResponseTemplate RENAMED = new ResponseTemplate("{} renamed to {}", ResponseCode.Success);
+    private static final ResponseTemplate RETR_SIZE = new ResponseTemplate("{} bytes will be sent",
+            ResponseCode.Success);
+    private static final ResponseTemplate RETR_SIZE_COMPRESSED = new ResponseTemplate(
+            "{} bytes will be sent compressed", ResponseCode.Success);
+    private static final ResponseTemplate SAVE_FAILED = new ResponseTemplate("Couldn't save {}", ResponseCode.Error);
+    private static final ResponseTemplate SAVED = new ResponseTemplate("Saved {}", ResponseCode.Success);
+    private static final ResponseTemplate RESUMING_UPLOAD = new ResponseTemplate(
+            "{} bytes already received, send the rest", ResponseCode.Success);
+    private static final ResponseTemplate PART_SAVED = new ResponseTemplate("Saved part of {} at byte {}",
+            ResponseCode.Success);
+    private static final ResponseTemplate PARTS_MISSING = new ResponseTemplate(
+            "Not saved because no part starting at or before byte {} has been received", ResponseCode.Error);
+
+    private int id;
+    private CommandLine commandLine;
+    private String transferType;
+    // only set once the client explicitly selects TYPE B, so that clients which
+    // never do keep receiving binary files in Base64
+    private boolean binaryMode;
+    // binary mode with the contents of files deflated as they are sent and
+    // inflated as they are received, selected with TYPE Z
+    private boolean compressedMode;
+    private User selectedUser;
+    private String selectedAccount;
+    private boolean passwordProvided;
+    private String currentDir;
+    private String pendingDirChange;
+    private String pendingFileToRename;
+    private String pendingFileToRetrieve;
+    private long pendingFileToRetrieveSize;
+    private boolean pendingFileToRetrieveInBinary;
+    private boolean pendingFileToRetrieveCompressed;
+    private long pendingFileToRetrieveOffset;
+    private long pendingFileToRetrieveLength;
+    private PendingWrite transfer;
+    private PendingStorFile pendingStorFile;
+    // identifies pendingStorFile among interrupted uploads, should it be interrupted
+    private String pendingStorUploadKey;
+    private boolean awaitingFile;
+
+    public SFTPSession(int id) {
+        this.id = id;
+        this.transferType = "b";
+        this.commandLine = new CommandLine();
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    /**
+     * @return the greeting that should be sent to a client when it first connects,
+     *         depending on whether the server is available or not.
+     */
+    public static Response makeGreeting(boolean serverAvailable) {
+        return serverAvailable ? GREETING : GREETING_UNAVAILABLE;
+    }
+
+    /**
+     * @return true of the Client has selected a valid User, account and password.
+     */
+    public boolean isLoggedIn() {
+        return isUserSelected() && isAccountSelected() && isPasswordProvided();
+    }
+
+    /**
+     * @return true if the Client has selected a User (does not imply they are
+     *         logged in).
+     */
+    public boolean isUserSelected() {
+        return this.selectedUser != null;
+    }
+
+    public boolean isAccountSelected() {
+        return this.selectedAccount != null || !this.selectedUser.requiresAccount();
+    }
+
+    public boolean isPasswordProvided() {
+        return passwordProvided || !this.selectedUser.requiresPassword();
+    }
+
+    public boolean isPendingDirChange() {
+        return this.pendingDirChange != null;
+    }
+
+    /**
+     * @return true if a SIZE call has been accepted, and the next input from the
+     *         client is the contents of the file to store.
+     */
+    public boolean isAwaitingFile() {
+        return this.awaitingFile;
+    }
+
+    /**
+     * @return true if the session is waiting for file contents that were sent in
+     *         binary mode, which should be passed to receiveFileBytes() as raw
+     *         bytes
+     */
+    public boolean isAwaitingFileBytes() {
+        return this.awaitingFile && pendingStorFile.isRaw();
+    }
+
+    /**
+     * @return true if the session is waiting for file contents sent as a line of
+     *         text, which should be passed to receiveFileLine() as it arrives
+     */
+    public boolean isAwaitingFileLine() {
+        return this.awaitingFile && !pendingStorFile.isRaw();
+    }
+
+    /**
+     * @return the number of bytes of file contents the session is still waiting
+     *         for
+     */
+    public long getNumFileBytesRemaining() {
+        return pendingStorFile.getNumBytesRemaining();
+    }
+
+    /**
+     * Returns the file or directory listing that should be streamed to the
+     * client after the response to the last input, if there is one, and clears
+     * it from the session.
+     * 
+     * @return what to send, or null if there is nothing to send
+     */
+    public PendingWrite takeTransfer() {
+        PendingWrite transfer = this.transfer;
+        this.transfer = null;
+        return transfer;
+    }
+
+    /**
+     * Handles a single line of input from the client. This is either a command
+     * call, or the file contents following a successful SIZE call.
+     * 
+     * @return the response that should be written back to the client
+     */
+    public Response handleInput(String input) {
+        if (isAwaitingFileBytes()) {
+            throw new IllegalStateException("File contents in binary mode must be passed to receiveFileBytes()");
+        }
+        if (isAwaitingFile()) {
+            return receiveFileLine(ByteBuffer.wrap(input.getBytes()), true);
+        }
+        return callCommand(input);
+    }
+
+    /**
+     * Handles raw file contents following a successful SIZE call in binary mode.
+     * Only as many bytes as are still expected are taken from bytes, any that
+     * follow are left in it.
+     * 
+     * @return the response that should be written back to the client once the
+     *         whole file has been received, or "" until then
+     */
+    public Response receiveFileBytes(ByteBuffer bytes) {
+        pendingStorFile.write(bytes);
+        if (pendingStorFile.getNumBytesRemaining() > 0) {
+            return Response.EMPTY;
+        }
+        awaitingFile = false;
+        return saveFile();
+    }
+
+    /**
+     * Handles part of the line of file contents following a successful SIZE call,
+     * which is written to disk straight away so the line never has to be held in
+     * memory as a whole. Bytes beyond the size given to SIZE are dropped.
+     * 
+     * @param bytes     the next part of the line, without its terminator
+     * @param endOfLine whether bytes reaches the end of the line
+     * @return the response that should be written back to the client once the
+     *         whole line has been received, or "" until then
+     */
+    public Response receiveFileLine(ByteBuffer bytes, boolean endOfLine) {
+        pendingStorFile.write(bytes);
+        bytes.position(bytes.limit());
+        if (!endOfLine) {
+            return Response.EMPTY;
+        }
+        awaitingFile = false;
+        return saveFile();
+    }
+
+    /**
+     * Releases anything the session holds open. A file that was being received
+     * when the client disconnected is kept, so that the upload can be resumed.
+     */
+    public void close() {
+        suspendPendingStorFile();
+    }
+
+    /**
+     * Clears any information associated with the clients current user session.
+     * (selectedUser, currentDir, pendingStorFile etc.)
+     */
+    private void clearUserState() {
+        selectedUser = null;
+        selectedAccount = null;
+        passwordProvided = false;
+        currentDir = null;
+        pendingDirChange = null;
+        pendingFileToRename = null;
+        pendingFileToRetrieve = null;
+        suspendPendingStorFile();
+    }
+
+    /**
+     * Sets aside the file selected by the preceding STOR call, recording it as an
+     * interrupted upload if any of its contents have been received.
+     */
+    private void suspendPendingStorFile() {
+        if (pendingStorFile == null) {
+            return;
+        }
+        PartialUpload partialUpload = pendingStorFile.suspend();
+        if (partialUpload != null) {
+            FileSystem.getPartialUploads().put(pendingStorUploadKey, partialUpload);
+        }
+        pendingStorFile = null;
+        awaitingFile = false;
+    }
+
+    /**
+     * Calls a string that represents a server command call and returns the result
+     * of the call. May also return errors from lack of authorization or invalid
+     * arguments.
+     * 
+     * @param commandCall
+     * @return results of the command call or a meaningful error
+     */
+    private Response callCommand(String commandCall) {
+        commandLine.parse(commandCall);
+        Command command = COMMANDS.lookup(commandLine);
+
+        // unknown commands are reported whether or not the user is logged in
+        if (command != null && command.isRestricted() && !isLoggedIn()) {
+            return makeResponse("Please log in first", ResponseCode.Error);
+        }
+        if (command == null) {
+            return UNKNOWN_COMMAND_ERROR;
+        }
+        if (!command.acceptsNumArgs(commandLine.getNumArgs())) {
+            return command.getUsageError();
+        }
+        return command.call(this, commandLine);
+    }
+
+    private Response user(String userId) {
+        User foundUser = FileSystem.getUser(userId);
+        if (foundUser != null) {
+            // clear state on user switch to stop new user from accessing old information
+            clearUserState();
+            // update selectedUser and cdir to the root dir of the new user
+            selectedUser = foundUser;
+            currentDir = selectedUser.getRootDir();
+            // distinguish between accounts that need accounts/passwords and ones that don't
+            if (selectedUser.requiresAccount() || selectedUser.requiresPassword()) {
+                return makeResponse("User-id valid, send account and password", ResponseCode.Success);
+            } else {
+                return LOGGED_IN_AS.format(selectedUser.getId());
+            }
+        } else {
+            return makeResponse("Invalid user-id, try again", ResponseCode.Error);
+        }
+    }
+
+    private Response acct(String accountName) {
+        // guard against trying to select an account without specifying a user
+        // or trying to select an account when a user doesn't have any
+        if (!isUserSelected()) {
+            return makeResponse("Please select a user first", ResponseCode.Error);
+        } else if (!selectedUser.requiresAccount()) {
+            return makeResponse("User is not associated with any accounts", ResponseCode.Error);
+        }
+        if (selectedUser.containsAccount(accountName)) {
+            // update selectedAccount
+            selectedAccount = accountName;
+            // handle users that need a password along with their account
+            if (selectedUser.requiresPassword() && !isLoggedIn()) {
+                return makeResponse("Account valid, send password", ResponseCode.Success);
+            } else {
+                // if there were any dir changes that took place prior to login
+                // handle them now
+                if (isPendingDirChange()) {
+                    Response loginResponse = makeResponse("Account valid, logged-in", ResponseCode.LoggedIn)
+                            .joinLines(cdir(pendingDirChange));
+                    pendingDirChange = null;
+                    return loginResponse;
+                } else { // otherwise send normal login acknowledgement
+                    return makeResponse("Account valid, logged-in", ResponseCode.LoggedIn);
+                }
+            }
+        } else {
+            selectedAccount = null;
+            return makeResponse("Invalid account, try again", ResponseCode.Error);
+        }
+    }
+
+    private Response pass(String password) {
+        // guard against trying to use a password when no selectedUser, or when
+        // selectedUser has no pasword
+        if (!isUserSelected()) {
+            return makeResponse("Please select a user first", ResponseCode.Error);
+        } else if (!selectedUser.requiresPassword()) {
+            return makeResponse("No password required", ResponseCode.Error);
+        }
+        if (selectedUser.getPassword().equals(password)) {
+            // signal the user has provided a correct password
+            passwordProvided = true;
+            // handle users that need an account along with their password
+            if (selectedUser.requiresAccount() && !isAccountSelected()) {
+                return makeResponse("Send account", ResponseCode.Success);
+            } else {
+                // if there were any dir changes that took place prior to login
+                // handle them now
+                if (isPendingDirChange()) {
+                    Response loginResponse = makeResponse("Logged in", ResponseCode.LoggedIn)
+                            .joinLines(cdir(pendingDirChange));
+                    pendingDirChange = null;
+                    return loginResponse;
+                } else { // otherwise send normal login acknowledgement
+                    currentDir = selectedUser.getRootDir();
+                    return makeResponse("Logged in", ResponseCode.LoggedIn);
+                }
+            }
+        } else {
+            return makeResponse("Wrong password, try again", ResponseCode.Error);
+        }
+    }
+
+    private Response type(String selectedType) {
+        switch (selectedType) {
+            case "a":
+                this.transferType = selectedType;
+                this.binaryMode = false;
+                this.compressedMode = false;
+                return makeResponse("Using Ascii mode", ResponseCode.Success);
+            case "b":
+                this.transferType = selectedType;
+                this.binaryMode = true;
+                this.compressedMode = false;
+                return makeResponse("Using Binary mode", ResponseCode.Success);
+            case "c":
+                this.transferType = selectedType;
+                this.binaryMode = false;
+                this.compressedMode = false;
+                return makeResponse("Using Continuous mode", ResponseCode.Success);
+            case "z":
+                this.transferType = selectedType;
+                this.binaryMode = true;
+                this.compressedMode = true;
+                return makeResponse("Using Compressed mode", ResponseCode.Success);
+            default:
+                return makeResponse("Type not valid", ResponseCode.Error);
+        }
+    }
+
+    /**
+     * @param afterName   the last name of the previous page, to list the page
+     *                    following it, or null to list the first page
+     * @param pageSizeArg the number of entries to list, in name order, or null to
+     *                    list the whole directory in the order it is read
+     */
+    private Response list(String listFormat, String subDir, String afterName, String pageSizeArg) {
+        String selectedListDir = currentDir;
+        // append the extra arg to list a subdir, if given
+        if (subDir != null) {
+            selectedListDir = Utils.appendIfMissing(selectedListDir, "/") + subDir;
+        }
+        if (!FileSystem.pathExists(selectedListDir)) {
+            return LIST_NOT_FOUND.format(selectedListDir);
+        } else if (FileSystem.pathIsFile(selectedListDir)) {
+            return NOT_A_DIRECTORY.format(selectedListDir);
+        }
+        if (!listFormat.equals("f") && !listFormat.equals("v")) {
+            return makeResponse("Argument error", ResponseCode.Error);
+        }
+        int pageSize = 0;
+        if (pageSizeArg != null) {
+            try {
+                pageSize = Integer.parseInt(pageSizeArg);
+            } catch (NumberFormatException e) {
+                return makeResponse("Page size must be a number", ResponseCode.Error);
+            }
+            if (pageSize < 1 || pageSize > MAX_LIST_PAGE_SIZE) {
+                return makeResponse("Page size must be from 1 to " + MAX_LIST_PAGE_SIZE, ResponseCode.Error);
+            }
+        }
+        // the listing is streamed to the client (see takeTransfer()) an entry at a
+        // time rather than building the whole response in memory
+        try {
+            if (pageSize > 0) {
+                List<Path> page = FileSystem.readDirPage(selectedListDir, afterName, pageSize);
+                transfer = new DirectoryListing(selectedListDir, page.iterator(), null, listFormat.equals("v"));
+            } else {
+                DirectoryStream<Path> entries = FileSystem.openDir(selectedListDir);
+                transfer = new DirectoryListing(selectedListDir, entries.iterator(), entries,
+                        listFormat.equals("v"));
+            }
+        } catch (IOException e) { // deleted since it was checked for
+            return LIST_NOT_FOUND.format(selectedListDir);
+        }
+        return Response.EMPTY;
+    }
+
+    private Response cdir(String destDir) {
+        // signal the client must select a user before dir can be resolved
+        if (!isUserSelected()) {
+            return makeResponse("Please select a user first", ResponseCode.Error);
+        }
+        // resolve selected directory
+        String selectedDir;
+        if (destDir.equals("/")) {
+            selectedDir = selectedUser.getRootDir();
+        } else if (destDir.startsWith("/")) {
+            selectedDir = selectedUser.getId() + destDir;
+        } else {
+            selectedDir = Utils.appendIfMissing(currentDir, "/");
+            selectedDir += destDir;
+        }
+        // validate dir can be navigated to
+        if (!FileSystem.pathExists(selectedDir)) {
+            return CDIR_NOT_FOUND.format(selectedDir);
+        } else if (FileSystem.pathIsFile(selectedDir)) {
+            return NOT_A_DIRECTORY.format(selectedDir);
+        }
+        // signal the client must be logged in before cdir can happen
+        if (!isLoggedIn()) {
+            pendingDirChange = destDir;
+            return makeResponse("Directory exists, send account/password", ResponseCode.Success);
+        }
+        // change current directory
+        currentDir = selectedDir;
+        return CHANGED_DIR.format(currentDir);
+    }
+
+    private Response kill(String pathName) {
+        String selectedPath = Utils.appendIfMissing(currentDir, "/") + pathName;
+        if (!FileSystem.pathExists(selectedPath)) {
+            return KILL_NOT_FOUND.format(selectedPath);
+        } else if (FileSystem.pathIsDirectory(selectedPath)) {
+            return KILL_DIRECTORY.format(selectedPath);
+        }
+        FileSystem.deletePath(selectedPath);
+        return DELETED.format(selectedPath);
+    }
+
+    private Response name(String fileName) {
+        String selectedFile = Utils.appendIfMissing(currentDir, "/") + fileName;
+        if (!FileSystem.pathExists(selectedFile)) {
+            return NAME_NOT_FOUND.format(selectedFile);
+        }
+        pendingFileToRename = selectedFile;
+        return makeResponse("File exists", ResponseCode.Success);
+    }
+
+    private Response tobe(String fileName) {
+        if (pendingFileToRename == null) {
+            return makeResponse("Please select a file to rename first", ResponseCode.Error);
+        }
+        String renamedFile = Utils.appendIfMissing(currentDir, "/") + fileName;
+        if (FileSystem.pathExists(renamedFile)) {
+            pendingFileToRename = null;
+            return TOBE_EXISTS.format(renamedFile);
+        }
+        String tempPendingFileToRename = pendingFileToRename;
+        pendingFileToRename = null;
+        try {
+            FileSystem.renameFile(tempPendingFileToRename, renamedFile);
+        } catch (FileAlreadyExistsException e) { // created since it was checked for
+            return TOBE_EXISTS.format(renamedFile);
+        } catch (IOException e) {
+            return NAME_NOT_FOUND.format(tempPendingFileToRename);
+        }
+        return RENAMED.format(tempPendingFileToRename, renamedFile);
+    }
+
+    private Response done() {
+        return makeResponse("Closing connection", ResponseCode.Success);
+    }
+
+    /**
+     * @param offsetArg the byte of the file to start sending from, to resume an
+     *                  interrupted transfer, or null to send the whole file
+     * @param lengthArg the number of bytes of the file to send from offsetArg, so
+     *                  that several connections can each retrieve a segment of
+     *                  the file, or null to send the rest of the file
+     */
+    private Response retr(String fileName, String offsetArg, String lengthArg) {
+        pendingFileToRetrieve = null;
+        String selectedFile = Utils.appendIfMissing(currentDir, "/") + fileName;
+        if (!FileSystem.pathExists(selectedFile)) {
+            return makeResponse("File doesn't exist", ResponseCode.Error);
+        } else if (FileSystem.pathIsDirectory(selectedFile)) {
+            return makeResponse("Specifier is not a file", ResponseCode.Error);
+        }
+        long fileSize = FileSystem.getFileSize(selectedFile);
+        long offset;
+        try {
+            offset = (offsetArg == null) ? 0 : Long.parseLong(offsetArg);
+        } catch (NumberFormatException e) {
+            return makeResponse("Offset must be a number", ResponseCode.Error);
+        }
+        if (offset < 0 || offset > fileSize) {
+            return makeResponse("Offset is outside of the file", ResponseCode.Error);
+        }
+        // a file sent in Base64 can only be resumed where a group of 3 bytes starts
+        boolean sentInBase64 = !binaryMode && FileSystem.getFileType(selectedFile) == FileType.Binary;
+        if (sentInBase64 && offset % 3 != 0) {
+            return makeResponse("Offset must be a multiple of 3 for files sent in Base64", ResponseCode.Error);
+        }
+        long length;
+        try {
+            length = (lengthArg == null) ? fileSize - offset : Long.parseLong(lengthArg);
+        } catch (NumberFormatException e) {
+            return makeResponse("Length must be a number", ResponseCode.Error);
+        }
+        if (length < 0 || length > fileSize - offset) {
+            return makeResponse("Length runs past the end of the file", ResponseCode.Error);
+        }
+        // and its segments must end on a group of 3 bytes too, unless they run to the end of the file
+        if (sentInBase64 && length % 3 != 0 && offset + length != fileSize) {
+            return makeResponse("Length must be a multiple of 3 for files sent in Base64", ResponseCode.Error);
+        }
+        pendingFileToRetrieve = selectedFile;
+        pendingFileToRetrieveSize = fileSize;
+        pendingFileToRetrieveOffset = offset;
+        pendingFileToRetrieveLength = length;
+        pendingFileToRetrieveInBinary = binaryMode;
+        pendingFileToRetrieveCompressed = compressedMode;
+        // the size of a compressed file isn't known until it has been deflated, so
+        // the size it inflates back to is given instead
+        if (compressedMode) {
+            return RETR_SIZE_COMPRESSED.format(String.valueOf(length));
+        }
+        // in binary mode every file is sent as is, so its size on disk is exactly what is sent
+        long transferSize = binaryMode ? length : FileSystem.getFileTransferSize(selectedFile, length);
+        return RETR_SIZE.format(String.valueOf(transferSize));
+    }
+
+    private Response send() {
+        if (pendingFileToRetrieve == null) {
+            return makeResponse("Please select a file to retrieve first", ResponseCode.Error);
+        }
+        // in compressed mode every file is deflated, and in binary mode every file is sent
+        // as is, with no terminator. Otherwise text files are sent as is and binary
+        // files in Base64. Either way the file is streamed
+        // from disk to the client (see takeTransfer()) rather than building the
+        // whole response in memory
+        FileTransfer fileTransfer;
+        if (pendingFileToRetrieveCompressed) {
+            fileTransfer = new FileTransfer(pendingFileToRetrieve, pendingFileToRetrieveSize,
+                    TransferEncoding.Deflate, false);
+        } else if (pendingFileToRetrieveInBinary) {
+            fileTransfer = new FileTransfer(pendingFileToRetrieve, pendingFileToRetrieveSize, TransferEncoding.Raw,
+                    false);
+        } else {
+            TransferEncoding encoding = (FileSystem.getFileType(pendingFileToRetrieve) == FileType.Text)
+                    ? TransferEncoding.Raw
+                    : TransferEncoding.Base64;
+            fileTransfer = new FileTransfer(pendingFileToRetrieve, pendingFileToRetrieveSize, encoding, true);
+        }
+        fileTransfer.setRange(pendingFileToRetrieveOffset, pendingFileToRetrieveLength);
+        transfer = fileTransfer;
+        pendingFileToRetrieve = null;
+        return Response.EMPTY;
+    }
+
+    private Response stop() {
+        pendingFileToRetrieve = null;
+        return makeResponse("File will not be sent", ResponseCode.Success);
+    }
+
+    private Response stor(String mode, String fileName) {
+        suspendPendingStorFile();
+        if (!fileName.contains(".")) {
+            return makeResponse("Specifier is not a file", ResponseCode.Error);
+        }
+        String selectedFile = Utils.appendIfMissing(currentDir, "/") + fileName;
+        pendingStorUploadKey = PartialUploads.getKey(selectedUser.getId(), selectedFile);
+        switch (mode) {
+            case "new":
+                if (!FileSystem.pathExists(selectedFile)) {
+                    pendingStorFile = new PendingStorFile(selectedFile, mode);
+                    return makeResponse("File does not exist, will create new file", ResponseCode.Success);
+                }
+                selectedFile = FileSystem.getUniqueFileName(fileName, currentDir);
+                pendingStorFile = new PendingStorFile(selectedFile, mode);
+                return makeResponse("File exists, will create new generation of file", ResponseCode.Success);
+            case "old":
+                pendingStorFile = new PendingStorFile(selectedFile, mode);
+                if (!FileSystem.pathExists(selectedFile)) {
+                    return makeResponse("Will create new file", ResponseCode.Success);
+                }
+                return makeResponse("Will write over old file", ResponseCode.Success);
+            case "app":
+                if (!FileSystem.pathExists(selectedFile)) {
+                    pendingStorFile = new PendingStorFile(selectedFile, "new");
+                    return makeResponse("Will create new file", ResponseCode.Success);
+                }
+                pendingStorFile = new PendingStorFile(selectedFile, mode);
+                return makeResponse("Will append to file", ResponseCode.Success);
+            case "res":
+                // carries on with the upload to selectedFile that was interrupted
+                PartialUpload partialUpload = FileSystem.getPartialUploads().take(pendingStorUploadKey);
+                if (partialUpload == null) {
+                    return makeResponse("No interrupted upload of that file to resume", ResponseCode.Error);
+                }
+                pendingStorFile = new PendingStorFile(partialUpload);
+                return RESUMING_UPLOAD.format(String.valueOf(partialUpload.getNumBytesCommitted()));
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    private Response size(long maxBytes) {
+        if (pendingStorFile == null) {
+            return makeResponse("Please select a file name to store at first", ResponseCode.Error);
+        }
+        if (maxBytes < 0) {
+            return makeResponse("Size must not be negative", ResponseCode.Error);
+        }
+        pendingStorFile.setMaxBytes(maxBytes);
+        pendingStorFile.setTransferType(transferType);
+        if (compressedMode) {
+            pendingStorFile.expectDeflatedFrames();
+        } else if (binaryMode) {
+            pendingStorFile.expectRawBytes();
+        }
+        try {
+            pendingStorFile.open();
+        } catch (Exception e) {
+            pendingStorFile.close();
+            pendingStorFile = null;
+            return SAVE_FAILED.format(String.valueOf(e.getLocalizedMessage()));
+        }
+        awaitingFile = true;
+        return makeResponse("Ok, waiting for file", ResponseCode.Success);
+    }
+
+    /**
+     * Selects a part of a multipart upload to fileName, starting the upload if
+     * this is its first part. The part's contents follow a SIZE call in binary
+     * mode like a STOR's, and can be sent over any of the user's connections at
+     * the same time as the others.
+     * 
+     * @param offsetArg   the byte of the file the part starts at
+     * @param checksumArg the CRC-32 of the part's contents, in hex
+     */
+    private Response part(String fileName, String offsetArg, String checksumArg) {
+        suspendPendingStorFile();
+        if (!binaryMode) {
+            return makeResponse("Parts can only be sent in binary mode", ResponseCode.Error);
+        } else if (!fileName.contains(".")) {
+            return makeResponse("Specifier is not a file", ResponseCode.Error);
+        }
+        long offset;
+        long checksum;
+        try {
+            offset = Long.parseLong(offsetArg);
+            checksum = Long.parseLong(checksumArg, 16);
+        } catch (NumberFormatException e) {
+            return makeResponse("Offset and checksum must be numbers", ResponseCode.Error);
+        }
+        if (offset < 0) {
+            return makeResponse("Offset must not be negative", ResponseCode.Error);
+        }
+        String selectedFile = Utils.appendIfMissing(currentDir, "/") + fileName;
+        try {
+            String key = PartialUploads.getKey(selectedUser.getId(), selectedFile);
+            MultipartUpload upload = FileSystem.getPartialUploads().openMultipart(key, selectedFile);
+            pendingStorFile = new PendingStorPart(upload, offset, checksum);
+        } catch (IOException e) {
+            return SAVE_FAILED.format(String.valueOf(e.getLocalizedMessage()));
+        }
+        return makeResponse("Will write part of file", ResponseCode.Success);
+    }
+
+    /**
+     * Stores the parts of the multipart upload to fileName as a whole, once they
+     * cover all sizeArg bytes of it. The mode is applied as it is by STOR.
+     */
+    private Response join(String mode, String fileName, String sizeArg) {
+        if (!fileName.contains(".")) {
+            return makeResponse("Specifier is not a file", ResponseCode.Error);
+        }
+        // checked before the upload is sealed, as a sealed upload takes no more parts
+        if (!mode.equals("new") && !mode.equals("old") && !mode.equals("app")) {
+            return makeResponse("Invalid write mode", ResponseCode.Error);
+        }
+        long fileSize;
+        try {
+            fileSize = Long.parseLong(sizeArg);
+        } catch (NumberFormatException e) {
+            return makeResponse("Size must be a number", ResponseCode.Error);
+        }
+        if (fileSize < 0) {
+            return makeResponse("Size must not be negative", ResponseCode.Error);
+        }
+        String selectedFile = Utils.appendIfMissing(currentDir, "/") + fileName;
+        String key = PartialUploads.getKey(selectedUser.getId(), selectedFile);
+        MultipartUpload upload = FileSystem.getPartialUploads().getMultipart(key);
+        if (upload == null) {
+            return makeResponse("No parts of that file have been sent", ResponseCode.Error);
+        }
+        long numContiguousBytes = upload.getNumContiguousBytes();
+        if (numContiguousBytes < fileSize) {
+            return PARTS_MISSING.format(String.valueOf(numContiguousBytes));
+        }
+        boolean fileExists = FileSystem.pathExists(selectedFile);
+        try {
+            if (!upload.seal(fileSize)) {
+                return makeResponse("Parts of that file are still being sent", ResponseCode.Error);
+            }
+        } catch (IOException e) {
+            FileSystem.getPartialUploads().removeMultipart(key, upload);
+            upload.discard();
+            return SAVE_FAILED.format(String.valueOf(e.getLocalizedMessage()));
+        }
+        FileSystem.getPartialUploads().removeMultipart(key, upload);
+        String writeMode = mode;
+        if (mode.equals("new") && fileExists) {
+            selectedFile = FileSystem.getUniqueFileName(fileName, currentDir);
+        } else if (mode.equals("app") && !fileExists) {
+            writeMode = "new";
+        }
+        try {
+            selectedFile = FileSystem.commitStagedFile(upload.getStagingFile(), selectedFile, writeMode);
+        } catch (IOException e) {
+            upload.discard();
+            return SAVE_FAILED.format(String.valueOf(e.getLocalizedMessage()));
+        }
+        return SAVED.format(selectedFile);
+    }
+
+    /**
+     * Closes the file selected by the preceding STOR call once all of its contents
+     * have been written.
+     */
+    private Response saveFile() {
+        try {
+            pendingStorFile.finish();
+        } catch (Exception e) {
+            // e.printStackTrace();
+            pendingStorFile = null;
+            return SAVE_FAILED.format(String.valueOf(e.getLocalizedMessage()));
+        }
+        PendingStorFile savedFile = pendingStorFile;
+        pendingStorFile = null;
+        if (savedFile instanceof PendingStorPart) {
+            long offset = ((PendingStorPart) savedFile).getOffset();
+            return PART_SAVED.format(savedFile.getFilePath(), String.valueOf(offset));
+        }
+        return SAVED.format(savedFile.getFilePath());
+    }
+
+    /**
+     * @param msg a message that never changes, as the response is interned
+     */
+    static Response makeResponse(String msg, ResponseCode responseCode) {
+        return Response.fixed(msg, responseCode);
+    }
+}
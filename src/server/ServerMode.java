@@ -0,0 +1,25 @@
+package server;
+
+/**
+ * A list of the possible ways the server can drive its client connections
+ */
+public enum ServerMode {
+    Threaded,
+    Virtual,
+    Selector;
+
+    /**
+     * @return the ServerMode matching the name given on the command line, or
+     *         Threaded if the name is not recognised.
+     */
+    public static ServerMode fromArg(String arg) {
+        switch (arg) {
+            case "virtual":
+                return Virtual;
+            case "selector":
+                return Selector;
+            default:
+                return Threaded;
+        }
+    }
+}
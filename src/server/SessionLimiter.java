@@ -0,0 +1,103 @@
+package server;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounds the number of client sessions the server runs at once. Clients beyond
+ * maxSessions wait in a queue of up to queueDepth until a running session ends,
+ * and any clients beyond that are rejected. Also keeps live counts of how many
+ * clients have been admitted, queued and rejected.
+ */
+public class SessionLimiter {
+    private int maxSessions;
+    private int queueDepth;
+    private int numActive;
+    private ArrayDeque<Runnable> queuedSessions;
+    private long numAdmitted;
+    private long numRejected;
+
+    /**
+     * @param maxSessions the number of sessions that may run at once, or 0 for no
+     *                    limit
+     * @param queueDepth  the number of clients that may wait for a session to end
+     */
+    public SessionLimiter(int maxSessions, int queueDepth) {
+        this.maxSessions = maxSessions;
+        this.queueDepth = queueDepth;
+        this.queuedSessions = new ArrayDeque<Runnable>();
+    }
+
+    public boolean isBounded() {
+        return maxSessions > 0;
+    }
+
+    /**
+     * Starts a new session straight away if there is room for it, otherwise queues
+     * it to be started once another session calls release(). The session is
+     * started on the calling thread, so startSession should only hand it off.
+     *
+     * @return false if the session was rejected because the queue is also full
+     */
+    public boolean admit(Runnable startSession) {
+        synchronized (this) {
+            if (isBounded() && numActive >= maxSessions) {
+                if (queuedSessions.size() >= queueDepth) {
+                    numRejected++;
+                    return false;
+                }
+                queuedSessions.add(startSession);
+                return true;
+            }
+            numActive++;
+            numAdmitted++;
+        }
+        startSession.run();
+        return true;
+    }
+
+    /**
+     * Signals that a session started by admit() has ended, and starts the next
+     * queued session in its place if there is one.
+     */
+    public void release() {
+        Runnable nextSession;
+        synchronized (this) {
+            nextSession = queuedSessions.poll();
+            if (nextSession == null) {
+                numActive--;
+                return;
+            }
+            numAdmitted++;
+        }
+        nextSession.run();
+    }
+
+    /**
+     * @return true if a new client would be admitted or queued rather than
+     *         rejected.
+     */
+    public synchronized boolean hasCapacity() {
+        return !isBounded() || numActive < maxSessions || queuedSessions.size() < queueDepth;
+    }
+
+    public synchronized int getNumActive() {
+        return numActive;
+    }
+
+    public synchronized long getNumAdmitted() {
+        return numAdmitted;
+    }
+
+    public synchronized int getNumQueued() {
+        return queuedSessions.size();
+    }
+
+    public synchronized long getNumRejected() {
+        return numRejected;
+    }
+
+    public synchronized String toString() {
+        return "{ Active: " + numActive + ", Admitted: " + numAdmitted + ", Queued: " + queuedSessions.size()
+                + ", Rejected: " + numRejected + " }";
+    }
+}
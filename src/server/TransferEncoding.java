@@ -0,0 +1,11 @@
+package server;
+
+/**
+ * A list of the ways a file's contents can be encoded when sent to the client
+ */
+public enum TransferEncoding {
+    Raw,
+    Base64,
+    // deflated and split into frames, see utils.DeflateFrames
+    Deflate
+}
@@ -0,0 +1,1422 @@
+package test;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import client.SFTPClient;
+import fs.AttributeReader;
+import fs.FileCache;
+import fs.NameIndex;
+import fs.FileSystem;
+import fs.FsyncPolicy;
+import fs.MetadataCache;
+import fs.PathLocks;
+import fs.User;
+import fs.UserDatabase;
+import fs.UserTable;
+import server.Command;
+import server.CommandLine;
+import server.CommandTable;
+import server.PendingWrite;
+import server.Response;
+import server.ResponseCode;
+import server.ResponseWriter;
+import server.SFTPSession;
+import utils.Base64ChunkEncoder;
+import utils.Utils;
+
+/**
+ * Runs load against a server that is already running, and reports how it
+ * performed. Start the server in the mode to be measured first, e.g.
+ * "java server.SFTPServer --mode=virtual", then run
+ * "java test.BenchmarkRunner benchmark-name [args]". Benchmarks of server
+ * internals, such as retr and base64, run in process and don't need a server.
+ */
+final class BenchmarkRunner {
+    private static final String HOSTNAME = "localhost";
+    private static final int PORT = 6789;
+
+    public static void main(String[] argv) throws Exception {
+        if (argv.length == 0) {
+            System.out.println("Usage: BenchmarkRunner { connections | send | stor | retr | base64 | parse | pipeline | responses | segmented | locks | fsync | metadata | list | listv | generations | users } [args]");
+            return;
+        }
+        switch (argv[0]) {
+            case "connections":
+                benchmark_Connections(intArg(argv, 1, 1000), intArg(argv, 2, 10));
+                break;
+            case "send":
+                benchmark_Send(intArg(argv, 1, 100));
+                break;
+            case "stor":
+                benchmark_Stor(intArg(argv, 1, 100));
+                break;
+            case "retr":
+                benchmark_Retr(intArg(argv, 1, 256), intArg(argv, 2, 2000));
+                break;
+            case "base64":
+                benchmark_Base64(intArg(argv, 1, 64), intArg(argv, 2, 20));
+                break;
+            case "pipeline":
+                benchmark_Pipeline(intArg(argv, 1, 10000), intArg(argv, 2, 32));
+                break;
+            case "responses":
+                benchmark_Responses(intArg(argv, 1, 2000000));
+                break;
+            case "parse":
+                benchmark_Parse(intArg(argv, 1, 5000000));
+                break;
+            case "segmented":
+                benchmark_Segmented(intArg(argv, 1, 64), intArg(argv, 2, 4), intArg(argv, 3, 25));
+                break;
+            case "locks":
+                benchmark_Locks(intArg(argv, 1, 200), intArg(argv, 2, 100), intArg(argv, 3, 8));
+                break;
+            case "fsync":
+                benchmark_Fsync(intArg(argv, 1, 32), intArg(argv, 2, 50), intArg(argv, 3, 4));
+                break;
+            case "metadata":
+                benchmark_Metadata(intArg(argv, 1, 20000));
+                break;
+            case "list":
+                benchmark_List(intArg(argv, 1, 200000), intArg(argv, 2, 10000));
+                break;
+            case "listv":
+                benchmark_ListVerbose(intArg(argv, 1, 1000000), intArg(argv, 2, 4));
+                break;
+            case "generations":
+                benchmark_Generations(intArg(argv, 1, 10000), intArg(argv, 2, 20));
+                break;
+            case "users":
+                benchmark_Users(intArg(argv, 1, 1000000), intArg(argv, 2, 1000000));
+                break;
+            default:
+                System.out.println("Unknown benchmark " + argv[0]);
+        }
+    }
+
+    private static int intArg(String[] argv, int index, int defaultValue) {
+        return argv.length > index ? Integer.parseInt(argv[index]) : defaultValue;
+    }
+
+    /**
+     * Opens numClients connections that all stay logged in at the same time, then
+     * has each of them send numRounds LIST commands. Reports the latency of those
+     * commands while the server is holding every session open.
+     */
+    private static void benchmark_Connections(int numClients, int numRounds) throws Exception {
+        System.out.println("| CONNECTIONS: " + numClients + " clients, " + numRounds + " rounds |");
+        List<BenchmarkClient> clients = new ArrayList<BenchmarkClient>();
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < numClients; i++) {
+            BenchmarkClient client = new BenchmarkClient();
+            client.call("user user1");
+            clients.add(client);
+        }
+        long connectTime = System.nanoTime() - connectStart;
+        System.out.println("Connected and logged in " + numClients + " clients in " + (connectTime / 1000000) + " ms");
+
+        long[] latencies = new long[numClients * numRounds];
+        int numCalls = 0;
+        for (int round = 0; round < numRounds; round++) {
+            for (BenchmarkClient client : clients) {
+                long callStart = System.nanoTime();
+                client.call("list f");
+                latencies[numCalls++] = System.nanoTime() - callStart;
+            }
+        }
+        printLatencies("list f", latencies);
+        System.out.println("Connections are still open, take any server measurements now and press enter");
+        System.in.read();
+        for (BenchmarkClient client : clients) {
+            client.close();
+        }
+    }
+
+    /**
+     * Generates a text file of sizeMb megabytes in user1's folder and times how
+     * long it takes to RETR and SEND it.
+     */
+    private static void benchmark_Send(int sizeMb) throws Exception {
+        System.out.println("| SEND: " + sizeMb + " MB |");
+        String fileName = "benchmark_send.txt";
+        Path filePath = Paths.get(FileSystem.getHomeDir() + "user1/" + fileName);
+        writeTextFile(filePath, (long) sizeMb * 1024 * 1024);
+        try {
+            BenchmarkClient client = new BenchmarkClient();
+            client.call("user user1");
+            System.out.println(client.call("retr " + fileName));
+            long sendStart = System.nanoTime();
+            long bytesReceived = client.callAndDiscard("send");
+            long sendTime = System.nanoTime() - sendStart;
+            System.out.println("Received " + bytesReceived + " bytes in " + (sendTime / 1000000) + " ms ("
+                    + String.format("%.2f", bytesReceived * 1000.0 / sendTime) + " MB/s)");
+            client.close();
+        } finally {
+            Files.deleteIfExists(filePath);
+        }
+    }
+
+    /**
+     * Uploads sizeMb megabytes to user1's folder in binary mode and times how long
+     * it takes for the server to save it.
+     */
+    private static void benchmark_Stor(int sizeMb) throws Exception {
+        System.out.println("| STOR: " + sizeMb + " MB |");
+        String fileName = "benchmark_stor.bin";
+        Path filePath = Paths.get(FileSystem.getHomeDir() + "user1/" + fileName);
+        long fileSize = (long) sizeMb * 1024 * 1024;
+        byte[] chunk = new byte[64 * 1024];
+        new Random(0).nextBytes(chunk);
+        try {
+            BenchmarkClient client = new BenchmarkClient();
+            client.call("user user1");
+            client.call("type b");
+            client.call("stor old " + fileName);
+            System.out.println(client.call("size " + fileSize));
+            long storStart = System.nanoTime();
+            long bytesToWrite = fileSize;
+            while (bytesToWrite > 0) {
+                int length = (int) Math.min(chunk.length, bytesToWrite);
+                client.write(chunk, length);
+                bytesToWrite -= length;
+            }
+            String response = client.readResponse();
+            long storTime = System.nanoTime() - storStart;
+            System.out.println(response);
+            System.out.println("Sent " + fileSize + " bytes in " + (storTime / 1000000) + " ms ("
+                    + String.format("%.2f", fileSize * 1000.0 / storTime) + " MB/s)");
+            client.close();
+        } finally {
+            Files.deleteIfExists(filePath);
+        }
+    }
+
+    /**
+     * Generates a binary (sent in Base64) and a text file of sizeKb kilobytes in
+     * user1's folder, then runs RETR and SEND for both numRounds times through an
+     * SFTPSession in process, discarding what would be sent to the client. This
+     * is done first with the file cache disabled and then with it enabled, and
+     * the throughput of each is reported along with the cache's counters.
+     */
+    private static void benchmark_Retr(int sizeKb, int numRounds) throws Exception {
+        System.out.println("| RETR: " + sizeKb + " KB, " + numRounds + " rounds |");
+        List<String> fileNames = Arrays.asList("benchmark_retr.bin", "benchmark_retr.txt");
+        byte[] binaryContents = new byte[sizeKb * 1024];
+        new Random(0).nextBytes(binaryContents);
+        FileSystem.writeFile("user1/" + fileNames.get(0), binaryContents);
+        writeTextFile(Paths.get(FileSystem.getHomeDir() + "user1/" + fileNames.get(1)), sizeKb * 1024);
+        try {
+            retrFiles(fileNames, numRounds, 0);
+            retrFiles(fileNames, numRounds, 64 * 1024 * 1024);
+        } finally {
+            for (String fileName : fileNames) {
+                FileSystem.deletePath("user1/" + fileName);
+            }
+        }
+    }
+
+    /**
+     * Retrieves each file numRounds times with the file cache limited to
+     * cacheBytes, or disabled if it is 0, and reports the throughput.
+     */
+    private static void retrFiles(List<String> fileNames, int numRounds, long cacheBytes) throws Exception {
+        WritableByteChannel discard = Channels.newChannel(OutputStream.nullOutputStream());
+        FileSystem.configureFileCache(cacheBytes);
+        SFTPSession session = new SFTPSession(0);
+        session.handleInput("user user1");
+        int numWarmUpRounds = Math.max(1, numRounds / 4);
+        long retrStart = 0;
+        for (int round = 0; round < numWarmUpRounds + numRounds; round++) {
+            if (round == numWarmUpRounds) {
+                retrStart = System.nanoTime();
+            }
+            for (String fileName : fileNames) {
+                session.handleInput("retr " + fileName);
+                session.handleInput("send");
+                PendingWrite fileTransfer = session.takeTransfer();
+                boolean transferComplete = false;
+                while (!transferComplete) {
+                    transferComplete = fileTransfer.writeTo(discard);
+                }
+            }
+        }
+        long retrTime = System.nanoTime() - retrStart;
+        long numRetrievals = (long) numRounds * fileNames.size();
+        FileCache fileCache = FileSystem.getFileCache();
+        System.out.println((fileCache.isEnabled() ? "Cache enabled: " : "Cache disabled: ")
+                + String.format("%.0f", numRetrievals / (retrTime / 1e9)) + " retrievals/s " + fileCache);
+    }
+
+    /**
+     * Encodes sizeMb megabytes of random data numRounds times, both in one go with
+     * java.util.Base64 and in chunks with Base64ChunkEncoder as binary SEND does,
+     * and reports the throughput of each. The first few rounds are run as a warm
+     * up and not timed.
+     */
+    private static void benchmark_Base64(int sizeMb, int numRounds) {
+        System.out.println("| BASE64: " + sizeMb + " MB, " + numRounds + " rounds |");
+        byte[] data = new byte[sizeMb * 1024 * 1024];
+        new Random(0).nextBytes(data);
+        int chunkSize = 48 * 1024;
+        byte[] chunk = new byte[chunkSize];
+        byte[] encodedChunk = new byte[Base64ChunkEncoder.encodedLength(chunkSize)];
+        int numWarmUpRounds = Math.max(1, numRounds / 4);
+
+        long wholeTime = 0;
+        long chunkedTime = 0;
+        long checksum = 0;
+        for (int round = 0; round < numWarmUpRounds + numRounds; round++) {
+            long wholeStart = System.nanoTime();
+            checksum += Base64.getEncoder().encode(data).length;
+            long chunkedStart = System.nanoTime();
+            for (int offset = 0; offset < data.length; offset += chunkSize) {
+                int chunkLength = Math.min(chunkSize, data.length - offset);
+                System.arraycopy(data, offset, chunk, 0, chunkLength); // stands in for the file read
+                checksum += Base64ChunkEncoder.encode(chunk, chunkLength, encodedChunk);
+            }
+            long chunkedEnd = System.nanoTime();
+            if (round >= numWarmUpRounds) {
+                wholeTime += chunkedStart - wholeStart;
+                chunkedTime += chunkedEnd - chunkedStart;
+            }
+        }
+        long bytesEncoded = (long) data.length * numRounds;
+        System.out.println("java.util.Base64 (whole array): " + formatThroughput(bytesEncoded, wholeTime));
+        System.out.println("Base64ChunkEncoder (" + (chunkSize / 1024) + " KB chunks): "
+                + formatThroughput(bytesEncoded, chunkedTime));
+        System.out.println("(checksum " + checksum + ")");
+    }
+
+    /**
+     * Sends numCalls commands one round trip at a time, then sends them again with
+     * up to maxInFlight of them pipelined ahead of their responses. Reports how
+     * long each took. The commands fail without changing anything on the server,
+     * so they can be repeated safely.
+     */
+    private static void benchmark_Pipeline(int numCalls, int maxInFlight) throws Exception {
+        System.out.println("| PIPELINE: " + numCalls + " calls, " + maxInFlight + " in flight |");
+        String cmd = "name benchmark_missing.txt";
+        BenchmarkClient client = new BenchmarkClient();
+        client.call("user user1");
+        String expectedResponse = client.call(cmd);
+
+        long sequentialStart = System.nanoTime();
+        for (int i = 0; i < numCalls; i++) {
+            client.call(cmd);
+        }
+        long sequentialTime = System.nanoTime() - sequentialStart;
+
+        byte[] cmdBytes = (cmd + "\n").getBytes();
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        int numSent = 0;
+        int numReceived = 0;
+        long pipelinedStart = System.nanoTime();
+        while (numReceived < numCalls) {
+            batch.reset();
+            while (numSent < numCalls && numSent - numReceived < maxInFlight) {
+                batch.write(cmdBytes);
+                numSent++;
+            }
+            if (batch.size() > 0) {
+                client.write(batch.toByteArray(), batch.size());
+            }
+            if (!client.readResponse().equals(expectedResponse)) {
+                throw new IllegalStateException("Pipelined responses were not received in order");
+            }
+            numReceived++;
+        }
+        long pipelinedTime = System.nanoTime() - pipelinedStart;
+        client.call("done");
+        client.close();
+
+        System.out.println("One round trip per call: " + formatCallRate(numCalls, sequentialTime));
+        System.out.println("Pipelined: " + formatCallRate(numCalls, pipelinedTime));
+    }
+
+    /**
+     * Generates a binary file of sizeMb megabytes in user1's folder, then
+     * retrieves it through a LatencyProxy that delays each direction by
+     * latencyMs, once over a single connection and once split into numSegments
+     * ranges retrieved over as many connections in parallel. Reports the time
+     * and throughput of each.
+     */
+    private static void benchmark_Segmented(int sizeMb, int numSegments, int latencyMs) throws Exception {
+        System.out.println("| SEGMENTED: " + sizeMb + " MB, " + numSegments + " segments, " + latencyMs
+                + " ms each way |");
+        String fileName = "benchmark_segmented.bin";
+        Path filePath = Paths.get(FileSystem.getHomeDir() + "user1/" + fileName);
+        long fileSize = (long) sizeMb * 1024 * 1024;
+        byte[] chunk = new byte[64 * 1024];
+        new Random(0).nextBytes(chunk);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(filePath))) {
+            for (long bytesToWrite = fileSize; bytesToWrite > 0; bytesToWrite -= chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, bytesToWrite));
+            }
+        }
+        Path localFile = Files.createTempFile("benchmark_segmented", ".bin");
+        try (LatencyProxy proxy = new LatencyProxy(latencyMs, LatencyProxy.DEFAULT_WINDOW_BYTES)) {
+            SFTPClient client = new SFTPClient(HOSTNAME, proxy.getPort());
+            client.evalCommands(Arrays.asList("user user1", "type b"));
+
+            Files.delete(localFile);
+            long singleStart = System.nanoTime();
+            long singleBytes = client.retrieveFile(fileName, localFile);
+            long singleTime = System.nanoTime() - singleStart;
+
+            long segmentedStart = System.nanoTime();
+            long segmentedBytes = client.retrieveFileSegmented(fileName, localFile, numSegments);
+            long segmentedTime = System.nanoTime() - segmentedStart;
+            client.evalCommand("done");
+
+            if (singleBytes != fileSize || segmentedBytes != fileSize || Files.size(localFile) != fileSize) {
+                throw new IllegalStateException("Expected " + fileSize + " bytes, got " + singleBytes + " and "
+                        + segmentedBytes);
+            }
+            System.out.println("Single connection: " + (singleTime / 1000000) + " ms, "
+                    + formatThroughput(fileSize, singleTime));
+            System.out.println(numSegments + " segments: " + (segmentedTime / 1000000) + " ms, "
+                    + formatThroughput(fileSize, segmentedTime));
+        } finally {
+            Files.deleteIfExists(localFile);
+            Files.deleteIfExists(filePath);
+        }
+    }
+
+    /**
+     * Stress tests the path locks. numSessions SFTPSessions run in process on
+     * their own threads, each making numRounds calls picked at random from
+     * retrieving, appending to, replacing, deleting and renaming numFiles files
+     * they all share, and storing new generations of one more. Every file is
+     * made of fixed length records that carry their own checksum, so any
+     * retrieval that returns a torn record shows that a change was seen half
+     * done. Runs once with locking and once without, reporting the throughput
+     * and problems seen by each. Transfers cut short are those whose file
+     * shrank between RETR and SEND, which locking can't prevent as they are
+     * separate calls.
+     */
+    private static void benchmark_Locks(int numSessions, int numRounds, int numFiles) throws Exception {
+        System.out.println("| LOCKS: " + numSessions + " sessions, " + numRounds + " rounds, " + numFiles
+                + " files |");
+        String dir = "user1/benchmark_locks";
+        Files.createDirectories(Paths.get(FileSystem.getHomeDir() + dir));
+        try {
+            // the first run warms up the JIT, so isn't reported
+            runLockStress(dir, numSessions, numRounds, numFiles, PathLocks.DEFAULT_NUM_STRIPES, false);
+            runLockStress(dir, numSessions, numRounds, numFiles, 0, true);
+            runLockStress(dir, numSessions, numRounds, numFiles, PathLocks.DEFAULT_NUM_STRIPES, true);
+        } finally {
+            FileSystem.configurePathLocks(PathLocks.DEFAULT_NUM_STRIPES);
+            deleteDir(Paths.get(FileSystem.getHomeDir() + dir));
+        }
+    }
+
+    private static void runLockStress(String dir, int numSessions, int numRounds, int numFiles, int numStripes,
+            boolean report) throws Exception {
+        FileSystem.configurePathLocks(numStripes);
+        String[] fileNames = new String[numFiles];
+        for (int i = 0; i < numFiles; i++) {
+            fileNames[i] = "f" + i + ".bin";
+        }
+        for (String fileName : fileNames) {
+            FileSystem.writeFile(dir + "/" + fileName, lockStressRecords(0, 0, 4));
+        }
+        AtomicLong tornReads = new AtomicLong();
+        AtomicLong failedCalls = new AtomicLong();
+        AtomicLong interruptedTransfers = new AtomicLong();
+        List<String> newFiles = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(numSessions);
+        List<Future<?>> sessions = new ArrayList<Future<?>>();
+        for (int i = 1; i <= numSessions; i++) {
+            int sessionId = i;
+            sessions.add(executor.submit(() -> {
+                Random random = new Random(sessionId);
+                SFTPSession session = new SFTPSession(sessionId);
+                session.handleInput("user user1");
+                session.handleInput("type b");
+                session.handleInput("cdir /benchmark_locks");
+                start.await();
+                for (int round = 1; round <= numRounds; round++) {
+                    String fileName = fileNames[random.nextInt(fileNames.length)];
+                    int op = random.nextInt(100);
+                    String response;
+                    if (op < 40) {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        if (session.handleInput("retr " + fileName).toString().startsWith("-")) {
+                            continue; // deleted or renamed away
+                        }
+                        session.handleInput("send");
+                        PendingWrite fileTransfer = session.takeTransfer();
+                        WritableByteChannel channel = Channels.newChannel(out);
+                        try {
+                            boolean transferComplete = false;
+                            while (!transferComplete) {
+                                transferComplete = fileTransfer.writeTo(channel);
+                            }
+                        } catch (IOException e) {
+                            // RETR and SEND are separate calls, so the file may have shrunk in between
+                            fileTransfer.close();
+                            interruptedTransfers.incrementAndGet();
+                            continue;
+                        }
+                        if (!isValidLockStressFile(out.toByteArray())) {
+                            tornReads.incrementAndGet();
+                        }
+                        continue;
+                    } else if (op < 70) {
+                        response = lockStressStor(session, "app " + fileName,
+                                lockStressRecords(sessionId, round, 1));
+                    } else if (op < 80) {
+                        response = lockStressStor(session, "old " + fileName,
+                                lockStressRecords(sessionId, round, 1 + random.nextInt(4)));
+                    } else if (op < 88) {
+                        response = session.handleInput("kill " + fileName).toString();
+                    } else if (op < 96) {
+                        session.handleInput("name " + fileName);
+                        response = session.handleInput("tobe " + fileNames[random.nextInt(fileNames.length)])
+                                .toString();
+                    } else {
+                        response = lockStressStor(session, "new new.bin", lockStressRecords(sessionId, round, 1));
+                        if (response.startsWith("+Saved ")) {
+                            newFiles.add(response.substring("+Saved ".length()));
+                        }
+                    }
+                    if (response.startsWith("-Couldn't")) {
+                        failedCalls.incrementAndGet();
+                    }
+                }
+                session.close();
+                return null;
+            }));
+        }
+        long stressStart = System.nanoTime();
+        start.countDown();
+        for (Future<?> session : sessions) {
+            session.get();
+        }
+        long stressTime = System.nanoTime() - stressStart;
+        executor.shutdown();
+
+        for (String fileName : fileNames) {
+            Path filePath = Paths.get(FileSystem.getHomeDir() + dir + "/" + fileName);
+            if (Files.exists(filePath) && !isValidLockStressFile(Files.readAllBytes(filePath))) {
+                tornReads.incrementAndGet();
+            }
+        }
+        for (String newFile : newFiles) {
+            FileSystem.deletePath(newFile);
+        }
+        if (!report) {
+            return;
+        }
+        int numCalls = numSessions * numRounds;
+        System.out.println((numStripes > 0 ? "Locking (" + numStripes + " stripes): " : "No locking: ")
+                + formatCallRate(numCalls, stressTime) + ", " + tornReads + " torn files, " + failedCalls
+                + " failed saves, " + interruptedTransfers
+                + " transfers cut short");
+    }
+
+    /**
+     * Has numSessions SFTPSessions in process each store numStores files of
+     * sizeKb kilobytes at once with STOR OLD, under each fsync policy in turn,
+     * and reports how many files were stored per second under each. The first
+     * run warms up the JIT, so isn't reported.
+     */
+    private static void benchmark_Fsync(int numSessions, int numStores, int sizeKb) throws Exception {
+        System.out.println("| FSYNC: " + numSessions + " sessions, " + numStores + " stores, " + sizeKb + " KB |");
+        String dir = "user1/benchmark_fsync";
+        Files.createDirectories(Paths.get(FileSystem.getHomeDir() + dir));
+        byte[] contents = new byte[sizeKb * 1024];
+        new Random(0).nextBytes(contents);
+        try {
+            storeConcurrently(numSessions, numStores, contents);
+            for (FsyncPolicy policy : FsyncPolicy.values()) {
+                FileSystem.configureFsync(policy);
+                long storStart = System.nanoTime();
+                int numFailed = storeConcurrently(numSessions, numStores, contents);
+                long storTime = System.nanoTime() - storStart;
+                System.out.println(policy + ": " + (storTime / 1000000) + " ms, "
+                        + String.format("%.0f", numSessions * numStores / (storTime / 1e9)) + " stores/s"
+                        + (numFailed > 0 ? ", " + numFailed + " failed" : ""));
+            }
+        } finally {
+            FileSystem.configureFsync(FsyncPolicy.None);
+            deleteDir(Paths.get(FileSystem.getHomeDir() + dir));
+        }
+    }
+
+    /**
+     * Has an SFTPSession run in process retrieve a small file, change into a
+     * directory, list it and select a file to rename numRounds times over. This
+     * is done first with the metadata cache disabled and then with it enabled,
+     * and the number of stats each command makes is reported along with the
+     * throughput. Every lookup that misses the cache is a stat, so with it
+     * disabled that is every lookup. The first few rounds are run as a warm up
+     * and not counted.
+     */
+    private static void benchmark_Metadata(int numRounds) throws Exception {
+        System.out.println("| METADATA: " + numRounds + " rounds |");
+        String dir = "user1/benchmark_metadata";
+        Files.createDirectories(Paths.get(FileSystem.getHomeDir() + dir));
+        for (int i = 0; i < 16; i++) {
+            FileSystem.writeFile(dir + "/file" + i + ".txt", "benchmark_metadata " + i);
+        }
+        try {
+            statCommands(numRounds, 0);
+            statCommands(numRounds, MetadataCache.DEFAULT_MAX_ENTRIES);
+        } finally {
+            FileSystem.configureMetadataCache(MetadataCache.DEFAULT_MAX_ENTRIES, MetadataCache.DEFAULT_TTL_MILLIS);
+            deleteDir(Paths.get(FileSystem.getHomeDir() + dir));
+        }
+    }
+
+    private static void statCommands(int numRounds, int maxEntries) throws Exception {
+        WritableByteChannel discard = Channels.newChannel(OutputStream.nullOutputStream());
+        FileSystem.configureMetadataCache(maxEntries, MetadataCache.DEFAULT_TTL_MILLIS);
+        String[] commands = { "retr file0.txt", "send", "cdir /benchmark_metadata", "list f", "name file1.txt" };
+        long[] numStats = new long[commands.length];
+        SFTPSession session = new SFTPSession(0);
+        session.handleInput("user user1");
+        int numWarmUpRounds = Math.max(1, numRounds / 4);
+        long start = 0;
+        for (int round = 0; round < numWarmUpRounds + numRounds; round++) {
+            if (round == numWarmUpRounds) {
+                Arrays.fill(numStats, 0);
+                start = System.nanoTime();
+            }
+            for (int i = 0; i < commands.length; i++) {
+                long missesBefore = FileSystem.getMetadataCache().getNumMisses();
+                session.handleInput(commands[i]);
+                PendingWrite fileTransfer = session.takeTransfer();
+                if (fileTransfer != null) {
+                    while (!fileTransfer.writeTo(discard)) {
+                        // discards the file
+                    }
+                }
+                numStats[i] += FileSystem.getMetadataCache().getNumMisses() - missesBefore;
+            }
+        }
+        long time = System.nanoTime() - start;
+        StringBuilder statsPerCall = new StringBuilder();
+        for (int i = 0; i < commands.length; i++) {
+            statsPerCall.append(String.format("%s%s: %.2f", (i == 0) ? "" : ", ",
+                    commands[i].split(" ")[0].toUpperCase(), numStats[i] / (double) numRounds));
+        }
+        System.out.println((maxEntries > 0 ? "Cache enabled: " : "Cache disabled: ")
+                + formatCallRate(numRounds * commands.length, time));
+        System.out.println("  stats per call { " + statsPerCall + " } " + FileSystem.getMetadataCache());
+    }
+
+    /**
+     * Lists a directory of numEntries empty files in process, first the way LIST
+     * used to, by reading every name with File.list() and building the whole
+     * response, then streamed as LIST F now does, then a page of pageSize
+     * entries at a time. Reports the time taken, the bytes allocated, and how
+     * much of the heap the listing still held half way through sending it,
+     * measured after a GC.
+     */
+    private static void benchmark_List(int numEntries, int pageSize) throws Exception {
+        System.out.println("| LIST: " + numEntries + " entries, pages of " + pageSize + " |");
+        String dir = "user1/benchmark_list";
+        Path dirPath = Paths.get(FileSystem.getHomeDir() + dir);
+        Files.createDirectories(dirPath);
+        for (int i = 0; i < numEntries; i++) {
+            Files.createFile(dirPath.resolve(String.format("benchmark_list_entry_%08d.txt", i)));
+        }
+        SFTPSession session = new SFTPSession(0);
+        session.handleInput("user user1");
+        try {
+            for (int round = 0; round < 2; round++) { // the first round only warms up
+                boolean report = (round == 1);
+                long baseline = getUsedHeapAfterGc();
+                long start = System.nanoTime();
+                long allocated = getAllocatedBytes();
+                String[] fileNames = dirPath.toFile().list();
+                StringBuilder dirListBuilder = new StringBuilder(dir + "\n");
+                for (int i = 0; i < fileNames.length; i++) {
+                    dirListBuilder.append(fileNames[i]);
+                    if (i < (fileNames.length - 1)) {
+                        dirListBuilder.append("\n");
+                    }
+                }
+                ResponseWriter writer = new ResponseWriter(OutputStream.nullOutputStream());
+                Response response = Response.encode(dirListBuilder.toString(), ResponseCode.Success);
+                long held = getUsedHeapAfterGc() - baseline;
+                writer.write(response);
+                writer.flush();
+                reportListing(report, "Whole listing", System.nanoTime() - start, getAllocatedBytes() - allocated,
+                        held, response.length());
+
+                for (String format : Arrays.asList("f", "v")) {
+                    baseline = getUsedHeapAfterGc();
+                    start = System.nanoTime();
+                    allocated = getAllocatedBytes();
+                    session.handleInput("list " + format + " benchmark_list");
+                    HalfwayHeapChannel channel = new HalfwayHeapChannel(baseline, response.length() / 2);
+                    PendingWrite listing = session.takeTransfer();
+                    while (!listing.writeTo(channel)) {
+                        // the channel accepts everything, so this doesn't loop
+                    }
+                    reportListing(report, "Streamed LIST " + format.toUpperCase(), System.nanoTime() - start,
+                            getAllocatedBytes() - allocated, channel.heldHalfway, channel.numBytes);
+                }
+
+                baseline = getUsedHeapAfterGc();
+                start = System.nanoTime();
+                allocated = getAllocatedBytes();
+                long heldHalfway = 0;
+                long numBytes = 0;
+                int numPages = 0;
+                String afterName = "";
+                while (true) {
+                    session.handleInput("list f benchmark_list " + afterName + " " + pageSize);
+                    ByteArrayOutputStream page = new ByteArrayOutputStream();
+                    PendingWrite listing = session.takeTransfer();
+                    while (!listing.writeTo(Channels.newChannel(page))) {
+                        // the channel accepts everything, so this doesn't loop
+                    }
+                    numBytes += page.size();
+                    if (++numPages == numEntries / pageSize / 2) {
+                        heldHalfway = getUsedHeapAfterGc() - baseline;
+                    }
+                    String[] lines = page.toString().split("\n");
+                    if (lines.length - 1 < pageSize) {
+                        break;
+                    }
+                    afterName = lines[lines.length - 1];
+                }
+                reportListing(report, "Paged LIST F (" + numPages + " pages)", System.nanoTime() - start,
+                        getAllocatedBytes() - allocated, heldHalfway, numBytes);
+            }
+        } finally {
+            deleteDir(dirPath);
+        }
+    }
+
+    /**
+     * Lists a directory of 10k, 100k and then 1M files in full, up to
+     * maxEntries, in process. Each size is listed the way LIST V used to, by
+     * reading every entry with File.listFiles() and its size with
+     * File.length(), then streamed with the attributes of each batch of
+     * entries read on one thread, and on numThreads threads. The files are
+     * given different sizes so that the listing can be checked against the old
+     * one. Reports the time each takes.
+     */
+    private static void benchmark_ListVerbose(int maxEntries, int numThreads) throws Exception {
+        System.out.println("| LIST V: up to " + maxEntries + " entries, " + numThreads + " threads |");
+        String dir = "user1/benchmark_listv";
+        Path dirPath = Paths.get(FileSystem.getHomeDir() + dir);
+        Files.createDirectories(dirPath);
+        SFTPSession session = new SFTPSession(0);
+        session.handleInput("user user1");
+        int numEntries = 0;
+        try {
+            boolean warmedUp = false;
+            for (int size = 10000; size <= maxEntries; size *= 10) {
+                for (; numEntries < size; numEntries++) {
+                    Files.write(dirPath.resolve(String.format("benchmark_listv_%08d.bin", numEntries)),
+                            new byte[numEntries % 7]);
+                }
+                for (int round = warmedUp ? 1 : 0; round < 2; round++) { // the first round only warms up
+                    long start = System.nanoTime();
+                    File[] files = dirPath.toFile().listFiles();
+                    StringBuilder dirListBuilder = new StringBuilder(dir + "\n");
+                    for (int i = 0; i < files.length; i++) {
+                        dirListBuilder.append("Name: " + files[i].getName() + "    Path: " + dir + "/"
+                                + files[i].getName() + "    Size: " + files[i].length() + " Bytes");
+                        if (i < (files.length - 1)) {
+                            dirListBuilder.append("\n");
+                        }
+                    }
+                    String oldListing = "+" + dirListBuilder;
+                    long oldTime = System.nanoTime() - start;
+                    StringBuilder times = new StringBuilder();
+                    for (int parallelism : Arrays.asList(1, numThreads)) {
+                        FileSystem.configureAttributeReader(parallelism);
+                        ByteArrayOutputStream listing = new ByteArrayOutputStream(oldListing.length() + 1);
+                        start = System.nanoTime();
+                        session.handleInput("list v benchmark_listv");
+                        PendingWrite transfer = session.takeTransfer();
+                        while (!transfer.writeTo(Channels.newChannel(listing))) {
+                            // the channel accepts everything, so this doesn't loop
+                        }
+                        long time = System.nanoTime() - start;
+                        boolean matches = (listing.size() == oldListing.length() + 1);
+                        times.append(", " + parallelism + (parallelism == 1 ? " thread: " : " threads: ")
+                                + (time / 1000000) + " ms" + (matches ? "" : " (listing differs)"));
+                    }
+                    if (round == 1) {
+                        System.out.println(size + " entries: listFiles() and length(): " + (oldTime / 1000000)
+                                + " ms" + times);
+                    }
+                }
+                warmedUp = true;
+            }
+        } finally {
+            FileSystem.configureAttributeReader(AttributeReader.DEFAULT_PARALLELISM);
+            deleteDir(dirPath);
+        }
+    }
+
+    /**
+     * Chooses new generations of file.txt in process, in a directory holding
+     * file.txt and its first numGenerations generations, first the way STOR NEW
+     * used to, by reading the whole directory into a string and searching it for
+     * each generation in turn, then with the name index. Reports the time each
+     * takes per call and how many times the index read the directory.
+     */
+    private static void benchmark_Generations(int numGenerations, int numCalls) throws Exception {
+        System.out.println("| GENERATIONS: " + numGenerations + " generations, " + numCalls + " calls |");
+        String dir = "user1/benchmark_generations";
+        Path dirPath = Paths.get(FileSystem.getHomeDir() + dir);
+        Files.createDirectories(dirPath);
+        try {
+            Files.write(dirPath.resolve("file.txt"), new byte[0]);
+            for (int i = 1; i <= numGenerations; i++) {
+                Files.write(dirPath.resolve("file" + i + ".txt"), new byte[0]);
+            }
+            String oldName = null;
+            long start = System.nanoTime();
+            for (int i = 0; i < numCalls; i++) {
+                String filesInDir = readDirNames(dir, dirPath);
+                String fileName = "file.txt";
+                for (int generation = 1; filesInDir.contains(fileName); generation++) {
+                    fileName = "file" + generation + ".txt";
+                }
+                oldName = dir + "/" + fileName;
+            }
+            long oldTime = System.nanoTime() - start;
+            System.out.println("Directory searched: " + formatCallRate(numCalls, oldTime) + ", chose " + oldName);
+            FileSystem.configureNameIndex(NameIndex.DEFAULT_MAX_DIRS);
+            start = System.nanoTime();
+            String firstName = FileSystem.getUniqueFileName("file.txt", dir);
+            long firstTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 1; i < numCalls; i++) {
+                FileSystem.getUniqueFileName("file.txt", dir);
+            }
+            long time = System.nanoTime() - start;
+            System.out.println("Name index: first call " + (firstTime / 1000) + " us, chose " + firstName
+                    + ", then " + (time / Math.max(1, numCalls - 1) / 1000) + " us per call, "
+                    + FileSystem.getNameIndex().getNumDirReads() + " directory reads");
+        } finally {
+            FileSystem.configureNameIndex(NameIndex.DEFAULT_MAX_DIRS);
+            deleteDir(dirPath);
+        }
+    }
+
+    /**
+     * @return relativePath followed by the name of each entry in dir on its own
+     *         line, the way STOR NEW used to read a directory before the name
+     *         index
+     */
+    private static String readDirNames(String relativePath, Path dir) {
+        String[] fileNames = dir.toFile().list();
+        StringBuilder dirListBuilder = new StringBuilder(relativePath + "\n");
+        for (int i = 0; i < fileNames.length; i++) {
+            dirListBuilder.append(fileNames[i]);
+            if (i < (fileNames.length - 1)) {
+                dirListBuilder.append("\n");
+            }
+        }
+        return dirListBuilder.toString();
+    }
+
+    /**
+     * Looks up users in process in a user database of numUsers users, first by
+     * scanning a list of them as FileSystem.getUser() used to, then in a user
+     * table. Then has a thread keep looking users up while the database file is
+     * replaced with one with another user, and reports how long the watcher
+     * takes to swap in the new table and how many of the lookups in the
+     * meantime failed, which should be none.
+     */
+    private static void benchmark_Users(int numUsers, int numLookups) throws Exception {
+        System.out.println("| USERS: " + numUsers + " users, " + numLookups + " lookups |");
+        Path dir = Files.createTempDirectory("benchmark_users");
+        Path usersPath = dir.resolve("users.txt");
+        try {
+            writeUsers(usersPath, numUsers);
+            Random random = new Random(0);
+            String[] userIds = new String[Math.min(numLookups, 1 << 20)];
+            for (int i = 0; i < userIds.length; i++) {
+                userIds[i] = "user" + random.nextInt(numUsers);
+            }
+            long start = System.nanoTime();
+            UserTable table = UserTable.read(usersPath);
+            long readTime = System.nanoTime() - start;
+            System.out.println("Read " + table.size() + " users: " + (readTime / 1000000) + " ms");
+
+            List<User> userList = new ArrayList<User>(numUsers);
+            for (int i = 0; i < numUsers; i++) {
+                userList.add(table.get("user" + i));
+            }
+            int numScans = Math.min(numLookups, 1000); // each scans half the list on average
+            int numFound = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < numScans; i++) {
+                for (User user : userList) {
+                    if (user.getId().equals(userIds[i])) {
+                        numFound++;
+                        break;
+                    }
+                }
+            }
+            long scanTime = System.nanoTime() - start;
+            System.out.println("List scanned: " + (scanTime / numScans) + " ns per lookup, " + numFound + "/"
+                    + numScans + " found");
+
+            for (int round = 0; round < 2; round++) { // the first round only warms up
+                numFound = 0;
+                start = System.nanoTime();
+                for (int i = 0; i < numLookups; i++) {
+                    if (table.get(userIds[i % userIds.length]) != null) {
+                        numFound++;
+                    }
+                }
+                long lookupTime = System.nanoTime() - start;
+                if (round == 1) {
+                    System.out.println("Table: " + (lookupTime / numLookups) + " ns per lookup, " + numFound + "/"
+                            + numLookups + " found");
+                }
+            }
+
+            UserDatabase userDatabase = new UserDatabase(usersPath);
+            AtomicLong numReloadLookups = new AtomicLong();
+            AtomicLong numFailedLookups = new AtomicLong();
+            Thread looker = new Thread(() -> {
+                for (int i = 0; userDatabase.getNumReloads() == 0; i++) {
+                    if (userDatabase.getUser(userIds[i % userIds.length]) == null) {
+                        numFailedLookups.incrementAndGet();
+                    }
+                    numReloadLookups.incrementAndGet();
+                }
+            });
+            looker.start();
+            Path changedUsersPath = dir.resolve("users.txt.new");
+            writeUsers(changedUsersPath, numUsers + 1);
+            start = System.nanoTime();
+            Files.move(changedUsersPath, usersPath, StandardCopyOption.ATOMIC_MOVE);
+            looker.join();
+            long reloadTime = System.nanoTime() - start;
+            System.out.println("Reloaded " + userDatabase.getTable().size() + " users after a change: "
+                    + (reloadTime / 1000000) + " ms, " + numFailedLookups.get() + "/" + numReloadLookups.get()
+                    + " lookups in the meantime failed");
+            userDatabase.shutdown();
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    /**
+     * Writes a user database of numUsers users, user0 to user(numUsers - 1),
+     * with a mix of accounts and passwords.
+     */
+    private static void writeUsers(Path usersPath, int numUsers) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(usersPath)) {
+            writer.write("User-id|Account|Password\n:---:|:---:|:---:");
+            for (int i = 0; i < numUsers; i++) {
+                String accounts = (i % 3 == 0) ? " " : "acct1 acct" + (i % 7 + 2);
+                String password = (i % 2 == 0) ? " " : "pass" + i;
+                writer.write("\nuser" + i + "|" + accounts + "|" + password);
+            }
+        }
+    }
+
+    private static void reportListing(boolean report, String name, long nanos, long bytesAllocated, long bytesHeld,
+            long numBytes) {
+        if (report) {
+            System.out.println(name + ": " + (nanos / 1000000) + " ms, " + (numBytes / 1024) + " KB sent, "
+                    + (bytesAllocated / 1024) + " KB allocated, " + (Math.max(0, bytesHeld) / 1024)
+                    + " KB held half way");
+        }
+    }
+
+    private static long getUsedHeapAfterGc() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Discards what is written to it, measuring how much more of the heap is in
+     * use than baseline once half of the expected bytes have been written.
+     */
+    private static class HalfwayHeapChannel implements WritableByteChannel {
+        private long baseline;
+        private long halfway;
+        private long numBytes;
+        private long heldHalfway;
+
+        HalfwayHeapChannel(long baseline, long halfway) {
+            this.baseline = baseline;
+            this.halfway = halfway;
+        }
+
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            if (numBytes < halfway && numBytes + length >= halfway) {
+                heldHalfway = getUsedHeapAfterGc() - baseline;
+            }
+            numBytes += length;
+            return length;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * @return the number of stores that failed
+     */
+    private static int storeConcurrently(int numSessions, int numStores, byte[] contents) throws Exception {
+        AtomicLong numFailed = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(numSessions);
+        List<Future<?>> sessions = new ArrayList<Future<?>>();
+        for (int i = 1; i <= numSessions; i++) {
+            int sessionId = i;
+            sessions.add(executor.submit(() -> {
+                SFTPSession session = new SFTPSession(sessionId);
+                session.handleInput("user user1");
+                session.handleInput("type b");
+                session.handleInput("cdir /benchmark_fsync");
+                for (int round = 0; round < numStores; round++) {
+                    String response = lockStressStor(session, "old file" + sessionId + ".bin", contents);
+                    if (!response.startsWith("+Saved")) {
+                        numFailed.incrementAndGet();
+                    }
+                }
+                session.close();
+                return null;
+            }));
+        }
+        for (Future<?> session : sessions) {
+            session.get();
+        }
+        executor.shutdown();
+        return (int) numFailed.get();
+    }
+
+    /**
+     * Stores contents with a STOR call in binary mode.
+     *
+     * @return the response to the stored contents, or to whichever call failed
+     */
+    private static String lockStressStor(SFTPSession session, String storArgs, byte[] contents) {
+        String response = session.handleInput("stor " + storArgs).toString();
+        if (response.startsWith("-")) {
+            return response;
+        }
+        response = session.handleInput("size " + contents.length).toString();
+        if (response.startsWith("-")) {
+            return response;
+        }
+        return session.receiveFileBytes(ByteBuffer.wrap(contents)).toString();
+    }
+
+    /**
+     * @return numRecords records of 16 bytes, each holding the session and round
+     *         that wrote it and a checksum of the two
+     */
+    private static byte[] lockStressRecords(int sessionId, int round, int numRecords) {
+        String record = String.format("%04d:%06d:%03d\n", sessionId, round, (sessionId * 31 + round) % 997);
+        return record.repeat(numRecords).getBytes();
+    }
+
+    private static boolean isValidLockStressFile(byte[] contents) {
+        if (contents.length % 16 != 0) {
+            return false;
+        }
+        for (int offset = 0; offset < contents.length; offset += 16) {
+            String record = new String(contents, offset, 16);
+            if (!record.matches("\\d{4}:\\d{6}:\\d{3}\n")) {
+                return false;
+            }
+            int sessionId = Integer.parseInt(record.substring(0, 4));
+            int round = Integer.parseInt(record.substring(5, 11));
+            if (Integer.parseInt(record.substring(12, 15)) != (sessionId * 31 + round) % 997) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void deleteDir(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private static String formatCallRate(int numCalls, long nanos) {
+        return (nanos / 1000000) + " ms, " + String.format("%.0f", numCalls / (nanos / 1e9)) + " calls/s";
+    }
+
+    /**
+     * Compares parsing and resolving command calls the way SFTPSession used to,
+     * by splitting on a regex and scanning lists of command names, against a
+     * CommandLine and CommandTable. Then runs the same calls through a whole
+     * SFTPSession, which also covers building the response. Runs in process.
+     */
+    private static void benchmark_Parse(int numCalls) {
+        System.out.println("| PARSE: " + numCalls + " calls |");
+        String[] calls = { "user nobody", "acct acct1", "pass pass1", "type b", "list f dir",
+                "stor new file.txt", "retr file.txt", "send", "size 1024", "cdir  dir ", "name a b",
+                "nope file.txt" };
+        List<String> zeroArgCmds = Arrays.asList("done", "send", "stop");
+        List<String> oneOrTwoArgCmds = Arrays.asList("list");
+        List<String> twoArgCmds = Arrays.asList("stor");
+        List<String> restrictedCmds = Arrays.asList("type", "list", "kill", "name", "tobe", "retr", "send",
+                "stop", "stor", "size");
+        List<String> allCmds = Arrays.asList("user", "acct", "pass", "type", "list", "cdir", "kill", "name",
+                "tobe", "done", "retr", "send", "stop", "stor", "size");
+        Command.Handler handler = (session, commandLine) -> null;
+        CommandTable table = new CommandTable(new Command("user", 1, 1, false, "", handler),
+                new Command("acct", 1, 1, false, "", handler), new Command("pass", 1, 1, false, "", handler),
+                new Command("type", 1, 1, true, "", handler), new Command("list", 1, 2, true, "", handler),
+                new Command("cdir", 1, 1, false, "", handler), new Command("kill", 1, 1, true, "", handler),
+                new Command("name", 1, 1, true, "", handler), new Command("tobe", 1, 1, true, "", handler),
+                new Command("done", 0, 0, false, "", handler), new Command("retr", 1, 1, true, "", handler),
+                new Command("send", 0, 0, true, "", handler), new Command("stop", 0, 0, true, "", handler),
+                new Command("stor", 2, 2, true, "", handler), new Command("size", 1, 1, true, "", handler));
+        CommandLine commandLine = new CommandLine();
+        SFTPSession session = new SFTPSession(0); // never logged in, so no call touches the file system
+
+        long checksum = 0;
+        long[] times = new long[3];
+        long[] allocations = new long[3];
+        for (int round = 0; round < 2; round++) { // the first round only warms up
+            long start = System.nanoTime();
+            long allocated = getAllocatedBytes();
+            for (int i = 0; i < numCalls; i++) {
+                ArrayList<String> commandArgs = Utils.splitString(calls[i % calls.length], "\\s+");
+                String commandName = commandArgs.remove(0);
+                int numArgs = commandArgs.size();
+                boolean authorized = !restrictedCmds.contains(commandName);
+                boolean valid = allCmds.contains(commandName)
+                        && !(twoArgCmds.contains(commandName) && numArgs != 2)
+                        && !(oneOrTwoArgCmds.contains(commandName) && (numArgs < 1 || numArgs > 2))
+                        && !(zeroArgCmds.contains(commandName) && numArgs > 0)
+                        && !(!twoArgCmds.contains(commandName) && !zeroArgCmds.contains(commandName)
+                                && !oneOrTwoArgCmds.contains(commandName) && numArgs != 1);
+                checksum += (authorized ? 1 : 0) + (valid ? 2 : 0) + commandName.length();
+            }
+            long split = System.nanoTime();
+            long splitAllocated = getAllocatedBytes();
+            for (int i = 0; i < numCalls; i++) {
+                commandLine.parse(calls[i % calls.length]);
+                Command command = table.lookup(commandLine);
+                boolean authorized = command == null || !command.isRestricted();
+                boolean valid = command != null && command.acceptsNumArgs(commandLine.getNumArgs());
+                checksum += (authorized ? 1 : 0) + (valid ? 2 : 0) + commandLine.getNameEnd();
+            }
+            long lookup = System.nanoTime();
+            long lookupAllocated = getAllocatedBytes();
+            for (int i = 0; i < numCalls; i++) {
+                checksum += session.handleInput(calls[i % calls.length]).length();
+            }
+            long end = System.nanoTime();
+            long endAllocated = getAllocatedBytes();
+            if (round > 0) {
+                times = new long[] { split - start, lookup - split, end - lookup };
+                allocations = new long[] { splitAllocated - allocated, lookupAllocated - splitAllocated,
+                        endAllocated - lookupAllocated };
+            }
+        }
+        String[] names = { "Regex split + list scans", "CommandLine + CommandTable", "SFTPSession.handleInput" };
+        for (int i = 0; i < names.length; i++) {
+            System.out.println(names[i] + ": " + String.format("%.1f", (double) times[i] / numCalls) + " ns/op"
+                    + formatAllocation(allocations[i], numCalls));
+        }
+        System.out.println("(checksum " + checksum + ")");
+    }
+
+    /**
+     * Runs command calls through a logged in SFTPSession and writes each response
+     * through a ResponseWriter, the way SFTPClientWorker does, to a stream that
+     * throws it away. Reports the ns/op and bytes allocated per call separately
+     * for calls answered with a fixed message and with one that includes a path.
+     * Runs in process.
+     */
+    private static void benchmark_Responses(int numCalls) throws Exception {
+        System.out.println("| RESPONSES: " + numCalls + " calls |");
+        String[] fixedCalls = { "type a", "type b", "stop", "send", "tobe file.txt", "nope", "type", "done" };
+        String[] templatedCalls = { "name missing.txt", "kill missing.txt", "cdir /" };
+        SFTPSession session = new SFTPSession(0);
+        session.handleInput("user user1");
+        ResponseWriter writer = new ResponseWriter(OutputStream.nullOutputStream());
+        for (String[] calls : Arrays.asList(fixedCalls, templatedCalls)) {
+            long time = 0;
+            long allocation = 0;
+            for (int round = 0; round < 2; round++) { // the first round only warms up
+                long start = System.nanoTime();
+                long allocated = getAllocatedBytes();
+                for (int i = 0; i < numCalls; i++) {
+                    writer.write(session.handleInput(calls[i % calls.length]));
+                    writer.flush();
+                }
+                time = System.nanoTime() - start;
+                allocation = getAllocatedBytes() - allocated;
+            }
+            System.out.println(((calls == fixedCalls) ? "Fixed responses" : "Templated responses") + ": "
+                    + String.format("%.1f", (double) time / numCalls) + " ns/op"
+                    + formatAllocation(allocation, numCalls));
+        }
+    }
+
+    /**
+     * @return the number of bytes allocated by the current thread so far, or -1 if
+     *         the JVM can't report it
+     */
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    private static String formatAllocation(long bytesAllocated, int numOps) {
+        if (bytesAllocated < 0) {
+            return "";
+        }
+        return ", " + String.format("%.1f", (double) bytesAllocated / numOps) + " B/op allocated";
+    }
+
+    private static String formatThroughput(long numBytes, long nanos) {
+        return String.format("%.2f", (numBytes / (1024.0 * 1024.0)) / (nanos / 1e9)) + " MB/s";
+    }
+
+    private static void writeTextFile(Path filePath, long sizeBytes) throws IOException {
+        byte[] line = "The quick brown fox jumps over the lazy dog, 0123456789 times.\n".getBytes();
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(filePath))) {
+            long bytesToWrite = sizeBytes;
+            while (bytesToWrite > 0) {
+                int length = (int) Math.min(line.length, bytesToWrite);
+                out.write(line, 0, length);
+                bytesToWrite -= length;
+            }
+        }
+    }
+
+    private static void printLatencies(String name, long[] latencies) {
+        Arrays.sort(latencies);
+        System.out.println(name + ": " + latencies.length + " calls"
+                + ", p50 " + percentile(latencies, 0.50) + " us"
+                + ", p99 " + percentile(latencies, 0.99) + " us"
+                + ", max " + (latencies[latencies.length - 1] / 1000) + " us");
+    }
+
+    private static long percentile(long[] sortedLatencies, double percentile) {
+        int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(0, index)] / 1000;
+    }
+
+    /**
+     * A minimal client that talks to the server directly over a socket, to keep
+     * the overhead (and logging) of SFTPClient out of the measurements.
+     */
+    private static class BenchmarkClient {
+        private Socket socket;
+        private BufferedInputStream inFromServer;
+        private OutputStream outToServer;
+
+        BenchmarkClient() throws IOException {
+            socket = new Socket(HOSTNAME, PORT);
+            inFromServer = new BufferedInputStream(socket.getInputStream());
+            outToServer = socket.getOutputStream();
+            readResponse(); // greeting
+        }
+
+        String call(String cmd) throws IOException {
+            outToServer.write((cmd + "\n").getBytes());
+            outToServer.flush();
+            return readResponse();
+        }
+
+        /**
+         * @return the number of bytes in the response, which is read and thrown
+         *         away rather than kept in memory
+         */
+        long callAndDiscard(String cmd) throws IOException {
+            outToServer.write((cmd + "\n").getBytes());
+            outToServer.flush();
+            long numBytes = 0;
+            int b;
+            while ((b = inFromServer.read()) > 0) {
+                numBytes++;
+            }
+            if (b == -1) {
+                throw new EOFException("Server closed the connection");
+            }
+            return numBytes;
+        }
+
+        void write(byte[] bytes, int length) throws IOException {
+            outToServer.write(bytes, 0, length);
+        }
+
+        String readResponse() throws IOException {
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            int b;
+            while ((b = inFromServer.read()) > 0) {
+                response.write(b);
+            }
+            if (b == -1) {
+                throw new EOFException("Server closed the connection");
+            }
+            return response.toString();
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Relays connections to the server with a fixed delay in each direction,
+     * standing in for a link with high latency. Like a TCP connection whose
+     * window is full, each direction of a connection only lets windowBytes be in
+     * flight at once, so a single connection's throughput is limited to about
+     * windowBytes per delay however fast the link underneath is.
+     */
+    private static class LatencyProxy implements Closeable {
+        static final int DEFAULT_WINDOW_BYTES = 256 * 1024;
+        private static final int CHUNK_SIZE = 16 * 1024;
+        private static final byte[] END_OF_STREAM = new byte[0];
+
+        private ServerSocket serverSocket;
+        private long delayNanos;
+        private int windowBytes;
+
+        LatencyProxy(int delayMs, int windowBytes) throws IOException {
+            this.serverSocket = new ServerSocket(0);
+            this.delayNanos = delayMs * 1000000L;
+            this.windowBytes = Math.max(CHUNK_SIZE, windowBytes);
+            startDaemon(this::acceptConnections);
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+
+        private void acceptConnections() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket clientSocket = serverSocket.accept();
+                    Socket serverConnection = new Socket(HOSTNAME, PORT);
+                    relay(clientSocket, serverConnection);
+                    relay(serverConnection, clientSocket);
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Forwards everything read from one socket to the other, holding each chunk
+         * back until delayNanos after it was read. Closes both sockets once either
+         * side closes.
+         */
+        private void relay(Socket from, Socket to) {
+            LinkedBlockingQueue<DelayedChunk> chunks = new LinkedBlockingQueue<DelayedChunk>();
+            Semaphore window = new Semaphore(windowBytes);
+            startDaemon(() -> {
+                try {
+                    InputStream in = from.getInputStream();
+                    while (true) {
+                        window.acquire(CHUNK_SIZE);
+                        byte[] chunk = new byte[CHUNK_SIZE];
+                        int bytesRead = in.read(chunk);
+                        if (bytesRead == -1) {
+                            break;
+                        }
+                        window.release(CHUNK_SIZE - bytesRead);
+                        chunks.put(new DelayedChunk(System.nanoTime() + delayNanos, Arrays.copyOf(chunk, bytesRead)));
+                    }
+                } catch (Exception e) {
+                    // the connection was closed
+                }
+                chunks.add(new DelayedChunk(System.nanoTime() + delayNanos, END_OF_STREAM));
+            });
+            startDaemon(() -> {
+                try {
+                    OutputStream out = to.getOutputStream();
+                    while (true) {
+                        DelayedChunk chunk = chunks.take();
+                        long waitNanos = chunk.dueNanos - System.nanoTime();
+                        if (waitNanos > 0) {
+                            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                        }
+                        if (chunk.bytes == END_OF_STREAM) {
+                            break;
+                        }
+                        out.write(chunk.bytes);
+                        out.flush();
+                        window.release(chunk.bytes.length);
+                    }
+                } catch (Exception e) {
+                    // the connection was closed
+                }
+                closeQuietly(from);
+                closeQuietly(to);
+            });
+        }
+
+        private static void startDaemon(Runnable runnable) {
+            Thread thread = new Thread(runnable, "latency-proxy");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private static void closeQuietly(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+
+        private static class DelayedChunk {
+            final long dueNanos;
+            final byte[] bytes;
+
+            DelayedChunk(long dueNanos, byte[] bytes) {
+                this.dueNanos = dueNanos;
+                this.bytes = bytes;
+            }
+        }
+    }
+}
@@ -1,8 +1,22 @@
 package test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 import client.SFTPClient;
 import fs.FileSystem;
@@ -13,7 +27,8 @@ final class TestRunner {
     private static String SERVER_ONLINE_MSG = "+RFC 913 SFTP Server Online";
     private static String ANY_NEWLINE = "\r?\n|\r";
     private static String UNKNOWN_COMMAND_MSG = "ERROR: Invalid Command\r\nAvailable Commands: \"USER\", \"ACCT\", \"PASS\", \"TYPE\","
-            + " \"LIST\", \"CDIR\", \"KILL\", \"NAME\", \"TOBE\", \"DONE\", \"RETR\", \"SEND\", \"STOP\", \"STOR\", \"SIZE\"";
+            + " \"LIST\", \"CDIR\", \"KILL\", \"NAME\", \"TOBE\", \"DONE\", \"RETR\", \"SEND\", \"STOP\", \"STOR\", \"SIZE\","
+            + " \"PART\", \"JOIN\"";
 
     private static List<TestOutcome> testResults = new ArrayList<TestOutcome>();
 
@@ -74,6 +89,25 @@ final class TestRunner {
         testResults.add(test_Store_argument_error());
         testResults.add(test_Access_denied());
         testResults.add(test_Unknown_command());
+        testResults.add(test_Retrieve_streamed());
+        testResults.add(test_Retrieve_binary_mode());
+        testResults.add(test_Store_binary_mode());
+        testResults.add(test_Retrieve_after_store());
+        testResults.add(test_Pipelined_commands());
+        testResults.add(test_Retrieve_resumed());
+        testResults.add(test_Store_resumed());
+        testResults.add(test_Retrieve_segmented());
+        testResults.add(test_Store_multipart());
+        testResults.add(test_Compressed_mode());
+        testResults.add(test_Concurrent_stores());
+        testResults.add(test_Store_old_replaced_atomically());
+        testResults.add(test_File_changed_outside_server());
+        testResults.add(test_List_paged());
+        testResults.add(test_Store_new_generations());
+        testResults.add(test_Users_reloaded());
+        testResults.add(test_Store_negative_size());
+        testResults.add(test_Join_invalid_mode());
+        testResults.add(test_Join_negative_size());
         System.out.println("| CLIENT TESTS COMPLETED |");
 
         if (!keepArgProvided(argv)) {
@@ -126,6 +160,12 @@ final class TestRunner {
         return actual.contains(expected);
     }
 
+    private static String crc32(String contents) {
+        CRC32 checksum = new CRC32();
+        checksum.update(contents.getBytes());
+        return Long.toHexString(checksum.getValue());
+    }
+
     private static boolean assertContainsAll(List<String> expectedList, String actual, String regex) {
         ArrayList<String> actualList = Utils.splitString(actual, regex);
         for (String expected : expectedList) {
@@ -460,7 +500,7 @@ final class TestRunner {
             evalClientCommand(sftpClient, "user user1");
             r3 = assertEquals("!user1 logged in", sftpClient.getLogHistory().get(2));
             evalClientCommand(sftpClient, "type a a");
-            r4 = assertEquals("ERROR: Invalid Arguments\nUsage: TYPE { A | B | C }", sftpClient.getLogHistory().get(3));
+            r4 = assertEquals("ERROR: Invalid Arguments\nUsage: TYPE { A | B | C | Z }", sftpClient.getLogHistory().get(3));
             evalClientCommand(sftpClient, "type d");
             r5 = assertEquals("-Type not valid", sftpClient.getLogHistory().get(4));
             evalClientCommand(sftpClient, "done");
@@ -616,8 +656,8 @@ final class TestRunner {
         try {
             evalClientCommand(sftpClient, "user user1");
             r3 = assertEquals("!user1 logged in", sftpClient.getLogHistory().get(2));
-            evalClientCommand(sftpClient, "list f / /");
-            r4 = assertEquals("ERROR: Invalid Arguments\nUsage: LIST { F | V } directory-path",
+            evalClientCommand(sftpClient, "list f / / / /");
+            r4 = assertEquals("ERROR: Invalid Arguments\nUsage: LIST { F | V } directory-path [[after-name] page-size]",
                     sftpClient.getLogHistory().get(3));
             evalClientCommand(sftpClient, "list g");
             r5 = assertEquals("-Argument error", sftpClient.getLogHistory().get(4));
@@ -1224,8 +1264,9 @@ final class TestRunner {
         try {
             evalClientCommand(sftpClient, "user user1");
             r3 = assertEquals("!user1 logged in", sftpClient.getLogHistory().get(2));
-            evalClientCommand(sftpClient, "retr file.txt file.txt");
-            r4 = assertEquals("ERROR: Invalid Arguments\nUsage: RETR file-spec", sftpClient.getLogHistory().get(3));
+            evalClientCommand(sftpClient, "retr");
+            r4 = assertEquals("ERROR: Invalid Arguments\nUsage: RETR file-spec [offset [length]]",
+                    sftpClient.getLogHistory().get(3));
             evalClientCommand(sftpClient, "retr file.txt");
             r5 = assertContains("bytes will be sent", sftpClient.getLogHistory().get(4));
             evalClientCommand(sftpClient, "send send");
@@ -1458,10 +1499,10 @@ final class TestRunner {
             evalClientCommand(sftpClient, "user user1");
             r3 = assertEquals("!user1 logged in", sftpClient.getLogHistory().get(2));
             evalClientCommand(sftpClient, "stor app file.txt file.txt");
-            r4 = assertEquals("ERROR: Invalid Arguments\nUsage: STOR { NEW | OLD | APP } file-spec",
+            r4 = assertEquals("ERROR: Invalid Arguments\nUsage: STOR { NEW | OLD | APP | RES } file-spec",
                     sftpClient.getLogHistory().get(3));
             evalClientCommand(sftpClient, "stor a");
-            r5 = assertEquals("ERROR: Invalid Arguments\nUsage: STOR { NEW | OLD | APP } file-spec",
+            r5 = assertEquals("ERROR: Invalid Arguments\nUsage: STOR { NEW | OLD | APP | RES } file-spec",
                     sftpClient.getLogHistory().get(4));
             evalClientCommand(sftpClient, "stor app file.txt");
             r6 = assertEquals("+Will append to file", sftpClient.getLogHistory().get(5));
@@ -1529,4 +1570,880 @@ final class TestRunner {
         System.out.println();
         return testOutcome;
     }
+
+    private static TestOutcome test_Retrieve_streamed() {
+        System.out.println("53. Retrieve, streamed to OutputStream");
+        SFTPClient sftpClient = new SFTPClient();
+        boolean r1, r2, r3, r4, r5, r6, r7;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        try {
+            evalClientCommand(sftpClient, "user user1");
+            r3 = assertEquals("!user1 logged in", sftpClient.getLogHistory().get(2));
+            evalClientCommand(sftpClient, "retr temp/data.csv");
+            r4 = assertEquals("+37 bytes will be sent", sftpClient.getLogHistory().get(3));
+            System.out.println("> send");
+            ByteArrayOutputStream fileContents = new ByteArrayOutputStream();
+            long numBytes = sftpClient.evalCommand("send", fileContents);
+            r5 = assertEquals("This text is from user1/temp/data.csv", fileContents.toString());
+            r6 = (numBytes == 37);
+            evalClientCommand(sftpClient, "done");
+            r7 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(5));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6 && r7) ? TestOutcome.Success : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_Retrieve_binary_mode() {
+        System.out.println("54. Retrieve, binary mode");
+        SFTPClient sftpClient = new SFTPClient();
+        boolean r1, r2, r3, r4, r5, r6, r7, r8;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        try {
+            byte[] expectedBytes = Files.readAllBytes(Paths.get(FileSystem.getHomeDir() + "user1/data.jpg"));
+            evalClientCommand(sftpClient, "user user1");
+            r3 = assertEquals("!user1 logged in", sftpClient.getLogHistory().get(2));
+            evalClientCommand(sftpClient, "type b");
+            r4 = assertEquals("+Using Binary mode", sftpClient.getLogHistory().get(3));
+            evalClientCommand(sftpClient, "retr data.jpg");
+            r5 = assertEquals("+" + expectedBytes.length + " bytes will be sent", sftpClient.getLogHistory().get(4));
+            System.out.println("> send");
+            ByteArrayOutputStream fileContents = new ByteArrayOutputStream();
+            sftpClient.evalCommand("send", fileContents);
+            r6 = Arrays.equals(expectedBytes, fileContents.toByteArray());
+            // the file isn't terminated, so the next response must still be read correctly
+            evalClientCommand(sftpClient, "retr temp/data.csv");
+            r7 = assertEquals("+37 bytes will be sent", sftpClient.getLogHistory().get(6));
+            evalClientCommand(sftpClient, "done");
+            r8 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(7));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6 && r7 && r8) ? TestOutcome.Success : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_Store_binary_mode() {
+        System.out.println("55. Store, binary mode");
+        SFTPClient sftpClient = new SFTPClient();
+        boolean r1, r2, r3, r4, r5, r6, r7, r8;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        try {
+            // newlines and nulls would otherwise end the file contents early
+            byte[] fileBytes = new byte[] { 'T', '5', '5', '\n', '\0', '\r', (byte) 0xff, '\n' };
+            evalClientCommand(sftpClient, "user user1");
+            r3 = assertEquals("!user1 logged in", sftpClient.getLogHistory().get(2));
+            evalClientCommand(sftpClient, "type b");
+            r4 = assertEquals("+Using Binary mode", sftpClient.getLogHistory().get(3));
+            evalClientCommand(sftpClient, "stor old file.txt");
+            r5 = assertEquals("+Will write over old file", sftpClient.getLogHistory().get(4));
+            evalClientCommand(sftpClient, "size " + fileBytes.length);
+            r6 = assertEquals("+Ok, waiting for file", sftpClient.getLogHistory().get(5));
+            System.out.println("> (" + fileBytes.length + " bytes)");
+            sftpClient.evalFileContents(new ByteArrayInputStream(fileBytes));
+            r7 = assertEquals("+Saved user1/file.txt", sftpClient.getLogHistory().get(6))
+                    && Arrays.equals(fileBytes, Files.readAllBytes(Paths.get(FileSystem.getHomeDir() + "user1/file.txt")));
+            evalClientCommand(sftpClient, "done");
+            r8 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(7));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6 && r7 && r8) ? TestOutcome.Success : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_Retrieve_after_store() {
+        System.out.println("56. Retrieve after store, file contents not stale");
+        SFTPClient sftpClient = new SFTPClient();
+        boolean r1, r2, r3, r4, r5, r6, r7;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        try {
+            evalClientCommand(sftpClient, "user user1");
+            r3 = assertEquals("!user1 logged in", sftpClient.getLogHistory().get(2));
+            evalClientCommand(sftpClient, "stor old file.txt");
+            evalClientCommand(sftpClient, "size 8");
+            evalClientCommand(sftpClient, "TEST_56A");
+            evalClientCommand(sftpClient, "retr file.txt");
+            evalClientCommand(sftpClient, "send");
+            r4 = assertEquals("TEST_56A", sftpClient.getLogHistory().get(7));
+            // same size, so only the store itself can tell that the first contents are stale
+            evalClientCommand(sftpClient, "stor old file.txt");
+            evalClientCommand(sftpClient, "size 8");
+            evalClientCommand(sftpClient, "TEST_56B");
+            r5 = assertEquals("+Saved user1/file.txt", sftpClient.getLogHistory().get(10));
+            evalClientCommand(sftpClient, "retr file.txt");
+            evalClientCommand(sftpClient, "send");
+            r6 = assertEquals("TEST_56B", sftpClient.getLogHistory().get(12));
+            evalClientCommand(sftpClient, "done");
+            r7 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(13));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6 && r7) ? TestOutcome.Success : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_Pipelined_commands() {
+        System.out.println("57. Pipelined commands, responses in order");
+        SFTPClient sftpClient = new SFTPClient();
+        boolean r1, r2, r3;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        try {
+            List<String> cmds = Arrays.asList("user user1", "stor old file.txt", "size 8", "TEST_57A", "unknown",
+                    "type b", "retr file.txt", "send", "type a", "done");
+            System.out.println("> " + String.join("\n> ", cmds));
+            sftpClient.setMaxInFlight(3);
+            List<String> responses = sftpClient.evalCommands(cmds);
+            r3 = assertEquals(Arrays.asList("!user1 logged in", "+Will write over old file", "+Ok, waiting for file",
+                    "+Saved user1/file.txt", UNKNOWN_COMMAND_MSG, "+Using Binary mode", "+8 bytes will be sent",
+                    "TEST_57A", "+Using Ascii mode", "+Closing connection").toString(), responses.toString());
+            testOutcome = (r1 && r2 && r3) ? TestOutcome.Success : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_Retrieve_resumed() {
+        System.out.println("58. Retrieve, resumed from an offset");
+        SFTPClient sftpClient = new SFTPClient();
+        boolean r1, r2, r3, r4, r5, r6, r7, r8, r9;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        Path localFile = null;
+        try {
+            evalClientCommand(sftpClient, "user user1");
+            r3 = assertEquals("!user1 logged in", sftpClient.getLogHistory().get(2));
+            evalClientCommand(sftpClient, "stor old file.txt");
+            evalClientCommand(sftpClient, "size 14");
+            evalClientCommand(sftpClient, "TEST_58_RESUME");
+            evalClientCommand(sftpClient, "retr file.txt 8");
+            r4 = assertEquals("+6 bytes will be sent", sftpClient.getLogHistory().get(6));
+            evalClientCommand(sftpClient, "send");
+            r5 = assertEquals("RESUME", sftpClient.getLogHistory().get(7));
+            evalClientCommand(sftpClient, "retr data.jpg 4");
+            r6 = assertEquals("-Offset must be a multiple of 3 for files sent in Base64",
+                    sftpClient.getLogHistory().get(8));
+            evalClientCommand(sftpClient, "retr file.txt 15");
+            r7 = assertEquals("-Offset is outside of the file", sftpClient.getLogHistory().get(9));
+            // as if a transfer was interrupted part way through a group of 4 encoded bytes
+            String expectedContents = Base64.getEncoder().encodeToString(
+                    Files.readAllBytes(Paths.get(FileSystem.getHomeDir() + "user1/data.jpg")));
+            localFile = Files.createTempFile("resume", ".jpg");
+            Files.write(localFile, expectedContents.substring(0, 10).getBytes());
+            System.out.println("> (resume data.jpg)");
+            sftpClient.retrieveFile("data.jpg", localFile);
+            r8 = assertEquals(expectedContents, new String(Files.readAllBytes(localFile)));
+            evalClientCommand(sftpClient, "done");
+            r9 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(12));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6 && r7 && r8 && r9) ? TestOutcome.Success
+                    : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        } finally {
+            if (localFile != null) {
+                localFile.toFile().delete();
+            }
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_Store_resumed() {
+        System.out.println("59. Store, resumed after a disconnect");
+        SFTPClient sftpClient = new SFTPClient();
+        boolean r1, r2, r3, r4, r5, r6, r7, r8, r9;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        Path localFile = null;
+        try {
+            evalClientCommand(sftpClient, "user user1");
+            r3 = assertEquals("!user1 logged in", sftpClient.getLogHistory().get(2));
+            evalClientCommand(sftpClient, "stor old file.txt");
+            evalClientCommand(sftpClient, "size 14");
+            evalClientCommand(sftpClient, "TEST_59_BEFORE");
+            // another client drops its connection part way through storing to the same file
+            System.out.println("> (interrupted stor old file.txt)");
+            try (Socket socket = new Socket("localhost", 6789)) {
+                OutputStream out = socket.getOutputStream();
+                out.write("user user1\ntype b\nstor old file.txt\nsize 15\nTEST_5".getBytes());
+                out.flush();
+                InputStream in = socket.getInputStream();
+                for (int numResponses = 0; numResponses < 4;) {
+                    int b = in.read();
+                    if (b == -1) {
+                        break;
+                    } else if (b == 0) {
+                        numResponses++;
+                    }
+                }
+            }
+            Thread.sleep(300);
+            evalClientCommand(sftpClient, "retr file.txt");
+            evalClientCommand(sftpClient, "send");
+            r4 = assertEquals("TEST_59_BEFORE", sftpClient.getLogHistory().get(7));
+            evalClientCommand(sftpClient, "type b");
+            localFile = Files.createTempFile("resume", ".txt");
+            Files.write(localFile, "TEST_59_RESUMED".getBytes());
+            System.out.println("> (resume stor file.txt)");
+            sftpClient.storeFile("res", "file.txt", localFile);
+            r5 = assertEquals("+6 bytes already received, send the rest", sftpClient.getLogHistory().get(9));
+            r6 = assertEquals("+Saved user1/file.txt", sftpClient.getLogHistory().get(11));
+            evalClientCommand(sftpClient, "stor res missing.txt");
+            r7 = assertEquals("-No interrupted upload of that file to resume", sftpClient.getLogHistory().get(12));
+            evalClientCommand(sftpClient, "retr file.txt");
+            evalClientCommand(sftpClient, "send");
+            r8 = assertEquals("TEST_59_RESUMED", sftpClient.getLogHistory().get(14));
+            evalClientCommand(sftpClient, "done");
+            r9 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(15));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6 && r7 && r8 && r9) ? TestOutcome.Success
+                    : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        } finally {
+            if (localFile != null) {
+                localFile.toFile().delete();
+            }
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_Retrieve_segmented() {
+        System.out.println("60. Retrieve, in segments over several connections");
+        SFTPClient sftpClient = new SFTPClient();
+        boolean r1, r2, r3, r4, r5, r6, r7, r8, r9, r10;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        Path localFile = null;
+        try {
+            evalClientCommand(sftpClient, "user user1");
+            r3 = assertEquals("!user1 logged in", sftpClient.getLogHistory().get(2));
+            evalClientCommand(sftpClient, "stor old file.txt");
+            evalClientCommand(sftpClient, "size 15");
+            evalClientCommand(sftpClient, "TEST_60_SEGMENT");
+            evalClientCommand(sftpClient, "retr file.txt 8 3");
+            r4 = assertEquals("+3 bytes will be sent", sftpClient.getLogHistory().get(6));
+            evalClientCommand(sftpClient, "send");
+            r5 = assertEquals("SEG", sftpClient.getLogHistory().get(7));
+            evalClientCommand(sftpClient, "retr file.txt 8 8");
+            r6 = assertEquals("-Length runs past the end of the file", sftpClient.getLogHistory().get(8));
+            evalClientCommand(sftpClient, "retr file.txt 8 x");
+            r7 = assertEquals("-Length must be a number", sftpClient.getLogHistory().get(9));
+            evalClientCommand(sftpClient, "retr data.jpg 0 4");
+            r8 = assertEquals("-Length must be a multiple of 3 for files sent in Base64",
+                    sftpClient.getLogHistory().get(10));
+            localFile = Files.createTempFile("segmented", ".jpg");
+            System.out.println("> (retrieve data.jpg in 3 segments)");
+            sftpClient.retrieveFileSegmented("data.jpg", localFile, 3);
+            byte[] expectedContents = Files.readAllBytes(Paths.get(FileSystem.getHomeDir() + "user1/data.jpg"));
+            r9 = Arrays.equals(expectedContents, Files.readAllBytes(localFile));
+            evalClientCommand(sftpClient, "done");
+            r10 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(12));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6 && r7 && r8 && r9 && r10) ? TestOutcome.Success
+                    : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        } finally {
+            if (localFile != null) {
+                localFile.toFile().delete();
+            }
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_Store_multipart() {
+        System.out.println("61. Store, in parts over several connections");
+        SFTPClient sftpClient = new SFTPClient();
+        boolean r1, r2, r3, r4, r5, r6, r7, r8, r9, r10, r11, r12;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        Path localFile = null;
+        try {
+            evalClientCommand(sftpClient, "user user1");
+            evalClientCommand(sftpClient, "part file.txt 0 0");
+            r3 = assertEquals("-Parts can only be sent in binary mode", sftpClient.getLogHistory().get(3));
+            evalClientCommand(sftpClient, "type b");
+            evalClientCommand(sftpClient, "part file.txt 0 " + crc32("TEST_61_"));
+            evalClientCommand(sftpClient, "size 8");
+            evalClientCommand(sftpClient, "TEST_61_");
+            r4 = assertEquals("+Saved part of user1/file.txt at byte 0", sftpClient.getLogHistory().get(7));
+            evalClientCommand(sftpClient, "part file.txt 8 " + crc32("JOIN"));
+            evalClientCommand(sftpClient, "size 4");
+            evalClientCommand(sftpClient, "BAD!");
+            r5 = assertEquals("-Couldn't save part, its checksum doesn't match", sftpClient.getLogHistory().get(10));
+            evalClientCommand(sftpClient, "join old file.txt 12");
+            r6 = assertEquals("-Not saved because no part starting at or before byte 8 has been received",
+                    sftpClient.getLogHistory().get(11));
+            evalClientCommand(sftpClient, "part file.txt 8 " + crc32("JOIN"));
+            evalClientCommand(sftpClient, "size 4");
+            evalClientCommand(sftpClient, "JOIN");
+            evalClientCommand(sftpClient, "join old file.txt 12");
+            r7 = assertEquals("+Saved user1/file.txt", sftpClient.getLogHistory().get(15));
+            evalClientCommand(sftpClient, "retr file.txt");
+            evalClientCommand(sftpClient, "send");
+            r8 = assertEquals("TEST_61_JOIN", sftpClient.getLogHistory().get(17));
+            evalClientCommand(sftpClient, "join old file.txt 12");
+            r9 = assertEquals("-No parts of that file have been sent", sftpClient.getLogHistory().get(18));
+            String expectedContents = "TEST_61_MULTIPART_".repeat(50);
+            localFile = Files.createTempFile("multipart", ".txt");
+            Files.write(localFile, expectedContents.getBytes());
+            System.out.println("> (store file.txt in 4 parts)");
+            sftpClient.storeFileMultipart("old", "file.txt", localFile, 4);
+            r10 = assertEquals("+Saved user1/file.txt", sftpClient.getLogHistory().get(19));
+            evalClientCommand(sftpClient, "retr file.txt");
+            evalClientCommand(sftpClient, "send");
+            r11 = assertEquals(expectedContents, sftpClient.getLogHistory().get(21));
+            evalClientCommand(sftpClient, "done");
+            r12 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(22));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6 && r7 && r8 && r9 && r10 && r11 && r12)
+                    ? TestOutcome.Success
+                    : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        } finally {
+            if (localFile != null) {
+                localFile.toFile().delete();
+            }
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_Compressed_mode() {
+        System.out.println("62. Compressed mode, store and retrieve");
+        SFTPClient sftpClient = new SFTPClient();
+        boolean r1, r2, r3, r4, r5, r6, r7, r8, r9, r10;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        Path localFile = null;
+        try {
+            evalClientCommand(sftpClient, "user user1");
+            evalClientCommand(sftpClient, "type z");
+            r3 = assertEquals("+Using Compressed mode", sftpClient.getLogHistory().get(3));
+            String expectedContents = "TEST_62_COMPRESSED_".repeat(200);
+            localFile = Files.createTempFile("compressed", ".txt");
+            Files.write(localFile, expectedContents.getBytes());
+            System.out.println("> (store file.txt compressed)");
+            sftpClient.storeFile("old", "file.txt", localFile);
+            r4 = assertEquals("+Saved user1/file.txt", sftpClient.getLogHistory().get(6));
+            evalClientCommand(sftpClient, "retr file.txt");
+            r5 = assertEquals("+3800 bytes will be sent compressed", sftpClient.getLogHistory().get(7));
+            evalClientCommand(sftpClient, "send");
+            r6 = assertEquals(expectedContents, sftpClient.getLogHistory().get(8));
+            evalClientCommand(sftpClient, "retr file.txt 8");
+            r7 = assertEquals("+3792 bytes will be sent compressed", sftpClient.getLogHistory().get(9));
+            evalClientCommand(sftpClient, "send");
+            r8 = assertEquals(expectedContents.substring(8), sftpClient.getLogHistory().get(10));
+            // a client that sends something other than deflated data
+            System.out.println("> (stor new bad.txt, invalid compressed contents)");
+            String storRes = "";
+            try (Socket socket = new Socket("localhost", 6789)) {
+                OutputStream out = socket.getOutputStream();
+                out.write("user user1\ntype z\nstor new bad.txt\nsize 5\n".getBytes());
+                out.write(new byte[] { 0, 0, 0, 3, 'b', 'a', 'd', 0, 0, 0, 0 });
+                out.flush();
+                InputStream in = socket.getInputStream();
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                for (int numResponses = 0; numResponses < 6;) {
+                    int b = in.read();
+                    if (b == -1) {
+                        break;
+                    } else if (b == 0) {
+                        numResponses++;
+                        storRes = response.toString();
+                        response.reset();
+                    } else {
+                        response.write(b);
+                    }
+                }
+            }
+            System.out.println(storRes);
+            r9 = assertEquals("-Couldn't save contents, they are not valid compressed data", storRes)
+                    && !FileSystem.pathExists("user1/bad.txt");
+            evalClientCommand(sftpClient, "done");
+            r10 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(11));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6 && r7 && r8 && r9 && r10) ? TestOutcome.Success
+                    : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        } finally {
+            if (localFile != null) {
+                localFile.toFile().delete();
+            }
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_Concurrent_stores() {
+        System.out.println("63. Concurrent stores to the same file");
+        SFTPClient sftpClient = new SFTPClient();
+        boolean r1, r2, r3, r4, r5, r6, r7;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        int numClients = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(numClients);
+        List<String> newFiles = new ArrayList<String>();
+        try {
+            evalClientCommand(sftpClient, "user user1");
+            FileSystem.writeFile("user1/file.txt", "");
+            System.out.println("> (" + numClients + " clients append to file.txt and store new.txt at once)");
+            List<Future<List<String>>> responses = new ArrayList<Future<List<String>>>();
+            for (int i = 0; i < numClients; i++) {
+                String contents = String.format("TEST63%02d", i);
+                responses.add(executor.submit(() -> {
+                    SFTPClient client = new SFTPClient();
+                    client.evalCommand("user user1");
+                    client.evalCommand("stor app file.txt");
+                    client.evalCommand("size 8");
+                    client.evalCommand(contents);
+                    client.evalCommand("stor new new.txt");
+                    client.evalCommand("size 8");
+                    client.evalCommand(contents);
+                    client.evalCommand("done");
+                    List<String> logHistory = client.getLogHistory();
+                    return Arrays.asList(logHistory.get(5), logHistory.get(8));
+                }));
+            }
+            r3 = true;
+            r4 = true;
+            for (Future<List<String>> response : responses) {
+                r3 &= assertEquals("+Saved user1/file.txt", response.get().get(0));
+                String newFile = response.get().get(1);
+                r4 &= newFile.startsWith("+Saved user1/new") && !newFiles.contains(newFile);
+                newFiles.add(newFile);
+            }
+            evalClientCommand(sftpClient, "retr file.txt");
+            r5 = assertEquals("+" + (numClients * 8) + " bytes will be sent", sftpClient.getLogHistory().get(3));
+            evalClientCommand(sftpClient, "send");
+            String appended = sftpClient.getLogHistory().get(4);
+            r6 = appended.length() == numClients * 8;
+            for (int i = 0; i < numClients; i++) {
+                r6 &= assertContains(String.format("TEST63%02d", i), appended);
+            }
+            evalClientCommand(sftpClient, "done");
+            r7 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(5));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6 && r7) ? TestOutcome.Success : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        } finally {
+            executor.shutdown();
+            for (String newFile : newFiles) {
+                FileSystem.deletePath(newFile.substring("+Saved ".length()));
+            }
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_Store_old_replaced_atomically() {
+        System.out.println("64. Store old, file replaced only once complete");
+        SFTPClient sftpClient = new SFTPClient();
+        boolean r1, r2, r3, r4, r5, r6, r7, r8;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        try {
+            evalClientCommand(sftpClient, "user user1");
+            evalClientCommand(sftpClient, "stor old file.txt");
+            evalClientCommand(sftpClient, "size 14");
+            evalClientCommand(sftpClient, "TEST_64_BEFORE");
+            r3 = assertEquals("+Saved user1/file.txt", sftpClient.getLogHistory().get(5));
+            // another client starts replacing the file, but only sends part of it for now
+            System.out.println("> (stor old file.txt, first 6 bytes)");
+            try (Socket socket = new Socket("localhost", 6789)) {
+                OutputStream out = socket.getOutputStream();
+                out.write("user user1\ntype b\nstor old file.txt\nsize 13\nTEST_6".getBytes());
+                out.flush();
+                InputStream in = socket.getInputStream();
+                for (int numResponses = 0; numResponses < 5;) {
+                    int b = in.read();
+                    if (b == -1) {
+                        break;
+                    } else if (b == 0) {
+                        numResponses++;
+                    }
+                }
+                evalClientCommand(sftpClient, "retr file.txt");
+                r4 = assertEquals("+14 bytes will be sent", sftpClient.getLogHistory().get(6));
+                evalClientCommand(sftpClient, "send");
+                r5 = assertEquals("TEST_64_BEFORE", sftpClient.getLogHistory().get(7));
+                System.out.println("> (stor old file.txt, last 7 bytes)");
+                out.write("4_AFTER".getBytes());
+                out.flush();
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                for (int b = in.read(); b > 0; b = in.read()) {
+                    response.write(b);
+                }
+                r6 = assertEquals("+Saved user1/file.txt", response.toString());
+            }
+            evalClientCommand(sftpClient, "retr file.txt");
+            evalClientCommand(sftpClient, "send");
+            r7 = assertEquals("TEST_64_AFTER", sftpClient.getLogHistory().get(9));
+            evalClientCommand(sftpClient, "done");
+            r8 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(10));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6 && r7 && r8) ? TestOutcome.Success
+                    : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_File_changed_outside_server() {
+        System.out.println("65. File changed outside of the server");
+        SFTPClient sftpClient = new SFTPClient();
+        Path filePath = Paths.get(FileSystem.getHomeDir() + "user1/file.txt");
+        boolean r1, r2, r3, r4, r5, r6, r7, r8;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        try {
+            evalClientCommand(sftpClient, "user user1");
+            evalClientCommand(sftpClient, "stor old file.txt");
+            evalClientCommand(sftpClient, "size 14");
+            evalClientCommand(sftpClient, "TEST_65_BEFORE");
+            evalClientCommand(sftpClient, "retr file.txt");
+            r3 = assertEquals("+14 bytes will be sent", sftpClient.getLogHistory().get(6));
+            evalClientCommand(sftpClient, "stop");
+            // written straight to disk, so the server only finds out from its watcher
+            System.out.println("> (write file.txt outside of the server)");
+            Files.write(filePath, "TEST_65_CHANGED_OUTSIDE".getBytes());
+            Thread.sleep(300);
+            evalClientCommand(sftpClient, "retr file.txt");
+            r4 = assertEquals("+23 bytes will be sent", sftpClient.getLogHistory().get(8));
+            evalClientCommand(sftpClient, "send");
+            r5 = assertEquals("TEST_65_CHANGED_OUTSIDE", sftpClient.getLogHistory().get(9));
+            System.out.println("> (delete file.txt outside of the server)");
+            Files.delete(filePath);
+            Thread.sleep(300);
+            evalClientCommand(sftpClient, "retr file.txt");
+            r6 = assertEquals("-File doesn't exist", sftpClient.getLogHistory().get(10));
+            evalClientCommand(sftpClient, "stor app file.txt");
+            r7 = assertEquals("+Will create new file", sftpClient.getLogHistory().get(11));
+            evalClientCommand(sftpClient, "done");
+            r8 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(12));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6 && r7 && r8) ? TestOutcome.Success
+                    : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        } finally {
+            FileSystem.writeFile("user1/file.txt", "");
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_List_paged() {
+        System.out.println("66. List paged");
+        SFTPClient sftpClient = new SFTPClient();
+        String dir = "user1/list_paged";
+        boolean r1, r2, r3, r4, r5, r6, r7, r8, r9, r10;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        try {
+            Files.createDirectories(Paths.get(FileSystem.getHomeDir() + dir));
+            for (String name : Arrays.asList("e.txt", "b.txt", "d.txt", "a.txt", "c.txt")) {
+                FileSystem.writeFile(dir + "/" + name, "1");
+            }
+            evalClientCommand(sftpClient, "user user1");
+            evalClientCommand(sftpClient, "list f list_paged 2");
+            r3 = assertEquals("+user1/list_paged\na.txt\nb.txt", sftpClient.getLogHistory().get(3));
+            evalClientCommand(sftpClient, "list f list_paged b.txt 2");
+            r4 = assertEquals("+user1/list_paged\nc.txt\nd.txt", sftpClient.getLogHistory().get(4));
+            evalClientCommand(sftpClient, "list v list_paged d.txt 2");
+            r5 = assertEquals("+user1/list_paged\nName: e.txt    Path: user1/list_paged/e.txt    Size: 1 Bytes",
+                    sftpClient.getLogHistory().get(5));
+            evalClientCommand(sftpClient, "list f list_paged e.txt 2");
+            r6 = assertEquals("+user1/list_paged", sftpClient.getLogHistory().get(6));
+            evalClientCommand(sftpClient, "list f list_paged 0");
+            r7 = assertEquals("-Page size must be from 1 to 10000", sftpClient.getLogHistory().get(7));
+            ByteArrayOutputStream listing = new ByteArrayOutputStream();
+            System.out.println("> (list f list_paged, 2 entries at a time)");
+            long numEntries = sftpClient.listDirPaged("f", "list_paged", 2, listing);
+            r8 = assertEquals("a.txt\nb.txt\nc.txt\nd.txt\ne.txt\n", listing.toString());
+            r9 = (numEntries == 5);
+            evalClientCommand(sftpClient, "done");
+            r10 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(9));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6 && r7 && r8 && r9 && r10) ? TestOutcome.Success
+                    : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        } finally {
+            for (String name : Arrays.asList("a.txt", "b.txt", "c.txt", "d.txt", "e.txt")) {
+                FileSystem.deletePath(dir + "/" + name);
+            }
+            FileSystem.deletePath(dir);
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_Store_new_generations() {
+        System.out.println("67. Store new generations");
+        SFTPClient sftpClient = new SFTPClient();
+        String dir = "user1/generations";
+        List<String> names = Arrays.asList("report.txt", "old_report1.txt", "report12.txt", "report13.txt");
+        boolean r1, r2, r3, r4, r5, r6;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        try {
+            Files.createDirectories(Paths.get(FileSystem.getHomeDir() + dir));
+            for (String name : names) {
+                FileSystem.writeFile(dir + "/" + name, "");
+            }
+            evalClientCommand(sftpClient, "user user1");
+            evalClientCommand(sftpClient, "cdir generations");
+            // old_report1.txt and report12.txt contain report1.txt, but aren't generations of report.txt
+            evalClientCommand(sftpClient, "stor new report1.txt");
+            evalClientCommand(sftpClient, "size 1");
+            evalClientCommand(sftpClient, "1");
+            r3 = assertEquals("+Saved user1/generations/report1.txt", sftpClient.getLogHistory().get(6));
+            evalClientCommand(sftpClient, "stor new report.txt");
+            evalClientCommand(sftpClient, "size 1");
+            evalClientCommand(sftpClient, "2");
+            r4 = assertEquals("+Saved user1/generations/report14.txt", sftpClient.getLogHistory().get(9));
+            evalClientCommand(sftpClient, "stor new report1.txt");
+            evalClientCommand(sftpClient, "size 1");
+            evalClientCommand(sftpClient, "3");
+            // report12.txt to report14.txt are also generations 2 to 4 of report1.txt
+            r5 = assertEquals("+Saved user1/generations/report15.txt", sftpClient.getLogHistory().get(12));
+            evalClientCommand(sftpClient, "done");
+            r6 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(13));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6) ? TestOutcome.Success : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        } finally {
+            for (String name : names) {
+                FileSystem.deletePath(dir + "/" + name);
+            }
+            for (String name : Arrays.asList("report1.txt", "report14.txt", "report15.txt")) {
+                FileSystem.deletePath(dir + "/" + name);
+            }
+            FileSystem.deletePath(dir);
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_Users_reloaded() {
+        System.out.println("68. Users reloaded");
+        SFTPClient sftpClient = new SFTPClient();
+        Path usersPath = Paths.get("resources/users.txt");
+        Path changedUsersPath = Paths.get("resources/users.txt.new");
+        boolean r1, r2, r3, r4, r5, r6;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        byte[] users = null;
+        try {
+            users = Files.readAllBytes(usersPath);
+            evalClientCommand(sftpClient, "user user7");
+            r3 = assertEquals("-Invalid user-id, try again", sftpClient.getLogHistory().get(2));
+            // replaced with a rename, so the server never reads it half written
+            System.out.println("> (add user7 to users.txt)");
+            Files.write(changedUsersPath, (new String(users) + "\nuser7| | ").getBytes());
+            Files.move(changedUsersPath, usersPath, StandardCopyOption.ATOMIC_MOVE);
+            Thread.sleep(500);
+            evalClientCommand(sftpClient, "user user7");
+            r4 = assertEquals("!user7 logged in", sftpClient.getLogHistory().get(3));
+            System.out.println("> (remove user7 from users.txt)");
+            Files.write(changedUsersPath, users);
+            Files.move(changedUsersPath, usersPath, StandardCopyOption.ATOMIC_MOVE);
+            Thread.sleep(500);
+            evalClientCommand(sftpClient, "user user7");
+            r5 = assertEquals("-Invalid user-id, try again", sftpClient.getLogHistory().get(4));
+            evalClientCommand(sftpClient, "done");
+            r6 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(5));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6) ? TestOutcome.Success : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        } finally {
+            try {
+                if (users != null) {
+                    Files.write(usersPath, users);
+                }
+                Files.deleteIfExists(changedUsersPath);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_Store_negative_size() {
+        System.out.println("69. Store, negative size");
+        FileSystem.writeFile("user1/file.txt", "TEST_69_");
+        SFTPClient sftpClient = new SFTPClient();
+        boolean r1, r2, r3, r4, r5, r6, r7;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        try {
+            evalClientCommand(sftpClient, "user user1");
+            r3 = assertEquals("!user1 logged in", sftpClient.getLogHistory().get(2));
+            evalClientCommand(sftpClient, "stor old file.txt");
+            r4 = assertEquals("+Will write over old file", sftpClient.getLogHistory().get(3));
+            // rejected in ASCII mode as well as binary, rather than saving an empty file
+            evalClientCommand(sftpClient, "size -1");
+            r5 = assertEquals("-Size must not be negative", sftpClient.getLogHistory().get(4));
+            byte[] fileBytes = Files.readAllBytes(Paths.get(FileSystem.getHomeDir() + "user1/file.txt"));
+            r6 = assertEquals("TEST_69_", new String(fileBytes));
+            evalClientCommand(sftpClient, "done");
+            r7 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(5));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6 && r7) ? TestOutcome.Success : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_Join_invalid_mode() {
+        System.out.println("70. Join, invalid mode");
+        SFTPClient sftpClient = new SFTPClient();
+        boolean r1, r2, r3, r4, r5, r6, r7;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        try {
+            evalClientCommand(sftpClient, "user user1");
+            evalClientCommand(sftpClient, "type b");
+            evalClientCommand(sftpClient, "part join_mode.txt 0 " + crc32("TEST_70_"));
+            evalClientCommand(sftpClient, "size 8");
+            evalClientCommand(sftpClient, "TEST_70_");
+            r3 = assertEquals("+Saved part of user1/join_mode.txt at byte 0", sftpClient.getLogHistory().get(6));
+            evalClientCommand(sftpClient, "join xyz join_mode.txt 8");
+            r4 = assertEquals("-Invalid write mode", sftpClient.getLogHistory().get(7));
+            evalClientCommand(sftpClient, "join res join_mode.txt 8");
+            r5 = assertEquals("-Invalid write mode", sftpClient.getLogHistory().get(8));
+            // the parts are kept, so the upload can still be stored
+            evalClientCommand(sftpClient, "join new join_mode.txt 8");
+            r6 = assertEquals("+Saved user1/join_mode.txt", sftpClient.getLogHistory().get(9));
+            evalClientCommand(sftpClient, "done");
+            r7 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(10));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6 && r7) ? TestOutcome.Success : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        } finally {
+            FileSystem.deletePath("user1/join_mode.txt");
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
+
+    private static TestOutcome test_Join_negative_size() {
+        System.out.println("71. Join, negative size");
+        SFTPClient sftpClient = new SFTPClient();
+        boolean r1, r2, r3, r4, r5, r6;
+        TestOutcome testOutcome;
+
+        r1 = assertEquals(CLIENT_WELCOME_MSG, sftpClient.getLogHistory().get(0));
+        r2 = assertEquals(SERVER_ONLINE_MSG, sftpClient.getLogHistory().get(1));
+        try {
+            evalClientCommand(sftpClient, "user user1");
+            evalClientCommand(sftpClient, "type b");
+            evalClientCommand(sftpClient, "part join_size.txt 0 " + crc32("TEST_71_"));
+            evalClientCommand(sftpClient, "size 8");
+            evalClientCommand(sftpClient, "TEST_71_");
+            r3 = assertEquals("+Saved part of user1/join_size.txt at byte 0", sftpClient.getLogHistory().get(6));
+            evalClientCommand(sftpClient, "join new join_size.txt -1");
+            r4 = assertEquals("-Size must not be negative", sftpClient.getLogHistory().get(7));
+            evalClientCommand(sftpClient, "join new join_size.txt 8");
+            r5 = assertEquals("+Saved user1/join_size.txt", sftpClient.getLogHistory().get(8));
+            evalClientCommand(sftpClient, "done");
+            r6 = assertEquals("+Closing connection", sftpClient.getLogHistory().get(9));
+            testOutcome = (r1 && r2 && r3 && r4 && r5 && r6) ? TestOutcome.Success : TestOutcome.Failure;
+        } catch (Exception e) {
+            e.printStackTrace();
+            testOutcome = TestOutcome.Exception;
+        } finally {
+            FileSystem.deletePath("user1/join_size.txt");
+        }
+
+        System.out.println();
+        return testOutcome;
+    }
 }
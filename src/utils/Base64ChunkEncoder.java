@@ -0,0 +1,55 @@
+package utils;
+
+/**
+ * Base64 encodes data a chunk at a time, so that a large file can be encoded as
+ * it is streamed rather than all at once. Produces the same output as
+ * java.util.Base64.getEncoder(), provided every chunk except the last is a
+ * multiple of 3 bytes long.
+ */
+public final class Base64ChunkEncoder {
+    private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .getBytes();
+
+    private Base64ChunkEncoder() {
+        throw new IllegalAccessError("utils.Base64ChunkEncoder cannot be instantiated");
+    }
+
+    /**
+     * @return the number of bytes needed to encode a chunk of srcLength bytes
+     */
+    public static int encodedLength(int srcLength) {
+        return ((srcLength + 2) / 3) * 4;
+    }
+
+    /**
+     * Encodes the first srcLength bytes of src into dst, which must have room for
+     * encodedLength(srcLength) bytes. Only the final chunk of the data may have a
+     * length that isn't a multiple of 3, as that is the only one which is padded.
+     * 
+     * @return the number of bytes written to dst
+     */
+    public static int encode(byte[] src, int srcLength, byte[] dst) {
+        int srcIndex = 0;
+        int dstIndex = 0;
+        int fullGroupsEnd = (srcLength / 3) * 3;
+        while (srcIndex < fullGroupsEnd) {
+            int bits = (src[srcIndex++] & 0xff) << 16 | (src[srcIndex++] & 0xff) << 8 | (src[srcIndex++] & 0xff);
+            dst[dstIndex++] = ALPHABET[(bits >>> 18) & 0x3f];
+            dst[dstIndex++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[dstIndex++] = ALPHABET[(bits >>> 6) & 0x3f];
+            dst[dstIndex++] = ALPHABET[bits & 0x3f];
+        }
+        int bytesLeft = srcLength - fullGroupsEnd;
+        if (bytesLeft > 0) {
+            int bits = (src[srcIndex++] & 0xff) << 16;
+            if (bytesLeft == 2) {
+                bits |= (src[srcIndex] & 0xff) << 8;
+            }
+            dst[dstIndex++] = ALPHABET[(bits >>> 18) & 0x3f];
+            dst[dstIndex++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[dstIndex++] = (bytesLeft == 2) ? ALPHABET[(bits >>> 6) & 0x3f] : (byte) '=';
+            dst[dstIndex++] = '=';
+        }
+        return dstIndex;
+    }
+}
@@ -0,0 +1,55 @@
+package utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a bounded number of fixed size byte arrays for reuse, so that code
+ * which needs a large temporary buffer (such as a file transfer) doesn't have to
+ * allocate a new one each time. Safe to share between threads.
+ */
+public class BufferPool {
+    private int bufferSize;
+    private int maxPooledBuffers;
+    private ConcurrentLinkedQueue<byte[]> pooledBuffers;
+    private AtomicInteger numPooledBuffers;
+
+    public BufferPool(int bufferSize, int maxPooledBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+        this.pooledBuffers = new ConcurrentLinkedQueue<byte[]>();
+        this.numPooledBuffers = new AtomicInteger();
+    }
+
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    /**
+     * @return a buffer from the pool, or a newly allocated one if the pool is
+     *         empty
+     */
+    public byte[] acquire() {
+        byte[] buffer = pooledBuffers.poll();
+        if (buffer == null) {
+            return new byte[bufferSize];
+        }
+        numPooledBuffers.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer is dropped instead if the pool is
+     * already full.
+     */
+    public void release(byte[] buffer) {
+        if (buffer.length != bufferSize) {
+            return;
+        }
+        if (numPooledBuffers.incrementAndGet() > maxPooledBuffers) {
+            numPooledBuffers.decrementAndGet();
+            return;
+        }
+        pooledBuffers.add(buffer);
+    }
+}
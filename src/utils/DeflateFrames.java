@@ -0,0 +1,67 @@
+package utils;
+
+import java.util.zip.Deflater;
+
+/**
+ * Frames a zlib stream for compressed transfers, so that whoever reads it knows
+ * exactly how many bytes to read without having to inflate them first. Each
+ * frame is a 4 byte big-endian length followed by that many bytes of the
+ * stream, and a frame with a length of 0 marks the end of the stream. Frames
+ * are produced a fixed size buffer at a time, so a file of any size can be
+ * compressed as it is streamed.
+ */
+public final class DeflateFrames {
+    public static final int HEADER_LENGTH = 4;
+    public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    private DeflateFrames() {
+        throw new IllegalAccessError("utils.DeflateFrames cannot be instantiated");
+    }
+
+    /**
+     * Deflates as much of deflater's input as fits into a single frame in dst.
+     *
+     * @return the length of the frame written to dst, or 0 if deflater has
+     *         nothing to write until it is given more input (or is finished)
+     */
+    public static int deflateFrame(Deflater deflater, byte[] dst) {
+        int length = deflater.deflate(dst, HEADER_LENGTH, dst.length - HEADER_LENGTH);
+        if (length == 0) {
+            return 0;
+        }
+        writeHeader(dst, 0, length);
+        return HEADER_LENGTH + length;
+    }
+
+    /**
+     * @return the header of the frame that ends the stream
+     */
+    public static byte[] endFrame() {
+        return new byte[HEADER_LENGTH];
+    }
+
+    public static void writeHeader(byte[] dst, int offset, int frameLength) {
+        dst[offset] = (byte) (frameLength >>> 24);
+        dst[offset + 1] = (byte) (frameLength >>> 16);
+        dst[offset + 2] = (byte) (frameLength >>> 8);
+        dst[offset + 3] = (byte) frameLength;
+    }
+
+    /**
+     * @return the length of the frame whose header starts at offset in src
+     */
+    public static int readHeader(byte[] src, int offset) {
+        return (src[offset] & 0xff) << 24 | (src[offset + 1] & 0xff) << 16 | (src[offset + 2] & 0xff) << 8
+                | (src[offset + 3] & 0xff);
+    }
+
+    /**
+     * @throws IllegalArgumentException if level isn't a valid Deflater level
+     */
+    public static void checkLevel(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION
+                && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Compression level must be from 0 to 9, or -1 for the default");
+        }
+    }
+}
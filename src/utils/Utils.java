@@ -15,6 +15,20 @@ public final class Utils {
         return splitUpString;
     }
 
+    /**
+     * Searches the command line arguments for one of the form name=value.
+     * 
+     * @return the value of the argument, or defaultValue if it was not provided
+     */
+    public static String getArgValue(String[] argv, String name, String defaultValue) {
+        for (String arg : argv) {
+            if (arg.startsWith(name + "=")) {
+                return arg.substring(name.length() + 1);
+            }
+        }
+        return defaultValue;
+    }
+
     public static String appendIfMissing(String s, String toAppend) {
         if (!s.endsWith(toAppend)) {
             return s + toAppend;